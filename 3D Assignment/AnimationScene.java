@@ -21,6 +21,12 @@ public class AnimationScene {
   private Anim[] param;
   private int numParams;
   private double globalStartTime, localTime, repeatTime, savedLocalTime; 
+  private boolean fixedClock = false;  // if true, time is simulated and only moves on in advanceClock(...)
+  private double clockTime = 0;
+  private double[] previousValues = new double[MAX_PARAMS];  // the values before the last update()
+  private boolean havePrevious = false;
+  private double blend = 1;  // how far getParam(...) is from previousValues to the current values
+  private double[] values = null;  // set by setValues(...) in place of the Anims' current values
     
   /**
    * Constructor.
@@ -86,25 +92,116 @@ public class AnimationScene {
     for (int i=0; i<numParams; ++i) {
       param[i].reset();
     }
+    havePrevious = false;
+    blend = 1;
   }
   
   private double getSeconds() {
+    if (fixedClock) return clockTime;
     return System.currentTimeMillis()/1000.0;
   }
+
+  /**
+   * Sets whether the animation follows a simulated clock instead of the real time.
+   * The simulated clock starts at 0 and only moves on when advanceClock(...) is called, so
+   * frames rendered offline are the same however long each one takes. The animation is reset.
+   *
+   * @param b True to use the simulated clock
+   */
+  public void setFixedClock(boolean b) {
+    fixedClock = b;
+    clockTime = 0;
+    reset();
+  }
+
+  public boolean getFixedClock() {
+    return fixedClock;
+  }
+
+  /**
+   * Moves the simulated clock on. Has no effect on the real time clock.
+   *
+   * @param seconds The time step, e.g. 1/30 for one frame at 30 frames per second
+   */
+  public void advanceClock(double seconds) {
+    clockTime += seconds;
+  }
   
   /**
    * 
    */ 
   public void update() {
+    for (int i=0; i<numParams; ++i) {
+      previousValues[i] = param[i].getCurrValue();
+    }
     localTime = getSeconds() - globalStartTime;
+    boolean repeated = false;
     if (localTime > repeatTime) {
       globalStartTime = getSeconds();
       localTime = 0;
       savedLocalTime = 0;
+      repeated = true;
     }  
     for (int i=0; i<numParams; ++i) {
       param[i].update(localTime);
     }
+    if (repeated || !havePrevious) {  // nothing to blend from
+      for (int i=0; i<numParams; ++i) {
+        previousValues[i] = param[i].getCurrValue();
+      }
+    }
+    havePrevious = true;
+  }
+
+  /**
+   * Sets how far getParam(...) is between the values before and after the last update(), so that
+   * frames drawn between two updates on a fixed time step show the motion smoothly (see FramePacer).
+   *
+   * @param alpha 0 for the values before the last update, 1 (the default) for the values after it
+   */
+  public void setBlend(double alpha) {
+    blend = Math.max(0, Math.min(1, alpha));
+  }
+
+  public double getBlend() {
+    return blend;
+  }
+
+  /**
+   * Copies the parameter values after the last update().
+   *
+   * @param values An array of at least MAX_PARAMS
+   */
+  public void getValues(double[] values) {
+    for (int i=0; i<numParams; ++i) {
+      values[i] = param[i].getCurrValue();
+    }
+  }
+
+  /**
+   * Copies the parameter values before the last update().
+   *
+   * @param values An array of at least MAX_PARAMS
+   */
+  public void getPreviousValues(double[] values) {
+    System.arraycopy(previousValues, 0, values, 0, numParams);
+  }
+
+  /**
+   * Sets the values getParam(...) gives, in place of this animation's own, e.g. to show an
+   * animation that is moved on by a SimulationThread. The values are copied.
+   *
+   * @param previous The values before the last update, blended from by setBlend(...)
+   * @param current  The values after the last update; null to go back to this animation's own
+   */
+  public void setValues(double[] previous, double[] current) {
+    if (current == null) {
+      values = null;
+      return;
+    }
+    if (values == null) values = new double[MAX_PARAMS];
+    System.arraycopy(previous, 0, previousValues, 0, numParams);
+    System.arraycopy(current, 0, values, 0, numParams);
   }
 
  /**
@@ -118,7 +215,9 @@ public class AnimationScene {
       return 0;
     }
     else {
-      return param[i].getCurrValue();
+      double value = (values != null) ? values[i] : param[i].getCurrValue();
+      if (blend < 1) value = previousValues[i] + (value-previousValues[i])*blend;
+      return value;
     }
   }
   
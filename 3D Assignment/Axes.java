@@ -1,19 +1,32 @@
 /**
  * A class for a set of Axes. 
- * Currently uses the GLUT objects, but could be changed in future to use 
- * objects constructed using the Mesh class.
+ * The spheres and cones are meshes from a PrimitiveCache (see setPrimitiveCache(...)),
+ * made once rather than on every frame as the GLUT objects were.
+ * Materials are set through a GLStateCache (see setStateCache(...)).
+ * The number of slices can be chosen from how big the axes are on the screen (see setLodSelector(...)).
  *
  * @author    Dr Steve Maddock
  * @version   1.1 (28/10/2015)
  */
 
 import com.jogamp.opengl.*;
-import com.jogamp.opengl.util.gl2.GLUT;
   
 public class Axes {
 
   private boolean switchedOn;
   private double xLength, yLength, zLength;
+  private GLStateCache state = new GLStateCache(false);
+  private PrimitiveCache primitives = new PrimitiveCache();
+  private LodSelector lod;
+
+  // All axes will be set to same specular, shininess and emission settings.
+  // Each axis will have will be set to different ambient and diffuse values.
+  private static final float[] MAT_X_AMBIENT_DIFFUSE = {0.7f, 0.0f, 0.0f, 1.0f};
+  private static final float[] MAT_Y_AMBIENT_DIFFUSE = {0.0f, 0.7f, 0.0f, 1.0f};
+  private static final float[] MAT_Z_AMBIENT_DIFFUSE = {0.0f, 0.0f, 0.7f, 1.0f};
+  private static final float[] MAT_SPECULAR = {1.0f, 1.0f, 1.0f, 1.0f};
+  private static final float[] MAT_SHININESS = {32.0f};
+  private static final float[] MAT_EMISSION = {0.0f, 0.0f, 0.0f, 1.0f};
 
   /**
    * Constructor.
@@ -42,22 +55,33 @@ public class Axes {
    */  
   public void setSwitchedOn(boolean b) { switchedOn = b; }
 
+  /**
+   * Sets the cache through which materials are set
+   * 
+   * @param state The cache, usually shared by everything drawn in the scene
+   */  
+  public void setStateCache(GLStateCache state) { this.state = state; }
+
+  /**
+   * Sets the cache from which the spheres and cones are taken
+   * 
+   * @param primitives The cache, usually shared by everything drawn in the scene
+   */  
+  public void setPrimitiveCache(PrimitiveCache primitives) { this.primitives = primitives; }
+
+  /**
+   * Sets the selector that chooses the number of slices and stacks from the distance to the eye
+   * 
+   * @param lod The selector, or null to always use the full number
+   */  
+  public void setLodSelector(LodSelector lod) { this.lod = lod; }
+
   /**
    * Displays the axes
    * 
    * @param gl The current OpenGL context
-   * @param glut A reference to the GLUT object
    */    
-  public void display(GL2 gl, GLUT glut) {
-    // All axes will be set to same specular, shininess and emission settings.
-    // Each axis will have will be set to different ambient and diffuse values.
-    float[] matXAmbientDiffuse = {0.7f, 0.0f, 0.0f, 1.0f};
-    float[] matYAmbientDiffuse = {0.0f, 0.7f, 0.0f, 1.0f};
-    float[] matZAmbientDiffuse = {0.0f, 0.0f, 0.7f, 1.0f};
-    float[] matSpecular = {1.0f, 1.0f, 1.0f, 1.0f};
-    float[] matShininess = {32.0f};
-    float[] matEmission = {0.0f, 0.0f, 0.0f, 1.0f};
-
+  public void display(GL2 gl) {
     double cylinderRadius = 0.05;
     double coneRadius = 0.05;
     double coneHeight = 0.2;
@@ -66,50 +90,57 @@ public class Axes {
     int spherestacks = 20;
     int coneslices = 10;
     int conestacks = 10;
+    if (lod != null) {
+      // each axis is a sphere stretched to half the axis length, which is its bounding radius
+      double distance = lod.getDistance(0.0, 0.0, 0.0);
+      double axisRadius = Math.max(xLength, Math.max(yLength, zLength))/2.0;
+      sphereslices = spherestacks = lod.select("axis", axisRadius, distance, sphereslices);
+      coneslices = conestacks = lod.select("axis cone", coneRadius, distance, coneslices);
+    }
 
     // use glMaterialfv. There is no glMaterialdv
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, matXAmbientDiffuse, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SPECULAR, matSpecular, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SHININESS, matShininess, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_EMISSION, matEmission, 0);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, MAT_X_AMBIENT_DIFFUSE);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_SPECULAR, MAT_SPECULAR);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_SHININESS, MAT_SHININESS);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_EMISSION, MAT_EMISSION);
 
     // x axis is half red
     gl.glPushMatrix();
       gl.glTranslated(xLength/2.0, 0.0, 0.0);
       gl.glScaled(xLength/2.0, cylinderRadius, cylinderRadius);
-      glut.glutSolidSphere(1.0, sphereslices, spherestacks);
+      primitives.getSphere(1.0, sphereslices, spherestacks).draw(gl);
     gl.glPopMatrix();
     gl.glPushMatrix();
       gl.glTranslated(xLength, 0.0f, 0.0f);
       gl.glRotated(90.0f, 0.0f, 1.0f, 0.0f);
       // auxSolidCone(...) is defined with the point along the z axis
       // and the base on the xy plane.
-      glut.glutSolidCone(coneRadius, coneHeight, coneslices, conestacks);
+      primitives.getCone(coneRadius, coneHeight, coneslices, conestacks).draw(gl);
     gl.glPopMatrix();
 
     // y axis is half green
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, matYAmbientDiffuse, 0);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, MAT_Y_AMBIENT_DIFFUSE);
     gl.glPushMatrix();
       gl.glTranslated(0.0f, yLength/2.0f, 0.0f);
       gl.glScaled(cylinderRadius, yLength/2.0f, cylinderRadius);
-      glut.glutSolidSphere(1.0f, sphereslices, spherestacks);
+      primitives.getSphere(1.0f, sphereslices, spherestacks).draw(gl);
     gl.glPopMatrix();
     gl.glPushMatrix();
       gl.glTranslated(0.0f, yLength, 0.0f);
       gl.glRotated(-90.0f, 1.0f, 0.0f, 0.0f);
-      glut.glutSolidCone(coneRadius, coneHeight, coneslices, conestacks);
+      primitives.getCone(coneRadius, coneHeight, coneslices, conestacks).draw(gl);
     gl.glPopMatrix();
 
     // z axis is half blue
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, matZAmbientDiffuse, 0);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, MAT_Z_AMBIENT_DIFFUSE);
     gl.glPushMatrix();
       gl.glTranslated(0.0f, 0.0f, zLength/2.0f);
       gl.glScaled(cylinderRadius, cylinderRadius, yLength/2.0f);
-      glut.glutSolidSphere(1.0f, sphereslices, spherestacks);
+      primitives.getSphere(1.0f, sphereslices, spherestacks).draw(gl);
     gl.glPopMatrix();
     gl.glPushMatrix();
       gl.glTranslated(0.0f, 0.0f, zLength);
-      glut.glutSolidCone(coneRadius, coneHeight, coneslices, conestacks);
+      primitives.getCone(coneRadius, coneHeight, coneslices, conestacks).draw(gl);
     gl.glPopMatrix();
   }
 
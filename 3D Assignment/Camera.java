@@ -132,6 +132,19 @@ public class Camera {
 		  getUpVecX(), getUpVecY(), getUpVecZ());
   }
 
+  /**
+   * Gets the same viewing transformation as view(...) sets, e.g. to find the view frustum
+   * 
+   * @return A new matrix holding the viewing transformation
+   */   
+  public Matrix4 getViewMatrix() {
+    Matrix4 m = new Matrix4();
+    m.lookAt(getEyeX(), getEyeY(), getEyeZ(),
+             0.0, 0.0, 0.0,
+             getUpVecX(), getUpVecY(), getUpVecZ());
+    return m;
+  }
+
   /**
    * Standard use of toString method
    * 
@@ -0,0 +1,255 @@
+/**
+ * A compact copy of the vertex data in a Mesh, for rendering, taking 20 bytes per vertex
+ * instead of the 64 bytes of eight doubles:
+ *   bytes  0-11  position x,y,z as floats
+ *   bytes 12-15  normal, octahedral encoded as two signed 16-bit values
+ *   bytes 16-19  texture coords u,v as 16-bit half floats
+ * Octahedral encoding projects the unit sphere onto an octahedron and unfolds it into a square,
+ * so a normal needs just two numbers and the error is spread evenly (under 0.05 degrees at 16 bits).
+ * Half floats have 11 significant bits, which is plenty for texture coords within a few repeats of a texture.
+ * The data is held in a single native-order direct buffer, with the triangle vertex indices in a second one.
+ * Fixed-function OpenGL cannot decode octahedral normals, so for buffer objects getGLVertexData(...)
+ * writes a second layout of GL_STRIDE (24) bytes per vertex, which glVertexPointer, glNormalPointer
+ * and glTexCoordPointer can read, instead of 32 bytes of floats:
+ *   bytes  0-11  position x,y,z as GL_FLOAT
+ *   bytes 12-17  normal x,y,z as GL_SHORT, which OpenGL maps to -1..1 (then two bytes of padding)
+ *   bytes 20-23  texture coords u,v as GL_HALF_FLOAT (needs OpenGL 3.0 or ARB_half_float_vertex)
+ * The static encode and decode methods can also be used on their own.
+ */
+
+import java.nio.*;
+import com.jogamp.common.nio.*;
+
+public class CompactVertexFormat {
+
+  public static final int STRIDE = 20;
+  public static final int POSITION_OFFSET = 0;
+  public static final int NORMAL_OFFSET = 12;
+  public static final int TEXCOORD_OFFSET = 16;
+
+  public static final int GL_STRIDE = 24;
+  public static final int GL_NORMAL_OFFSET = 12;
+  public static final int GL_TEXCOORD_OFFSET = 20;
+
+  private int numVertices;
+  private int numTriangles;
+  private ByteBuffer vertexData;
+  private IntBuffer indices;
+  private float[] decoded = new float[3];
+
+  /**
+   * Constructor. Encodes the vertex data of a Mesh.
+   *
+   * @param  m  the Mesh
+   */
+  public CompactVertexFormat(Mesh m) {
+    numVertices = m.getNumVertices();
+    numTriangles = m.getNumTriangles();
+    vertexData = Buffers.newDirectByteBuffer(numVertices*STRIDE);
+    indices = Buffers.newDirectIntBuffer(numTriangles*3);
+    update(m, 0, numVertices);
+    indices.put(m.getTriangleList());
+    indices.rewind();
+  }
+
+  /**
+   * Encodes a range of vertices from the Mesh again, e.g. after they have moved.
+   * The Mesh must have the same number of vertices as when this was created.
+   *
+   * @param  m     the Mesh
+   * @param  from  index of the first vertex to encode
+   * @param  to    index after the last vertex to encode
+   */
+  public void update(Mesh m, int from, int to) {
+    PackedMeshData packed = m.getPackedData();
+    if (packed != null) {  // read the arrays directly, rather than through a view of each vertex
+      double[] p = packed.getPositions(), n = packed.getNormals(), uv = packed.getTexCoords();
+      for (int v=from; v<to; v++)
+        put(v, p[v*3], p[v*3+1], p[v*3+2], n[v*3], n[v*3+1], n[v*3+2], uv[v*2], uv[v*2+1]);
+    }
+    else {
+      for (int v=from; v<to; v++) {
+        Vertex vertex = m.getVertex(v);
+        double[] p = vertex.getPosition(), n = vertex.getNormal();
+        put(v, p[0], p[1], p[2], n[0], n[1], n[2], vertex.getTextureCoordU(), vertex.getTextureCoordV());
+      }
+    }
+  }
+
+  private void put(int v, double x, double y, double z, double nx, double ny, double nz, double u, double tv) {
+    int i = v*STRIDE;
+    vertexData.putFloat(i, (float) x);
+    vertexData.putFloat(i+4, (float) y);
+    vertexData.putFloat(i+8, (float) z);
+    vertexData.putInt(i+NORMAL_OFFSET, encodeNormal(nx, ny, nz));
+    vertexData.putShort(i+TEXCOORD_OFFSET, floatToHalf((float) u));
+    vertexData.putShort(i+TEXCOORD_OFFSET+2, floatToHalf((float) tv));
+  }
+
+  /**
+   * Writes a range of vertices in the layout for buffer objects (see the class comment).
+   *
+   * @param  from  index of the first vertex
+   * @param  to    index after the last vertex
+   * @param  out   a native-order buffer of at least (to-from)*GL_STRIDE bytes
+   * @return  out, with its position at 0 and its limit after the last vertex
+   */
+  public ByteBuffer getGLVertexData(int from, int to, ByteBuffer out) {
+    out.clear();
+    for (int v=from; v<to; v++) {
+      int i = v*STRIDE, o = (v-from)*GL_STRIDE;
+      for (int j=0; j<3; j++)
+        out.putFloat(o+j*4, vertexData.getFloat(i+POSITION_OFFSET+j*4));
+      getNormal(v, decoded);
+      for (int j=0; j<3; j++)
+        out.putShort(o+GL_NORMAL_OFFSET+j*2, (short) Math.round(decoded[j]*32767));
+      out.putShort(o+GL_NORMAL_OFFSET+6, (short) 0);
+      out.putInt(o+GL_TEXCOORD_OFFSET, vertexData.getInt(i+TEXCOORD_OFFSET));  // both half floats as they are
+    }
+    out.limit((to-from)*GL_STRIDE);
+    return out;
+  }
+
+  public int getNumVertices() { return numVertices; }
+
+  public int getNumTriangles() { return numTriangles; }
+
+  /**
+   * Gets the interleaved vertex data (as a reference). See the class comment for the layout.
+   *
+   * @return  the vertex data, STRIDE bytes per vertex
+   */
+  public ByteBuffer getVertexData() { return vertexData; }
+
+  /**
+   * Gets the triangle vertex indices (as a reference).
+   *
+   * @return  the triangle vertex indices
+   */
+  public IntBuffer getIndices() { return indices; }
+
+  public float getPosition(int v, int j) {
+    return vertexData.getFloat(v*STRIDE+POSITION_OFFSET+j*4);
+  }
+
+  /**
+   * Decodes the normal of a vertex.
+   *
+   * @param  v    the vertex
+   * @param  out  set to the unit normal x,y,z
+   */
+  public void getNormal(int v, float[] out) {
+    decodeNormal(vertexData.getInt(v*STRIDE+NORMAL_OFFSET), out);
+  }
+
+  /**
+   * Decodes the texture coords of a vertex.
+   *
+   * @param  v    the vertex
+   * @param  out  set to u,v
+   */
+  public void getTextureCoord(int v, float[] out) {
+    out[0] = halfToFloat(vertexData.getShort(v*STRIDE+TEXCOORD_OFFSET));
+    out[1] = halfToFloat(vertexData.getShort(v*STRIDE+TEXCOORD_OFFSET+2));
+  }
+
+/* Octahedral normals ******************************************************************
+*/
+
+  /**
+   * Encodes a normal as two signed 16-bit values, packed into an int (first value in the low 16 bits).
+   * The normal does not have to be unit length. A normal of (0,0,0) decodes as (0,0,1).
+   *
+   * @param  nx,ny,nz  the normal
+   * @return  the encoded normal
+   */
+  public static int encodeNormal(double nx, double ny, double nz) {
+    double sum = Math.abs(nx)+Math.abs(ny)+Math.abs(nz);
+    double x = 0, y = 0;
+    if (sum != 0) {
+      x = nx/sum;
+      y = ny/sum;
+      if (nz < 0) {  // fold the lower half of the octahedron over the upper half
+        double fx = (1-Math.abs(y))*(x >= 0 ? 1 : -1);
+        double fy = (1-Math.abs(x))*(y >= 0 ? 1 : -1);
+        x = fx;
+        y = fy;
+      }
+    }
+    int sx = (int) Math.round(Math.max(-1, Math.min(1, x))*32767);
+    int sy = (int) Math.round(Math.max(-1, Math.min(1, y))*32767);
+    return (sx & 0xffff) | (sy << 16);
+  }
+
+  /**
+   * Decodes a normal encoded by encodeNormal(...).
+   *
+   * @param  code  the encoded normal
+   * @param  out   set to the unit normal x,y,z
+   */
+  public static void decodeNormal(int code, float[] out) {
+    float x = Math.max((short) code/32767f, -1f);
+    float y = Math.max((code >> 16)/32767f, -1f);
+    float z = 1-Math.abs(x)-Math.abs(y);
+    if (z < 0) {
+      float fx = (1-Math.abs(y))*(x >= 0 ? 1 : -1);
+      float fy = (1-Math.abs(x))*(y >= 0 ? 1 : -1);
+      x = fx;
+      y = fy;
+    }
+    float mag = (float) Math.sqrt(x*x+y*y+z*z);
+    out[0] = x/mag;
+    out[1] = y/mag;
+    out[2] = z/mag;
+  }
+
+/* Half floats ******************************************************************
+*/
+
+  /**
+   * Converts a float to a 16-bit IEEE 754 half float, rounding to the nearest value.
+   * Values too large become infinity and values too small become (signed) zero.
+   *
+   * @param  f  the float
+   * @return  the half float bits
+   */
+  public static short floatToHalf(float f) {
+    int bits = Float.floatToIntBits(f);
+    int sign = (bits >>> 16) & 0x8000;
+    int exp = ((bits >>> 23) & 0xff)-127+15;
+    int mant = bits & 0x7fffff;
+    if (exp == 128+15) return (short) (sign | 0x7c00 | (mant != 0 ? 0x200 : 0));  // infinity or NaN
+    if (exp >= 31) return (short) (sign | 0x7c00);
+    if (exp <= 0) {  // subnormal half
+      if (exp < -10) return (short) sign;
+      mant |= 0x800000;
+      int shift = 14-exp;
+      int h = mant >> shift;
+      int rem = mant & ((1 << shift)-1), halfway = 1 << (shift-1);
+      if (rem > halfway || (rem == halfway && (h & 1) != 0)) h++;
+      return (short) (sign | h);
+    }
+    int h = (exp << 10) | (mant >> 13);
+    int rem = mant & 0x1fff;
+    if (rem > 0x1000 || (rem == 0x1000 && (h & 1) != 0)) h++;  // may carry into the exponent, which is correct
+    return (short) (sign | h);
+  }
+
+  /**
+   * Converts a 16-bit IEEE 754 half float to a float. The conversion is exact.
+   *
+   * @param  h  the half float bits
+   * @return  the float
+   */
+  public static float halfToFloat(short h) {
+    int bits = h & 0xffff;
+    int sign = (bits & 0x8000) << 16;
+    int exp = (bits >>> 10) & 0x1f;
+    int mant = bits & 0x3ff;
+    if (exp == 31) return Float.intBitsToFloat(sign | 0x7f800000 | (mant << 13));
+    if (exp != 0) return Float.intBitsToFloat(sign | ((exp-15+127) << 23) | (mant << 13));
+    float f = mant*5.9604645e-8f;  // subnormal: mant * 2^-24
+    return (sign != 0) ? -f : f;
+  }
+
+}
@@ -0,0 +1,260 @@
+/**
+ * Saves every rendered frame to disk, e.g. to export the animation, without holding up rendering.
+ * glReadPixels into client memory makes the CPU wait until the GPU has finished the frame. Instead,
+ * each frame is read into one of a ring of pixel buffer objects (GL_PIXEL_PACK_BUFFER), which returns
+ * straight away, and the buffer is only mapped RING_SIZE-1 frames later, by which time the copy has
+ * finished. The pixels are copied out of the mapped buffer and handed to a small pool of worker
+ * threads, which flip them the right way up (OpenGL's rows start at the bottom) and write them as
+ * PNG files or raw files. The queue of frames waiting for a worker is bounded: if the workers fall
+ * behind, capture(...) waits for them rather than using more and more memory.
+ * Raw files hold the pixels as bytes r,g,b,a, row by row from the top, with no header; the frames
+ * of a sequence can be joined into one file, e.g. for ffmpeg -f rawvideo -pixel_format rgba.
+ * The time capture(...) takes on the rendering thread is measured, see toString().
+ * Typical use:
+ *   FrameCapture capture = new FrameCapture(new File("frames"), FrameCapture.PNG);
+ *   ...
+ *   scene.render(gl);
+ *   capture.capture(gl, width, height);   // every frame
+ *   ...
+ *   capture.finish(gl);   // writes the frames still in the ring, and waits for the workers
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import java.awt.image.*;
+import javax.imageio.*;
+import com.jogamp.opengl.*;
+
+public class FrameCapture {
+
+  public static final int PNG = 0;
+  public static final int RAW = 1;
+  private static final String[] EXTENSIONS = {"png", "raw"};
+
+  public static final int RING_SIZE = 3;
+  public static final int QUEUE_SIZE = 8;
+
+  private File directory;
+  private int format;
+  private int workers;
+
+  private int[] pbos;
+  private int[] pboFrame = new int[RING_SIZE];   // the frame in each buffer; -1 if none
+  private int pboWidth, pboHeight;
+  private int next;                              // the buffer the next frame is read into
+  private int frame;                             // the number of the next frame
+
+  private ThreadPoolExecutor pool;
+  private BlockingQueue<int[]> freeArrays;       // pixel arrays to reuse, so that each frame does not make garbage
+  private volatile IOException error;
+
+  private long captureNanos, maxCaptureNanos, writeNanos;
+  private int captured, framesWritten;
+
+  /**
+   * Constructor. Uses as many workers as there are cores, less one for the rendering thread.
+   *
+   * @param  directory  where to write the frames, as frame00000.png, frame00001.png, ...;
+   *                    it is made if it does not exist
+   * @param  format     PNG or RAW
+   */
+  public FrameCapture(File directory, int format) {
+    this(directory, format, Math.max(1, Runtime.getRuntime().availableProcessors()-1));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param  directory  where to write the frames
+   * @param  format     PNG or RAW
+   * @param  workers    the number of threads that write frames
+   */
+  public FrameCapture(File directory, int format, int workers) {
+    this.directory = directory;
+    this.format = format;
+    this.workers = workers;
+    directory.mkdirs();
+    freeArrays = new ArrayBlockingQueue<int[]>(QUEUE_SIZE+workers+1);
+    // put() on the queue, rather than a rejection policy, makes capture(...) wait when it is full
+    pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE)) {
+      public void execute(Runnable r) {
+        try {
+          getQueue().put(r);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    pool.prestartAllCoreThreads();
+  }
+
+  /**
+   * Starts reading back the frame just rendered, and hands on the frame read RING_SIZE-1 frames ago.
+   * Call after rendering, before the buffers are swapped.
+   *
+   * @param  gl      the OpenGL context.
+   * @param  width   the width of the frame in pixels
+   * @param  height  the height of the frame in pixels
+   * @throws  IOException  if an earlier frame could not be read back or written
+   */
+  public void capture(GL2 gl, int width, int height) throws IOException {
+    if (error != null) throw error;
+    long start = System.nanoTime();
+    if (pbos == null || width != pboWidth || height != pboHeight) {
+      if (pbos != null) finish(gl, false);
+      createBuffers(gl, width, height);
+    }
+    gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pbos[next]);
+    gl.glReadPixels(0, 0, width, height, GL2.GL_BGRA, GL2.GL_UNSIGNED_BYTE, 0);  // into the buffer; returns at once
+    pboFrame[next] = frame++;
+    next = (next+1)%RING_SIZE;
+    if (pboFrame[next] >= 0) handOn(gl, next);  // the oldest, which was read RING_SIZE-1 frames ago
+    gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+    long t = System.nanoTime()-start;
+    captureNanos += t;
+    maxCaptureNanos = Math.max(maxCaptureNanos, t);
+    captured++;
+  }
+
+  private void createBuffers(GL2 gl, int width, int height) {
+    pbos = new int[RING_SIZE];
+    gl.glGenBuffers(RING_SIZE, pbos, 0);
+    for (int i=0; i<RING_SIZE; i++) {
+      gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pbos[i]);
+      gl.glBufferData(GL2.GL_PIXEL_PACK_BUFFER, (long) width*height*4, null, GL2.GL_STREAM_READ);
+      pboFrame[i] = -1;
+    }
+    gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+    gl.glPixelStorei(GL2.GL_PACK_ALIGNMENT, 4);
+    pboWidth = width;
+    pboHeight = height;
+    next = 0;
+    freeArrays.clear();
+  }
+
+  /* Copies the pixels out of a buffer and gives them to a worker. If the buffer cannot be mapped,
+     the frame is lost, and the error is kept for the next capture(...) or finish(...) to report */
+  private void handOn(GL2 gl, int i) {
+    gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, pbos[i]);
+    ByteBuffer mapped = gl.glMapBuffer(GL2.GL_PIXEL_PACK_BUFFER, GL2.GL_READ_ONLY);
+    final int width = pboWidth, height = pboHeight, number = pboFrame[i];
+    pboFrame[i] = -1;
+    if (mapped == null) {
+      gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+      error = new IOException("Could not map the pixel buffer holding frame "+number);
+      return;
+    }
+    int[] pixels = freeArrays.poll();
+    if (pixels == null || pixels.length != width*height) pixels = new int[width*height];
+    // GL_BGRA bytes are ARGB ints when read little-endian
+    mapped.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(pixels);
+    gl.glUnmapBuffer(GL2.GL_PIXEL_PACK_BUFFER);
+    final int[] p = pixels;
+    pool.execute(new Runnable() {
+      public void run() {
+        write(p, width, height, number);
+      }
+    });
+  }
+
+  /* On a worker thread */
+  private void write(int[] pixels, int width, int height, int number) {
+    long start = System.nanoTime();
+    File f = new File(directory, String.format("frame%05d.%s", number, EXTENSIONS[format]));
+    try {
+      if (format == PNG) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        for (int y=0; y<height; y++)
+          System.arraycopy(pixels, (height-1-y)*width, data, y*width, width);
+        ImageIO.write(img, "png", f);
+      }
+      else {
+        byte[] row = new byte[width*4];
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16);
+        try {
+          for (int y=height-1; y>=0; y--) {
+            for (int x=0, o=y*width; x<width; x++, o++) {
+              int c = pixels[o];
+              row[x*4] = (byte) (c >> 16);
+              row[x*4+1] = (byte) (c >> 8);
+              row[x*4+2] = (byte) c;
+              row[x*4+3] = (byte) (c >>> 24);
+            }
+            out.write(row);
+          }
+        }
+        finally {
+          out.close();
+        }
+      }
+    }
+    catch (IOException e) {
+      error = e;
+    }
+    freeArrays.offer(pixels);
+    synchronized (this) {
+      writeNanos += System.nanoTime()-start;
+      framesWritten++;
+    }
+  }
+
+  /**
+   * Hands on the frames still in the ring, waits for all the frames to be written and frees the
+   * buffers and the workers.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void finish(GL2 gl) throws IOException {
+    finish(gl, true);
+    if (error != null) throw error;
+  }
+
+  private void finish(GL2 gl, boolean stopWorkers) {
+    if (pbos != null) {
+      for (int k=0; k<RING_SIZE; k++) {
+        int i = (next+k)%RING_SIZE;  // oldest first
+        if (pboFrame[i] >= 0) handOn(gl, i);
+      }
+      gl.glBindBuffer(GL2.GL_PIXEL_PACK_BUFFER, 0);
+      gl.glDeleteBuffers(RING_SIZE, pbos, 0);
+      pbos = null;
+    }
+    if (stopWorkers) {
+      pool.shutdown();
+      try {
+        pool.awaitTermination(1, TimeUnit.HOURS);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public int getNumCaptured() { return captured; }
+
+  public synchronized int getNumWritten() { return framesWritten; }
+
+  /**
+   * The mean time capture(...) has taken on the rendering thread.
+   *
+   * @return  the time in milliseconds
+   */
+  public double getMeanCaptureTime() {
+    return (captured == 0) ? 0 : captureNanos/1e6/captured;
+  }
+
+  public double getMaxCaptureTime() {
+    return maxCaptureNanos/1e6;
+  }
+
+  public synchronized String toString() {
+    return "Frame capture: "+captured+" frames captured, "+framesWritten+" written by "+workers+" workers; "
+           +String.format("%.3f ms per frame on the rendering thread (max %.3f), %.1f ms to write each",
+                          getMeanCaptureTime(), getMaxCaptureTime(),
+                          (framesWritten == 0) ? 0 : writeNanos/1e6/framesWritten);
+  }
+
+}
@@ -0,0 +1,162 @@
+/**
+ * Keeps the animation's time step separate from the frame rate.
+ * The AnimationScene is moved on by a fixed tick (1/TICK_RATE seconds of the real time), as many
+ * ticks per frame as the time since the last frame needs, so the animation runs at the same speed
+ * whatever the frame rate. A frame drawn part of the way through a tick shows the animation that
+ * far between the last two ticks (AnimationScene.setBlend(...)), so the motion is smooth even when
+ * frames and ticks do not line up. The scene shown is up to one tick behind the real time.
+ * The pacer also chooses the frame rate to aim for, from RATES: it measures the time between frames
+ * and the time spent drawing each, and steps down to the next lower rate when frames keep arriving
+ * late, or up to the next higher rate when drawing takes well under the time a frame would have.
+ * A rate is kept for at least a hold time, which doubles each time a step up has to be undone
+ * (up to MAX_HOLD_TIME), so that the rate does not swing up and down on a machine that can nearly
+ * manage the higher rate.
+ * Typical use, each frame:
+ *   pacer.beginFrame();   // runs the ticks that are due
+ *   scene.render(gl);
+ *   pacer.endFrame();
+ *   if (pacer.getTargetFps() != animator.getFPS()) ...change the animator's rate...
+ */
+
+public class FramePacer {
+
+  public static final double TICK_RATE = 60;
+  public static final int[] RATES = {60, 30, 20, 15};
+  public static final double MAX_CATCH_UP = 0.25;  // the most time a frame can move the animation on
+  public static final double LATE = 1.2;           // frames this much later than the rate are late
+  public static final double SPARE = 0.5;          // step up when drawing takes this much of the higher rate's frame time
+  public static final double HOLD_TIME = 1;
+  public static final double MAX_HOLD_TIME = 16;
+  private static final double SMOOTHING = 0.1;     // the weight of the newest time in the running means
+
+  private AnimationScene animation;
+  private double tick;
+  private double accumulator;      // the real time not yet ticked
+  private long lastFrame = -1;     // System.nanoTime() at the last beginFrame(); -1 if none since restart()
+  private long frameStart;
+
+  private int rate = 0;            // index into RATES
+  private double meanInterval, meanWork;
+  private double held, holdTime = HOLD_TIME;
+  private boolean steppedUp;       // the last change was a step up
+  private int ticks, frames;
+
+  /**
+   * Constructor. Puts the animation on its simulated clock (AnimationScene.setFixedClock(...)),
+   * which is then moved on only by the pacer. The animation is reset.
+   *
+   * @param  animation  the animation to move on; null to only choose the frame rate, e.g. when a
+   *                    SimulationThread moves the animation on
+   */
+  public FramePacer(AnimationScene animation) {
+    this(animation, TICK_RATE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param  animation  the animation to move on
+   * @param  tickRate   the number of ticks per second
+   */
+  public FramePacer(AnimationScene animation, double tickRate) {
+    this.animation = animation;
+    tick = 1/tickRate;
+    if (animation != null) animation.setFixedClock(true);
+    meanInterval = 1.0/RATES[rate];
+  }
+
+  /**
+   * Starts timing afresh, e.g. when the animation is started again after a pause, so that the
+   * time it was paused for is not ticked.
+   */
+  public void restart() {
+    lastFrame = -1;
+    accumulator = 0;
+    if (animation != null) {
+      animation.update();
+      animation.setBlend(1);
+    }
+  }
+
+  /**
+   * Call at the start of each frame. Runs the ticks that are due and sets how far between the
+   * last two the frame is.
+   */
+  public void beginFrame() {
+    long now = System.nanoTime();
+    if (lastFrame >= 0) {
+      double interval = (now-lastFrame)/1e9;
+      meanInterval += (interval-meanInterval)*SMOOTHING;
+      held += interval;
+      accumulator += Math.min(interval, MAX_CATCH_UP);
+    }
+    lastFrame = now;
+    frameStart = now;
+    if (animation == null) return;
+    while (accumulator >= tick) {
+      animation.advanceClock(tick);
+      animation.update();
+      accumulator -= tick;
+      ticks++;
+    }
+    animation.setBlend(accumulator/tick);
+  }
+
+  /**
+   * Call at the end of each frame, after drawing it. Updates the target frame rate.
+   */
+  public void endFrame() {
+    double work = (System.nanoTime()-frameStart)/1e9;
+    meanWork += (work-meanWork)*SMOOTHING;
+    frames++;
+    if (held < holdTime) return;
+    if (rate < RATES.length-1 && meanInterval > LATE/RATES[rate]) {
+      if (steppedUp) holdTime = Math.min(holdTime*2, MAX_HOLD_TIME);  // the step up was too far
+      setRate(rate+1);
+      steppedUp = false;
+    }
+    else if (rate > 0 && meanWork < SPARE/RATES[rate-1]) {
+      setRate(rate-1);
+      steppedUp = true;
+    }
+  }
+
+  private void setRate(int r) {
+    rate = r;
+    meanInterval = 1.0/RATES[rate];
+    held = 0;
+  }
+
+  /**
+   * The frame rate to aim for.
+   *
+   * @return  one of RATES
+   */
+  public int getTargetFps() {
+    return RATES[rate];
+  }
+
+  /**
+   * The mean time between frames.
+   *
+   * @return  the time in seconds
+   */
+  public double getMeanInterval() {
+    return meanInterval;
+  }
+
+  /**
+   * The mean time between beginFrame() and endFrame().
+   *
+   * @return  the time in seconds
+   */
+  public double getMeanWork() {
+    return meanWork;
+  }
+
+  public String toString() {
+    return "Frame pacing: "+ticks+" ticks in "+frames+" frames, aiming for "+RATES[rate]+" frames per second; "
+           +String.format("%.1f ms between frames, %.1f ms drawing", meanInterval*1000, meanWork*1000);
+  }
+
+}
@@ -0,0 +1,152 @@
+/**
+ * The view frustum, as six planes in world coordinates, for skipping objects that cannot be seen.
+ * The planes are taken from the combined projection and view matrix (the Gribb and Hartmann method):
+ * a point is inside if it is on the inner side of all six planes.
+ * Objects are tested by their bounding sphere or axis-aligned bounding box. A test can say that an
+ * object is visible when it is not (e.g. a box just outside a corner of the frustum), but never the
+ * other way round, so nothing that should be seen is skipped.
+ * The numbers of objects found visible and culled are counted, and reset each time set(...) is called.
+ * Typical use, every frame:
+ *   frustum.set(projection, camera.getViewMatrix());
+ *   if (frustum.isSphereVisible(x,y,z,radius)) ...draw it...
+ */
+
+public class Frustum {
+
+  private static final int NUM_PLANES = 6;
+
+  private double[][] planes = new double[NUM_PLANES][4];  // a,b,c,d, with ax+by+cz+d >= 0 inside
+  private boolean enabled = true;
+  private int visible, culled;
+
+  /**
+   * Constructor. Until set(...) is called, everything is visible.
+   */
+  public Frustum() {
+    for (double[] p : planes)
+      p[3] = 1;
+  }
+
+  /**
+   * Sets the planes from the projection and view (i.e. camera) transformations.
+   *
+   * @param  projection  as set up by glFrustum
+   * @param  view        as set up by gluLookAt
+   */
+  public void set(Matrix4 projection, Matrix4 view) {
+    Matrix4 clip = (Matrix4) projection.clone();
+    clip.multiply(view);
+    set(clip);
+  }
+
+  /**
+   * Sets the planes from the combined projection and view transformation.
+   *
+   * @param  clip  projection*view, which takes world coordinates to clip coordinates
+   */
+  public void set(Matrix4 clip) {
+    double[] m = clip.getValues();
+    for (int i=0; i<NUM_PLANES; i++) {
+      int row = i/2;
+      double sign = (i%2 == 0) ? 1 : -1;  // left, right, bottom, top, near, far
+      double[] p = planes[i];
+      for (int c=0; c<4; c++)
+        p[c] = m[c*4+3] + sign*m[c*4+row];
+      double mag = Math.sqrt(p[0]*p[0]+p[1]*p[1]+p[2]*p[2]);
+      if (mag > 0) {
+        for (int c=0; c<4; c++)
+          p[c] /= mag;
+      }
+    }
+    resetCounts();
+  }
+
+  /**
+   * Sets whether anything is culled.
+   *
+   * @param  b  false to make every object visible, e.g. to compare the effect
+   */
+  public void setEnabled(boolean b) {
+    enabled = b;
+  }
+
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Tests a sphere.
+   *
+   * @param  x,y,z   the centre, in world coordinates
+   * @param  radius  the radius
+   * @return  false if the sphere is certainly outside the frustum
+   */
+  public boolean isSphereVisible(double x, double y, double z, double radius) {
+    boolean in = true;
+    if (enabled) {
+      for (int i=0; i<NUM_PLANES && in; i++) {
+        double[] p = planes[i];
+        if (p[0]*x + p[1]*y + p[2]*z + p[3] < -radius) in = false;
+      }
+    }
+    return count(in);
+  }
+
+  /**
+   * Tests an axis-aligned box.
+   *
+   * @param  min  the minimum x,y,z, in world coordinates
+   * @param  max  the maximum x,y,z
+   * @return  false if the box is certainly outside the frustum
+   */
+  public boolean isBoxVisible(double[] min, double[] max) {
+    boolean in = true;
+    if (enabled) {
+      for (int i=0; i<NUM_PLANES && in; i++) {
+        double[] p = planes[i];
+        // the corner furthest along the plane's normal is outside only if the whole box is
+        double x = (p[0] >= 0) ? max[0] : min[0];
+        double y = (p[1] >= 0) ? max[1] : min[1];
+        double z = (p[2] >= 0) ? max[2] : min[2];
+        if (p[0]*x + p[1]*y + p[2]*z + p[3] < 0) in = false;
+      }
+    }
+    return count(in);
+  }
+
+  /**
+   * Tests a BoundingBox, e.g. of a Mesh whose vertices are in world coordinates.
+   */
+  public boolean isBoxVisible(BoundingBox box) {
+    return isBoxVisible(box.getMinimumBounds(), box.getMaximumBounds());
+  }
+
+  private boolean count(boolean in) {
+    if (in) visible++;
+    else culled++;
+    return in;
+  }
+
+  /**
+   * The number of tests that found an object visible since the last set(...) or resetCounts().
+   *
+   * @return  the number of objects visible
+   */
+  public int getNumVisible() { return visible; }
+
+  /**
+   * The number of tests that found an object outside the frustum since the last set(...) or resetCounts().
+   *
+   * @return  the number of objects culled
+   */
+  public int getNumCulled() { return culled; }
+
+  public void resetCounts() {
+    visible = culled = 0;
+  }
+
+  public String toString() {
+    return "Frustum culling: "+visible+" visible, "+culled+" culled";
+  }
+
+}
@@ -0,0 +1,475 @@
+/**
+ * Sits in front of GL2 for the state that the scene sets over and over again: the material,
+ * the bound texture, the texture environment mode, enabled capabilities (e.g. lights and GL_LIGHTING),
+ * light parameters and the polygon mode. Each call is compared with the value last set and
+ * is only passed on to OpenGL if it would change something.
+ * The number of calls passed on and the number avoided are counted, so the saving can be seen.
+ * Anything not yet set through the cache is unknown, so the first call always gets through.
+ * Whether a capability is enabled can also be asked (see isEnabled(...)) without a round trip to OpenGL.
+ * The cache only knows about calls made through it. If the state is changed in some other way,
+ * then invalidate() must be called.
+ * While a display list is being compiled (see beginList()), calls are always passed on and the
+ * cache is not changed, since the list must contain every call and compiling does not change the state.
+ * Instead, the state the list leaves set is recorded, and after each glCallList of the list,
+ * listCalled(...) updates the cache with it.
+ * A call makes no objects once the cache has seen each capability and texture target, and
+ * material(gl, face, Material) reads the Material's values without cloning them, so callers that
+ * keep their value arrays (rather than making new ones each frame) make no garbage per frame.
+ * The light position and spot direction are always passed on, as OpenGL transforms them by the
+ * current modelview matrix when they are set.
+ * Only texture unit 0 is tracked.
+ * Typical use:
+ *   GLStateCache state = new GLStateCache();
+ *   state.material(gl, GL2.GL_FRONT, GL2.GL_DIFFUSE, diffuse);
+ *   state.bindTexture(gl, tex);
+ *   ...
+ *   System.out.println(state);   // calls issued and avoided
+ */
+
+import java.util.*;
+import com.jogamp.opengl.*;
+import com.jogamp.opengl.util.texture.*;
+
+public class GLStateCache {
+
+  private static final int NUM_LIGHTS = 8;
+  private static final int MAX_VALUES = 4;    // the most values in any parameter that is cached
+  private static final int[] MATERIAL_PARAMS = {GL2.GL_AMBIENT, GL2.GL_DIFFUSE, GL2.GL_SPECULAR,
+                                                GL2.GL_EMISSION, GL2.GL_SHININESS};
+  private static final int[] LIGHT_PARAMS = {GL2.GL_AMBIENT, GL2.GL_DIFFUSE, GL2.GL_SPECULAR,
+                                             GL2.GL_SPOT_CUTOFF, GL2.GL_SPOT_EXPONENT, GL2.GL_CONSTANT_ATTENUATION,
+                                             GL2.GL_LINEAR_ATTENUATION, GL2.GL_QUADRATIC_ATTENUATION};
+  // indices into the state arrays for each face and material parameter, so that no arrays are made per call
+  private static final int[] FRONT = {0}, BACK = {1}, FRONT_AND_BACK = {0, 1};
+  private static final int[] AMBIENT_AND_DIFFUSE = {0, 1};
+  private static final int[][] MATERIAL_PARAM = {{0}, {1}, {2}, {3}, {4}};
+  private static final int UNKNOWN = -1;
+
+  private boolean enabled;
+  private boolean compiling = false;
+  private GLStateCache listState;  // while compiling, the state the list leaves set
+  private long callsIssued, callsAvoided;
+
+  private float[][][] material = new float[2][MATERIAL_PARAMS.length][MAX_VALUES];  // [face][param]
+  private int[][] materialLength = new int[2][MATERIAL_PARAMS.length];             // UNKNOWN if not known
+  private float[][][] light = new float[NUM_LIGHTS][LIGHT_PARAMS.length][MAX_VALUES];
+  private int[][] lightLength = new int[NUM_LIGHTS][LIGHT_PARAMS.length];
+  private float[] single = new float[1];     // for the calls that take one value
+  private int[] capKeys = new int[16];       // the capabilities known, and whether each is enabled
+  private boolean[] capOn = new boolean[16];
+  private int numCaps;
+  private int[] textureTargets = new int[4];  // the texture targets known, and the texture bound to each
+  private int[] boundTextures = new int[4];
+  private int numTextureTargets;
+  private int textureEnvMode;
+  private int[] polygonMode = new int[2];
+
+  /**
+   * Constructor. Redundant calls are dropped.
+   */
+  public GLStateCache() {
+    this(true);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param  enabled  false to pass every call on, e.g. to compare the effect, or for objects
+   *                  that are drawn without a shared cache
+   */
+  public GLStateCache(boolean enabled) {
+    this.enabled = enabled;
+    invalidate();
+  }
+
+  public void setEnabled(boolean b) {
+    enabled = b;
+    invalidate();
+  }
+
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Forgets all the state, so that the next call of each kind is passed on.
+   * Must be called after the state has been changed without using the cache.
+   */
+  public void invalidate() {
+    for (int[] f : materialLength) Arrays.fill(f, UNKNOWN);
+    for (int[] l : lightLength) Arrays.fill(l, UNKNOWN);
+    numCaps = 0;
+    numTextureTargets = 0;
+    textureEnvMode = UNKNOWN;
+    polygonMode[0] = polygonMode[1] = UNKNOWN;
+  }
+
+  /**
+   * Call just after glNewList(..., GL_COMPILE). Until endList() is called, every call is passed
+   * on so that it is recorded in the list, and the cache is left as it is.
+   */
+  public void beginList() {
+    compiling = true;
+    listState = new GLStateCache(false);
+  }
+
+  /**
+   * Call just before glEndList().
+   *
+   * @return  the state the list leaves set, to pass to listCalled(...) after each glCallList
+   */
+  public GLStateCache endList() {
+    compiling = false;
+    GLStateCache s = listState;
+    listState = null;
+    return s;
+  }
+
+  /**
+   * Updates the cache after glCallList, with the state the list leaves set. The rest of the
+   * cache is still right, as the list made no other changes through the cache.
+   *
+   * @param  list  the state returned by endList() when the list was compiled; null to forget everything
+   */
+  public void listCalled(GLStateCache list) {
+    if (list == null) {
+      invalidate();
+      return;
+    }
+    for (int f=0; f<2; f++)
+      for (int p=0; p<MATERIAL_PARAMS.length; p++)
+        if (list.materialLength[f][p] != UNKNOWN) store(material[f][p], materialLength[f], p, list.material[f][p], list.materialLength[f][p]);
+    for (int l=0; l<NUM_LIGHTS; l++)
+      for (int p=0; p<LIGHT_PARAMS.length; p++)
+        if (list.lightLength[l][p] != UNKNOWN) store(light[l][p], lightLength[l], p, list.light[l][p], list.lightLength[l][p]);
+    for (int i=0; i<list.numCaps; i++)
+      storeCap(list.capKeys[i], list.capOn[i]);
+    for (int i=0; i<list.numTextureTargets; i++)
+      storeTexture(list.textureTargets[i], list.boundTextures[i]);
+    if (list.textureEnvMode != UNKNOWN) textureEnvMode = list.textureEnvMode;
+    for (int f=0; f<2; f++)
+      if (list.polygonMode[f] != UNKNOWN) polygonMode[f] = list.polygonMode[f];
+  }
+
+  /* where calls are recorded: this cache, or while compiling, the state the list leaves */
+  private GLStateCache target() {
+    return compiling ? listState : this;
+  }
+
+/* Materials ******************************************************************
+*/
+
+  /**
+   * As glMaterialfv(face, pname, values, 0).
+   *
+   * @param  face    GL_FRONT, GL_BACK or GL_FRONT_AND_BACK
+   * @param  pname   GL_AMBIENT, GL_DIFFUSE, GL_AMBIENT_AND_DIFFUSE, GL_SPECULAR, GL_EMISSION or GL_SHININESS
+   * @param  values  the values
+   */
+  public void material(GL2 gl, int face, int pname, float[] values) {
+    int[] faces = materialFaces(face);
+    int[] params = materialParams(pname);
+    if (tracking() && sameMaterial(faces, params, values, values.length)) {
+      callsAvoided++;
+      return;
+    }
+    gl.glMaterialfv(face, pname, values, 0);
+    callsIssued++;
+    target().storeMaterial(faces, params, values, values.length);
+  }
+
+  /**
+   * As glMaterialf(face, pname, value), e.g. for GL_SHININESS.
+   */
+  public void material(GL2 gl, int face, int pname, float value) {
+    int[] faces = materialFaces(face);
+    int[] params = materialParams(pname);
+    single[0] = value;
+    if (tracking() && sameMaterial(faces, params, single, 1)) {
+      callsAvoided++;
+      return;
+    }
+    gl.glMaterialf(face, pname, value);
+    callsIssued++;
+    target().storeMaterial(faces, params, single, 1);
+  }
+
+  /**
+   * Sets the ambient, diffuse, specular, emission and shininess of a Material.
+   *
+   * @param  face      GL_FRONT, GL_BACK or GL_FRONT_AND_BACK
+   * @param  material  the Material
+   */
+  public void material(GL2 gl, int face, Material material) {
+    material(gl, face, GL2.GL_AMBIENT, material.ambientValues());
+    material(gl, face, GL2.GL_DIFFUSE, material.diffuseValues());
+    material(gl, face, GL2.GL_SPECULAR, material.specularValues());
+    material(gl, face, GL2.GL_EMISSION, material.emissionValues());
+    material(gl, face, GL2.GL_SHININESS, material.getShininess());
+  }
+
+  private boolean sameMaterial(int[] faces, int[] params, float[] values, int n) {
+    if (faces == null || params == null) return false;
+    for (int f : faces)
+      for (int p : params)
+        if (!same(material[f][p], materialLength[f][p], values, n)) return false;
+    return true;
+  }
+
+  private void storeMaterial(int[] faces, int[] params, float[] values, int n) {
+    if (faces == null || params == null) return;
+    for (int f : faces)
+      for (int p : params)
+        store(material[f][p], materialLength[f], p, values, n);
+  }
+
+  private static int[] materialFaces(int face) {
+    if (face == GL2.GL_FRONT) return FRONT;
+    if (face == GL2.GL_BACK) return BACK;
+    if (face == GL2.GL_FRONT_AND_BACK) return FRONT_AND_BACK;
+    return null;
+  }
+
+  private static int[] materialParams(int pname) {
+    if (pname == GL2.GL_AMBIENT_AND_DIFFUSE) return AMBIENT_AND_DIFFUSE;
+    int p = indexOf(MATERIAL_PARAMS, pname);
+    return (p >= 0) ? MATERIAL_PARAM[p] : null;
+  }
+
+/* Capabilities and lights ******************************************************************
+*/
+
+  /**
+   * As glEnable(cap).
+   */
+  public void enable(GL2 gl, int cap) {
+    setCap(gl, cap, true);
+  }
+
+  /**
+   * As glDisable(cap).
+   */
+  public void disable(GL2 gl, int cap) {
+    setCap(gl, cap, false);
+  }
+
+  private void setCap(GL2 gl, int cap, boolean on) {
+    int i = indexOf(capKeys, numCaps, cap);
+    if (tracking() && i >= 0 && capOn[i] == on) {
+      callsAvoided++;
+      return;
+    }
+    if (on) gl.glEnable(cap);
+    else gl.glDisable(cap);
+    callsIssued++;
+    target().storeCap(cap, on);
+  }
+
+  /**
+   * As glIsEnabled(cap), but answered from the cache if the capability is known, so there is
+   * no round trip to OpenGL. Otherwise OpenGL is asked, and the answer is remembered.
+   */
+  public boolean isEnabled(GL2 gl, int cap) {
+    int i = indexOf(capKeys, numCaps, cap);
+    if (tracking() && i >= 0) {
+      callsAvoided++;
+      return capOn[i];
+    }
+    boolean on = gl.glIsEnabled(cap);
+    callsIssued++;
+    if (tracking()) storeCap(cap, on);
+    return on;
+  }
+
+  private void storeCap(int cap, boolean on) {
+    int i = indexOf(capKeys, numCaps, cap);
+    if (i < 0) {
+      if (numCaps == capKeys.length) {
+        capKeys = Arrays.copyOf(capKeys, numCaps*2);
+        capOn = Arrays.copyOf(capOn, numCaps*2);
+      }
+      i = numCaps++;
+      capKeys[i] = cap;
+    }
+    capOn[i] = on;
+  }
+
+  /**
+   * As glLightfv(light, pname, values, 0).
+   * GL_POSITION and GL_SPOT_DIRECTION are always passed on.
+   *
+   * @param  light   GL_LIGHT0 to GL_LIGHT7
+   * @param  pname   the parameter
+   * @param  values  the values
+   */
+  public void light(GL2 gl, int light, int pname, float[] values) {
+    int l = light-GL2.GL_LIGHT0;
+    int p = indexOf(LIGHT_PARAMS, pname);
+    boolean known = l >= 0 && l < NUM_LIGHTS && p >= 0;
+    if (known && tracking() && same(this.light[l][p], lightLength[l][p], values, values.length)) {
+      callsAvoided++;
+      return;
+    }
+    gl.glLightfv(light, pname, values, 0);
+    callsIssued++;
+    if (known) target().storeLight(l, p, values, values.length);
+  }
+
+  /**
+   * As glLightf(light, pname, value), e.g. for GL_SPOT_CUTOFF.
+   */
+  public void light(GL2 gl, int light, int pname, float value) {
+    int l = light-GL2.GL_LIGHT0;
+    int p = indexOf(LIGHT_PARAMS, pname);
+    single[0] = value;
+    boolean known = l >= 0 && l < NUM_LIGHTS && p >= 0;
+    if (known && tracking() && same(this.light[l][p], lightLength[l][p], single, 1)) {
+      callsAvoided++;
+      return;
+    }
+    gl.glLightf(light, pname, value);
+    callsIssued++;
+    if (known) target().storeLight(l, p, single, 1);
+  }
+
+  private void storeLight(int l, int p, float[] values, int n) {
+    store(light[l][p], lightLength[l], p, values, n);
+  }
+
+/* Textures ******************************************************************
+*/
+
+  /**
+   * As tex.enable(gl), i.e. enables the texture's target.
+   */
+  public void enableTexture(GL2 gl, Texture tex) {
+    enable(gl, tex.getTarget());
+  }
+
+  /**
+   * As tex.disable(gl).
+   */
+  public void disableTexture(GL2 gl, Texture tex) {
+    disable(gl, tex.getTarget());
+  }
+
+  /**
+   * As tex.bind(gl).
+   */
+  public void bindTexture(GL2 gl, Texture tex) {
+    int target = tex.getTarget(), id = tex.getTextureObject();
+    int i = indexOf(textureTargets, numTextureTargets, target);
+    if (tracking() && i >= 0 && boundTextures[i] == id) {
+      callsAvoided++;
+      return;
+    }
+    gl.glBindTexture(target, id);
+    callsIssued++;
+    target().storeTexture(target, id);
+  }
+
+  private void storeTexture(int target, int id) {
+    int i = indexOf(textureTargets, numTextureTargets, target);
+    if (i < 0) {
+      if (numTextureTargets == textureTargets.length) {
+        textureTargets = Arrays.copyOf(textureTargets, numTextureTargets*2);
+        boundTextures = Arrays.copyOf(boundTextures, numTextureTargets*2);
+      }
+      i = numTextureTargets++;
+      textureTargets[i] = target;
+    }
+    boundTextures[i] = id;
+  }
+
+  /**
+   * As glTexEnvi(GL_TEXTURE_ENV, GL_TEXTURE_ENV_MODE, mode).
+   *
+   * @param  mode  e.g. GL_MODULATE
+   */
+  public void textureEnvMode(GL2 gl, int mode) {
+    if (tracking() && textureEnvMode == mode) {
+      callsAvoided++;
+      return;
+    }
+    gl.glTexEnvi(GL2.GL_TEXTURE_ENV, GL2.GL_TEXTURE_ENV_MODE, mode);
+    callsIssued++;
+    target().textureEnvMode = mode;
+  }
+
+/* Polygon mode ******************************************************************
+*/
+
+  /**
+   * As glPolygonMode(face, mode).
+   *
+   * @param  face  GL_FRONT, GL_BACK or GL_FRONT_AND_BACK
+   * @param  mode  GL_POINT, GL_LINE or GL_FILL
+   */
+  public void polygonMode(GL2 gl, int face, int mode) {
+    int[] faces = materialFaces(face);
+    boolean same = tracking() && faces != null;
+    if (same) {
+      for (int f : faces)
+        if (polygonMode[f] != mode) same = false;
+    }
+    if (same) {
+      callsAvoided++;
+      return;
+    }
+    gl.glPolygonMode(face, mode);
+    callsIssued++;
+    if (faces == null) return;
+    for (int f : faces)
+      target().polygonMode[f] = mode;
+  }
+
+/* Counts ******************************************************************
+*/
+
+  public long getCallsIssued() { return callsIssued; }
+
+  public long getCallsAvoided() { return callsAvoided; }
+
+  public void resetCounts() {
+    callsIssued = callsAvoided = 0;
+  }
+
+  private boolean tracking() {
+    return enabled && !compiling;
+  }
+
+  /* whether the n values are those stored, comparing as Arrays.equals(...) does */
+  private static boolean same(float[] stored, int length, float[] values, int n) {
+    if (length != n) return false;
+    for (int i=0; i<n; i++)
+      if (Float.floatToIntBits(stored[i]) != Float.floatToIntBits(values[i])) return false;
+    return true;
+  }
+
+  /* copies the n values into stored, and sets lengths[p]; values too long to store are forgotten */
+  private static void store(float[] stored, int[] lengths, int p, float[] values, int n) {
+    if (n > stored.length) {
+      lengths[p] = UNKNOWN;
+      return;
+    }
+    System.arraycopy(values, 0, stored, 0, n);
+    lengths[p] = n;
+  }
+
+  private static int indexOf(int[] list, int value) {
+    return indexOf(list, list.length, value);
+  }
+
+  private static int indexOf(int[] list, int n, int value) {
+    for (int i=0; i<n; i++)
+      if (list[i] == value) return i;
+    return -1;
+  }
+
+  public String toString() {
+    long total = callsIssued+callsAvoided;
+    return "GL state calls: "+callsIssued+" issued, "+callsAvoided+" avoided"
+           +((total > 0) ? " ("+(100*callsAvoided/total)+"%)" : "");
+  }
+
+}
@@ -20,16 +20,18 @@ public class House
   
   private Mesh meshPlane1,meshPlane2,meshPlane3,meshPlane4,meshPlane5,meshPlane6,meshPlane7;
 
-  public Render floor,wall1,wall2,wall3,wall4,ceil,window;
+  private StaticBatch batch;  // none of the house moves, so it is all drawn as one batch
+  private int renderMode = Render.BUFFER_OBJECT;
+  private GLStateCache state;
 
   private Texture floorTex,wall1Tex,wall2Tex,wall3Tex,wall4Tex,ceilTex,windowTex;
   
   public Texture lambTex;
 
  
-  public House()
+  public House(GLStateCache state)
   {
-  	
+    this.state = state;
   }
 
   public void createRenderObjects(GL2 gl)
@@ -51,21 +53,50 @@ public class House
     meshPlane6 = ProceduralMeshFactory.createPlane(20,20,10,10,1,1);
     meshPlane7 = ProceduralMeshFactory.createPlane(5,4,10,10,1,1);
 
-    floor = new Render(meshPlane1, floorTex);
-    wall1 = new Render(meshPlane2, wall1Tex);
-    wall2 = new Render(meshPlane3, wall2Tex);
-    wall3 = new Render(meshPlane4, wall3Tex);
-    wall4 = new Render(meshPlane5, wall4Tex);
-    ceil = new Render(meshPlane6, ceilTex);
-    window = new Render(meshPlane7, windowTex);
-
-    floor.initialiseDisplayList(gl, true);
-    wall1.initialiseDisplayList(gl, true);
-    wall2.initialiseDisplayList(gl, true);
-    wall3.initialiseDisplayList(gl, true);
-    wall4.initialiseDisplayList(gl, true);
-    ceil.initialiseDisplayList(gl, true);
-    window.initialiseDisplayList(gl,true);
+    // The transformations place each plane in the world, as the matrix calls in displayHouse used to
+    batch = new StaticBatch();
+    batch.setMode(renderMode);
+    batch.setStateCache(state);
+    Matrix4 m;
+    //floor
+    batch.add(meshPlane1, floorTex, null);
+    //wall1
+    m = new Matrix4();
+    m.translate(10,0,0);
+    m.rotate(90,0,-1,0);
+    m.rotate(90,1,0,0);
+    m.translate(0,0,-6);
+    batch.add(meshPlane2, wall1Tex, m);
+    //wall2, with the window added first so that it is drawn on top of the wall
+    m = new Matrix4();
+    m.translate(-10,0,0);
+    m.rotate(90,0,1,0);
+    m.rotate(90,1,0,0);
+    m.translate(0,0,-6);
+    Matrix4 w = (Matrix4) m.clone();
+    w.translate(-5,0,0);
+    batch.add(meshPlane7, windowTex, w);
+    batch.add(meshPlane3, wall2Tex, m);
+    //wall3
+    m = new Matrix4();
+    m.translate(0,0,-10);
+    m.rotate(90,1,0,0);
+    m.translate(0,0,-6);
+    batch.add(meshPlane4, wall3Tex, m);
+    //wall4
+    m = new Matrix4();
+    m.translate(0,0,10);
+    m.rotate(180,0,1,0);
+    m.rotate(90,1,0,0);
+    m.translate(0,0,-6);
+    batch.add(meshPlane5, wall4Tex, m);
+    //ceiling
+    m = new Matrix4();
+    m.translate(0,12,0);
+    m.rotate(180,1,0,0);
+    batch.add(meshPlane6, ceilTex, m);
+    batch.build();
+    state.invalidate();   // loading the textures bound them
   }
 
   private Texture loadTexture(GL2 gl, String filename) {
@@ -97,56 +128,38 @@ public class House
     return tex;
   } 
   
+  public void setRenderMode(int mode)
+  {
+    renderMode = mode;
+    if (batch != null) batch.setMode(mode);
+  }
+
+  public int getRenderMode()
+  {
+    return renderMode;
+  }
+
+  // see Render.setUseCompactFormat(...)
+  public void setUseCompactFormat(boolean b)
+  {
+    if (batch != null) batch.setUseCompactFormat(b);
+  }
+
   public void displayHouse(GL2 gl)
   {
-    gl.glPushMatrix();
-      //floor
-      floor.renderDisplayList(gl);
-      //wall1
-      gl.glPushMatrix();
-        gl.glTranslated(10,0,0);
-        gl.glRotated(90,0,-1,0);
-        gl.glRotated(90,1,0,0);
-        gl.glTranslated(0,0,-6);
-        wall1.renderDisplayList(gl);
-      gl.glPopMatrix();
-
-      //wall2
-      gl.glPushMatrix();
-        gl.glTranslated(-10,0,0);
-        gl.glRotated(90,0,1,0);
-        gl.glRotated(90,1,0,0);
-        gl.glTranslated(0,0,-6);
-        gl.glPushMatrix();
-          gl.glTranslated(-5,0,0);
-          window.renderDisplayList(gl);
-        gl.glPopMatrix();
-        wall2.renderDisplayList(gl);
-      gl.glPopMatrix();
-      //wall3
-      gl.glPushMatrix();
-        gl.glTranslated(0,0,-10);
-        gl.glRotated(90,1,0,0);
-        gl.glTranslated(0,0,-6);
-        wall3.renderDisplayList(gl);
-      gl.glPopMatrix();
-      //wall4
-      gl.glPushMatrix();
-        gl.glTranslated(0,0,10);
-        gl.glRotated(180,0,1,0);
-        gl.glRotated(90,1,0,0);
-        gl.glTranslated(0,0,-6);
-        wall4.renderDisplayList(gl);
-      gl.glPopMatrix();
-      //ceiling
-      gl.glPushMatrix();
-        gl.glTranslated(0,12,0);
-        gl.glRotated(180,1,0,0);
-        ceil.renderDisplayList(gl);
-      gl.glPopMatrix();
-    gl.glPopMatrix();
+    batch.render(gl);
+  }
 
+  // as displayHouse, but the walls, floor and ceiling that are out of view are skipped
+  public void displayHouse(GL2 gl, Frustum frustum)
+  {
+    batch.render(gl, frustum);
+  }
 
+  // submits the floor, walls, window and ceiling that are in view to the queue, each with its own texture
+  public void submit(RenderQueue queue, Frustum frustum)
+  {
+    batch.submit(queue, RenderQueue.OPAQUE, frustum);
   }
 
 
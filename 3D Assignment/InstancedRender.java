@@ -0,0 +1,368 @@
+/**
+ * Draws many copies of one mesh, each with its own transformation and colour, with a single
+ * draw call however many copies there are.
+ * The mesh is held by a Render (e.g. one from a PrimitiveCache) and drawn from its buffer objects
+ * with glDrawElementsInstanced. The transformations and colours go in a buffer object of their own,
+ * 20 floats per instance (the 4x4 matrix in column-major order, then r,g,b,a), read by the vertex
+ * shader as vertex attributes that advance once per instance (glVertexAttribDivisor).
+ * Since a shader replaces the fixed-function lighting, the shader does the same lighting itself
+ * from the OpenGL light and material state: the instance colour is used as the ambient and diffuse
+ * material, and the current specular, shininess and emission are used as they are.
+ * If GL_TEXTURE_2D is enabled, the currently bound texture is modulated as with GL_MODULATE.
+ * If instancing is not available (it needs OpenGL 3.1, or ARB_draw_instanced and ARB_instanced_arrays),
+ * or the shader fails to compile, each instance is drawn in turn with the fixed-function pipeline instead.
+ * With draw(gl, frustum), instances whose bounding sphere is outside the view frustum are left out;
+ * the instance buffer is only filled again when the set of instances in view changes.
+ * Typical use:
+ *   InstancedRender lamps = new InstancedRender(primitives.getSphere(0.5, 20, 20));
+ *   Matrix4 m = new Matrix4(); m.translate(5,0,-5);
+ *   lamps.addInstance(m, new float[]{1,1,1,1});  ...
+ *   ...
+ *   lamps.draw(gl);   // every frame
+ */
+
+import java.nio.*;
+import java.util.*;
+import com.jogamp.opengl.*;
+import com.jogamp.common.nio.*;
+
+public class InstancedRender {
+
+  private static final int FLOATS_PER_INSTANCE = 20;
+  private static final int STRIDE = FLOATS_PER_INSTANCE*Buffers.SIZEOF_FLOAT;
+  private static final int MAX_LIGHTS = 8;
+
+  private static final String[] VERTEX_SHADER = {
+    "#version 120\n",
+    "attribute vec4 instanceColumn0, instanceColumn1, instanceColumn2, instanceColumn3;\n",
+    "attribute vec4 instanceColour;\n",
+    "varying vec3 eyePosition;\n",
+    "varying vec3 eyeNormal;\n",
+    "varying vec4 colour;\n",
+    "void main() {\n",
+    "  mat4 instance = mat4(instanceColumn0, instanceColumn1, instanceColumn2, instanceColumn3);\n",
+    "  vec4 eye = gl_ModelViewMatrix*(instance*gl_Vertex);\n",
+    "  eyePosition = eye.xyz;\n",
+    "  eyeNormal = gl_NormalMatrix*(mat3(instance[0].xyz, instance[1].xyz, instance[2].xyz)*gl_Normal);\n",
+    "  colour = instanceColour;\n",
+    "  gl_TexCoord[0] = gl_MultiTexCoord0;\n",
+    "  gl_Position = gl_ProjectionMatrix*eye;\n",
+    "}\n"
+  };
+
+  // As the fixed-function lighting, but per pixel, without attenuation (which the scene does not use)
+  private static final String[] FRAGMENT_SHADER = {
+    "#version 120\n",
+    "uniform bool lightOn["+MAX_LIGHTS+"];\n",
+    "uniform bool textured;\n",
+    "uniform sampler2D texture0;\n",
+    "varying vec3 eyePosition;\n",
+    "varying vec3 eyeNormal;\n",
+    "varying vec4 colour;\n",
+    "void main() {\n",
+    "  vec3 n = normalize(eyeNormal);\n",
+    "  vec3 result = gl_FrontMaterial.emission.rgb + gl_LightModel.ambient.rgb*colour.rgb;\n",
+    "  for (int i=0; i<"+MAX_LIGHTS+"; i++) {\n",
+    "    if (!lightOn[i]) continue;\n",
+    "    vec4 p = gl_LightSource[i].position;\n",
+    "    vec3 l = normalize((p.w == 0.0) ? p.xyz : p.xyz-eyePosition);\n",
+    "    float spot = 1.0;\n",
+    "    if (gl_LightSource[i].spotCutoff <= 90.0) {\n",
+    "      float c = dot(-l, normalize(gl_LightSource[i].spotDirection));\n",
+    "      spot = (c < gl_LightSource[i].spotCosCutoff) ? 0.0 : pow(max(c, 0.0), gl_LightSource[i].spotExponent);\n",
+    "    }\n",
+    "    float diffuse = max(dot(n, l), 0.0);\n",
+    "    float specular = 0.0;\n",
+    "    if (diffuse > 0.0) specular = pow(max(dot(n, normalize(l+vec3(0.0, 0.0, 1.0))), 0.0), gl_FrontMaterial.shininess);\n",
+    "    result += spot*(gl_LightSource[i].ambient.rgb*colour.rgb + diffuse*gl_LightSource[i].diffuse.rgb*colour.rgb\n",
+    "                    + specular*gl_LightSource[i].specular.rgb*gl_FrontMaterial.specular.rgb);\n",
+    "  }\n",
+    "  vec4 c = vec4(result, colour.a);\n",
+    "  if (textured) c *= texture2D(texture0, gl_TexCoord[0].st);\n",
+    "  gl_FragColor = c;\n",
+    "}\n"
+  };
+
+  private Render render;
+  private GLStateCache state = new GLStateCache(false);
+  private int numInstances;
+  private Matrix4[] transforms = new Matrix4[4];
+  private float[][] colours = new float[4][];
+  private int[] drawn = new int[4];   // the instances to draw, as uploaded to the instance buffer
+  private int numDrawn;
+  private double[] boundsCentre;      // bounding sphere of the mesh
+  private double boundsRadius;
+  private double[] point = new double[3];
+  private FloatBuffer instanceData;
+  private boolean dirty = true;
+  private boolean useInstancing = true;
+  private boolean instanced;
+
+  private int program;            // 0 until created; -1 if instancing cannot be used
+  private int instanceBuffer;
+  private int instanceBufferSize; // in instances
+  private int[] attributes = new int[5];
+  private int[] lightOnUniforms = new int[MAX_LIGHTS];
+  private int texturedUniform;
+
+  /**
+   * Constructor.
+   *
+   * @param  render  draws the mesh that is copied; it may also be used on its own
+   */
+  public InstancedRender(Render render) {
+    this.render = render;
+  }
+
+  /**
+   * Sets the cache through which the material is set when instancing is not available.
+   * The shader also reads which lights are on, and whether texturing is, from the cache.
+   *
+   * @param  state  the cache, usually shared by everything drawn in the scene
+   */
+  public void setStateCache(GLStateCache state) {
+    this.state = state;
+  }
+
+  /**
+   * Sets whether instancing is used if it is available. If not, the instances are drawn one at a time.
+   *
+   * @param  b  false to draw one instance at a time, e.g. for comparison
+   */
+  public void setUseInstancing(boolean b) {
+    useInstancing = b;
+  }
+
+  /**
+   * Whether the last call of draw(...) used instancing.
+   *
+   * @return  true if all the instances were drawn with one draw call
+   */
+  public boolean isInstanced() {
+    return instanced;
+  }
+
+  public int getNumInstances() { return numInstances; }
+
+  /**
+   * Adds an instance.
+   *
+   * @param  transform  places the instance in the world; it is copied
+   * @param  colour     r,g,b,a, used as the ambient and diffuse material
+   * @return  the index of the new instance
+   */
+  public int addInstance(Matrix4 transform, float[] colour) {
+    if (numInstances == transforms.length) {
+      transforms = Arrays.copyOf(transforms, numInstances*2);
+      colours = Arrays.copyOf(colours, numInstances*2);
+      drawn = Arrays.copyOf(drawn, numInstances*2);
+    }
+    transforms[numInstances] = (Matrix4) transform.clone();
+    colours[numInstances] = colour.clone();
+    dirty = true;
+    return numInstances++;
+  }
+
+  public void setTransform(int i, Matrix4 transform) {
+    transforms[i] = (Matrix4) transform.clone();
+    dirty = true;
+  }
+
+  public void setColour(int i, float[] colour) {
+    colours[i] = colour.clone();
+    dirty = true;
+  }
+
+  /**
+   * Removes all the instances.
+   */
+  public void clear() {
+    Arrays.fill(transforms, 0, numInstances, null);
+    Arrays.fill(colours, 0, numInstances, null);
+    numInstances = 0;
+    dirty = true;
+  }
+
+  /**
+   * Draws all the instances. The current modelview matrix should be the world (i.e. camera)
+   * transformation, and the specular, shininess and emission of the material should be set.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void draw(GL2 gl) {
+    draw(gl, null);
+  }
+
+  /**
+   * Draws the instances that are at least partly inside the view frustum.
+   *
+   * @param  gl       the OpenGL context.
+   * @param  frustum  the view frustum; null to draw every instance
+   */
+  public void draw(GL2 gl, Frustum frustum) {
+    instanced = false;
+    selectInstances(frustum);
+    if (numDrawn == 0) return;
+    if (useInstancing && program == 0) initialiseInstancing(gl);
+    if (!useInstancing || program < 0) {
+      drawEach(gl);
+      return;
+    }
+    if (dirty) uploadInstances(gl);
+    gl.glUseProgram(program);
+    for (int i=0; i<MAX_LIGHTS; i++)
+      gl.glUniform1i(lightOnUniforms[i], state.isEnabled(gl, GL2.GL_LIGHT0+i) ? 1 : 0);
+    gl.glUniform1i(texturedUniform, state.isEnabled(gl, GL2.GL_TEXTURE_2D) ? 1 : 0);
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, instanceBuffer);
+    for (int a=0; a<attributes.length; a++) {
+      if (attributes[a] < 0) continue;
+      gl.glEnableVertexAttribArray(attributes[a]);
+      gl.glVertexAttribPointer(attributes[a], 4, GL2.GL_FLOAT, false, STRIDE, (long) a*4*Buffers.SIZEOF_FLOAT);
+      gl.glVertexAttribDivisor(attributes[a], 1);
+    }
+    render.drawInstanced(gl, numDrawn);
+    for (int a=0; a<attributes.length; a++) {
+      if (attributes[a] < 0) continue;
+      gl.glVertexAttribDivisor(attributes[a], 0);
+      gl.glDisableVertexAttribArray(attributes[a]);
+    }
+    gl.glUseProgram(0);
+    instanced = true;
+  }
+
+  /* The fallback: one draw call per instance */
+  private void drawEach(GL2 gl) {
+    for (int k=0; k<numDrawn; k++) {
+      int i = drawn[k];
+      gl.glPushMatrix();
+        gl.glMultMatrixd(transforms[i].getValues(), 0);
+        state.material(gl, GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, colours[i]);
+        render.draw(gl);
+      gl.glPopMatrix();
+    }
+  }
+
+  /* Lists the instances to draw, and marks the instance buffer out of date if the list has changed */
+  private void selectInstances(Frustum frustum) {
+    int n = 0;
+    boolean changed = false;
+    for (int i=0; i<numInstances; i++) {
+      if (frustum != null && !isVisible(i, frustum)) continue;
+      if (n >= numDrawn || drawn[n] != i) changed = true;
+      drawn[n++] = i;
+    }
+    if (changed || n != numDrawn) dirty = true;
+    numDrawn = n;
+  }
+
+  private boolean isVisible(int i, Frustum frustum) {
+    if (boundsCentre == null) {
+      BoundingBox b = render.getMesh().getBoundingBox();
+      boundsCentre = new double[]{b.getCentreX(), b.getCentreY(), b.getCentreZ()};
+      boundsRadius = 0.5*Math.sqrt(b.getRangeX()*b.getRangeX() + b.getRangeY()*b.getRangeY() + b.getRangeZ()*b.getRangeZ());
+    }
+    transforms[i].transformPoint(boundsCentre[0], boundsCentre[1], boundsCentre[2], point);
+    return frustum.isSphereVisible(point[0], point[1], point[2], boundsRadius*transforms[i].getMaxScale());
+  }
+
+  private void uploadInstances(GL2 gl) {
+    if (instanceData == null || instanceData.capacity() < numInstances*FLOATS_PER_INSTANCE)
+      instanceData = Buffers.newDirectFloatBuffer(transforms.length*FLOATS_PER_INSTANCE);
+    instanceData.clear();
+    for (int k=0; k<numDrawn; k++) {
+      int i = drawn[k];
+      double[] m = transforms[i].getValues();
+      for (int j=0; j<16; j++)
+        instanceData.put((float) m[j]);
+      float[] c = colours[i];
+      instanceData.put(c[0]).put(c[1]).put(c[2]).put((c.length > 3) ? c[3] : 1f);
+    }
+    instanceData.flip();
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, instanceBuffer);
+    if (numDrawn > instanceBufferSize) {
+      instanceBufferSize = instanceData.capacity()/FLOATS_PER_INSTANCE;
+      gl.glBufferData(GL2.GL_ARRAY_BUFFER, (long) instanceBufferSize*STRIDE, null, GL2.GL_DYNAMIC_DRAW);
+    }
+    gl.glBufferSubData(GL2.GL_ARRAY_BUFFER, 0, (long) numDrawn*STRIDE, instanceData);
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+    dirty = false;
+  }
+
+  /* Compiles the shaders and creates the instance buffer, or sets program to -1 if instancing cannot be used */
+  private void initialiseInstancing(GL2 gl) {
+    program = -1;
+    if (!gl.isFunctionAvailable("glDrawElementsInstanced") || !gl.isFunctionAvailable("glVertexAttribDivisor"))
+      return;
+    int vs = compileShader(gl, GL2.GL_VERTEX_SHADER, VERTEX_SHADER);
+    int fs = compileShader(gl, GL2.GL_FRAGMENT_SHADER, FRAGMENT_SHADER);
+    if (vs == 0 || fs == 0) return;
+    int p = gl.glCreateProgram();
+    gl.glAttachShader(p, vs);
+    gl.glAttachShader(p, fs);
+    gl.glLinkProgram(p);
+    gl.glDeleteShader(vs);
+    gl.glDeleteShader(fs);
+    int[] status = new int[1];
+    gl.glGetProgramiv(p, GL2.GL_LINK_STATUS, status, 0);
+    if (status[0] == 0) {
+      System.out.println("Instancing not used. Error linking shader:\n"+getInfoLog(gl, p, false));
+      gl.glDeleteProgram(p);
+      return;
+    }
+    String[] names = {"instanceColumn0", "instanceColumn1", "instanceColumn2", "instanceColumn3", "instanceColour"};
+    for (int a=0; a<names.length; a++)
+      attributes[a] = gl.glGetAttribLocation(p, names[a]);
+    for (int i=0; i<MAX_LIGHTS; i++)
+      lightOnUniforms[i] = gl.glGetUniformLocation(p, "lightOn["+i+"]");
+    texturedUniform = gl.glGetUniformLocation(p, "textured");
+    gl.glUseProgram(p);
+    gl.glUniform1i(gl.glGetUniformLocation(p, "texture0"), 0);
+    gl.glUseProgram(0);
+    int[] buffer = new int[1];
+    gl.glGenBuffers(1, buffer, 0);
+    instanceBuffer = buffer[0];
+    instanceBufferSize = 0;
+    dirty = true;
+    program = p;
+  }
+
+  private static int compileShader(GL2 gl, int type, String[] source) {
+    int s = gl.glCreateShader(type);
+    gl.glShaderSource(s, source.length, source, null, 0);
+    gl.glCompileShader(s);
+    int[] status = new int[1];
+    gl.glGetShaderiv(s, GL2.GL_COMPILE_STATUS, status, 0);
+    if (status[0] == 0) {
+      System.out.println("Instancing not used. Error compiling shader:\n"+getInfoLog(gl, s, true));
+      gl.glDeleteShader(s);
+      return 0;
+    }
+    return s;
+  }
+
+  private static String getInfoLog(GL2 gl, int object, boolean shader) {
+    int[] length = new int[1];
+    if (shader) gl.glGetShaderiv(object, GL2.GL_INFO_LOG_LENGTH, length, 0);
+    else gl.glGetProgramiv(object, GL2.GL_INFO_LOG_LENGTH, length, 0);
+    if (length[0] <= 1) return "";
+    byte[] log = new byte[length[0]];
+    if (shader) gl.glGetShaderInfoLog(object, log.length, length, 0, log, 0);
+    else gl.glGetProgramInfoLog(object, log.length, length, 0, log, 0);
+    return new String(log, 0, length[0]);
+  }
+
+  /**
+   * Frees the shader and instance buffer, if they have been created. The Render is not disposed of.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void dispose(GL2 gl) {
+    if (program > 0) {
+      gl.glDeleteProgram(program);
+      gl.glDeleteBuffers(1, new int[]{instanceBuffer}, 0);
+    }
+    program = 0;
+    instanceBuffer = instanceBufferSize = 0;
+  }
+
+}
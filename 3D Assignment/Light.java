@@ -3,6 +3,8 @@
  * If we used doubles in this class, we would have to convert to floats 
  * for use by the gl light functions. 
  * Floats are fine for the accuracy required.
+ * The gl calls go through a GLStateCache (see setStateCache(...)), so that parameters that
+ * have not changed since the last frame are not sent again.
  *
  * @author    Dr Steve Maddock
  * @version   1.0 (26/07/2013)
@@ -32,6 +34,8 @@ public class Light implements Cloneable {
   private boolean spotlight = false;
   private float[] direction;
   private float angle;
+
+  private GLStateCache state = new GLStateCache(false);
   
   /**
    * Constructor.
@@ -108,7 +112,36 @@ public class Light implements Cloneable {
   public float[] getSpecular() {
     return specular.clone();
   }
+
+  public boolean getSpotlight() {
+    return spotlight;
+  }
+
+  /**
+   * Gets the direction of a spotlight.
+   * @return The direction, or null if the light is not a spotlight
+   */
+  public float[] getDirection() {
+    return (direction == null) ? null : direction.clone();
+  }
+
+  /**
+   * Gets the cut-off angle of a spotlight, in degrees.
+   * @return The angle
+   */
+  public float getAngle() {
+    return angle;
+  }
   
+  /**
+   * Sets the cache through which the gl calls are made.
+   * By default, a cache of its own is used that passes every call on.
+   * @param state The cache, usually shared by everything drawn in the scene
+   */
+  public void setStateCache(GLStateCache state) {
+    this.state = state;
+  }
+
   public void setSwitchedOn(boolean on) {
     switchedOn = on;
   }
@@ -118,16 +151,18 @@ public class Light implements Cloneable {
   } 
 
   public void enable(GL2 gl) {
-    gl.glEnable(index); 
+    state.enable(gl, index); 
   }
   
   public void disable(GL2 gl) {
-    gl.glDisable(index); 
+    state.disable(gl, index); 
   }
 
   /**
    * If the light is switched on, then call all the relavant OpenGL command to enable
    * and set the parameters for this light.
+   * The position and spot direction are always sent, since they are transformed by the current
+   * modelview matrix. The other parameters are only sent if they have changed.
    * @param gl OpenGL context
    * @param glut GLUT object
    * @param show whether or not to show the light postion visually with a geometric object.
@@ -135,35 +170,36 @@ public class Light implements Cloneable {
    */
   public void use(GL2 gl, GLUT glut, boolean show) {
     if (switchedOn) {
-      gl.glEnable(index); 
+      state.enable(gl, index); 
       // There is no glLightdv, so use glLightfv
-      gl.glLightfv(index, GL2.GL_POSITION, position, 0);
-      gl.glLightfv(index, GL2.GL_AMBIENT, ambient, 0);
-      gl.glLightfv(index, GL2.GL_DIFFUSE, diffuse, 0);
-      gl.glLightfv(index, GL2.GL_SPECULAR, specular, 0);
+      state.light(gl, index, GL2.GL_POSITION, position);
+      state.light(gl, index, GL2.GL_AMBIENT, ambient);
+      state.light(gl, index, GL2.GL_DIFFUSE, diffuse);
+      state.light(gl, index, GL2.GL_SPECULAR, specular);
       if (spotlight) {
-        gl.glLightf(index, GL2.GL_SPOT_CUTOFF, angle);
-        gl.glLightfv(index, GL2.GL_SPOT_DIRECTION, direction, 0);
+        state.light(gl, index, GL2.GL_SPOT_CUTOFF, angle);
+        state.light(gl, index, GL2.GL_SPOT_DIRECTION, direction);
       }
       if (show) { 
         if (position[3] == 1) displayPosition(gl, glut);
         else displayDirection(gl);
       }
     }
-    else gl.glDisable(index);
+    else state.disable(gl, index);
   }
 
-  private void displayPosition(GL2 gl, GLUT glut) {
-    float[] matAmbientDiffuse = {0.1f, 0.1f, 0.1f, 1.0f};
-    float[] matSpecular = {0.0f, 0.0f, 0.0f, 0.0f};
-    float[] matShininess = {1.0f};
-    float[] matEmission = {0.9f, 0.9f, 0.9f, 1.0f};
+  // the material of the sphere that shows the light's position
+  private static final float[] POSITION_AMBIENT_DIFFUSE = {0.1f, 0.1f, 0.1f, 1.0f};
+  private static final float[] POSITION_SPECULAR = {0.0f, 0.0f, 0.0f, 0.0f};
+  private static final float[] POSITION_SHININESS = {1.0f};
+  private static final float[] POSITION_EMISSION = {0.9f, 0.9f, 0.9f, 1.0f};
 
+  private void displayPosition(GL2 gl, GLUT glut) {
     // use glMaterialfv. There is no glMaterialdv
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, matAmbientDiffuse, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SPECULAR, matSpecular, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SHININESS, matShininess, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_EMISSION, matEmission, 0);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, POSITION_AMBIENT_DIFFUSE);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_SPECULAR, POSITION_SPECULAR);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_SHININESS, POSITION_SHININESS);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_EMISSION, POSITION_EMISSION);
     gl.glPushMatrix();
       gl.glTranslated(position[0], position[1], position[2]);
       glut.glutSolidSphere(0.1, 10,10);
@@ -171,7 +207,7 @@ public class Light implements Cloneable {
   }
   
   private void displayDirection(GL2 gl) {
-    gl.glDisable(GL2.GL_LIGHTING);
+    state.disable(gl, GL2.GL_LIGHTING);
     gl.glLineWidth(4);
     double x = position[0];
     double y = position[1];
@@ -187,11 +223,11 @@ public class Light implements Cloneable {
       gl.glVertex3d(x,y,z);
     gl.glEnd();
     gl.glLineWidth(1);
-    gl.glEnable(GL2.GL_LIGHTING);
+    state.enable(gl, GL2.GL_LIGHTING);
   }
   
   private void displaySpotlight(GL2 gl, GLUT glut) {
-    gl.glDisable(GL2.GL_LIGHTING);
+    state.disable(gl, GL2.GL_LIGHTING);
     gl.glLineWidth(4);
     double x = direction[0];
     double y = direction[1];
@@ -209,7 +245,7 @@ public class Light implements Cloneable {
       gl.glVertex3d(x,y,z);
     gl.glEnd();
     gl.glLineWidth(1);
-    gl.glEnable(GL2.GL_LIGHTING);
+    state.enable(gl, GL2.GL_LIGHTING);
   }
   
   public String toString() {
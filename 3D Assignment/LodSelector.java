@@ -0,0 +1,140 @@
+/**
+ * Chooses how finely to tessellate a curved shape (the slices and stacks of a sphere, cone,
+ * cylinder or torus) from how big it is on the screen, so that small or distant parts are drawn
+ * with fewer triangles.
+ * The size on the screen is the projected radius of the shape's bounding sphere, in pixels,
+ * found from the eye position, the projection and the viewport height. The number of slices is
+ * then chosen so that each edge around the outline is about PIXELS_PER_EDGE pixels long, rounded
+ * up to the next of a fixed set of LEVELS. Using a fixed set means a PrimitiveCache only ever
+ * holds a few meshes of each shape.
+ * Each shape is identified by a key, and keeps its level until its size on the screen has moved
+ * well past the point at which the level would change (by HYSTERESIS), so that a shape near the
+ * boundary between two levels does not flicker from one to the other as the camera moves.
+ * Typical use, every frame:
+ *   lod.setView(camera.getEyeX(), camera.getEyeY(), camera.getEyeZ(), projection, canvasHeight);
+ *   int n = lod.select("head", radius, lod.getDistance(x,y,z), 50);
+ *   primitives.getSphere(radius, n, n).draw(gl);
+ */
+
+import java.util.*;
+
+public class LodSelector {
+
+  public static final int[] LEVELS = {6, 8, 12, 16, 20, 30, 50};
+  public static final double PIXELS_PER_EDGE = 6;
+  public static final double HYSTERESIS = 0.25;
+
+  private Map<Object,Integer> levels = new HashMap<Object,Integer>();  // the level index of each key
+  private double eyeX, eyeY, eyeZ;
+  private double pixelsPerUnit = 0;  // at a distance of 1; 0 until setView(...) is called
+  private boolean enabled = true;
+  private Map<Integer,Integer> selected = new TreeMap<Integer,Integer>();  // times each number of slices was chosen
+  private long triangles;
+
+  /**
+   * Sets the eye position and the projection for this frame, and resets the counts.
+   *
+   * @param  x,y,z       the eye position, in world coordinates
+   * @param  projection  as set up by glFrustum
+   * @param  height      the height of the viewport in pixels
+   */
+  public void setView(double x, double y, double z, Matrix4 projection, int height) {
+    eyeX = x;
+    eyeY = y;
+    eyeZ = z;
+    pixelsPerUnit = projection.get(1,1)*height*0.5;  // get(1,1) is 1/tan(fovy/2)
+    selected.clear();
+    triangles = 0;
+  }
+
+  /**
+   * Sets whether the level is chosen.
+   *
+   * @param  b  false to always use the most detailed level asked for, e.g. to compare the effect
+   */
+  public void setEnabled(boolean b) {
+    enabled = b;
+    levels.clear();
+  }
+
+  public boolean getEnabled() {
+    return enabled;
+  }
+
+  /**
+   * The distance from the eye to a point.
+   *
+   * @param  x,y,z  the point, in world coordinates
+   * @return  the distance
+   */
+  public double getDistance(double x, double y, double z) {
+    double dx = x-eyeX, dy = y-eyeY, dz = z-eyeZ;
+    return Math.sqrt(dx*dx+dy*dy+dz*dz);
+  }
+
+  /**
+   * The radius in pixels of a sphere at the given distance from the eye.
+   *
+   * @param  radius    the radius in world units
+   * @param  distance  the distance from the eye
+   * @return  the radius in pixels
+   */
+  public double getProjectedRadius(double radius, double distance) {
+    return radius*pixelsPerUnit/Math.max(distance, 1e-6);
+  }
+
+  /**
+   * Chooses the number of slices (and stacks) for a shape.
+   *
+   * @param  key       identifies the shape, so that its last level is remembered
+   * @param  radius    the radius around which the slices go, in world units
+   * @param  distance  the distance from the eye to the shape, e.g. from getDistance(...)
+   * @param  max       the most slices to use, e.g. the number used before levels were chosen
+   * @return  the number of slices: one of LEVELS, but not more than max
+   */
+  public int select(Object key, double radius, double distance, int max) {
+    int slices = max;
+    if (enabled && pixelsPerUnit > 0) {
+      double wanted = 2*Math.PI*getProjectedRadius(radius, distance)/PIXELS_PER_EDGE;
+      Integer last = levels.get(key);
+      int level = (last != null) ? last : levelFor(wanted);
+      if (wanted > LEVELS[level]*(1+HYSTERESIS)
+          || (level > 0 && wanted < LEVELS[level-1]*(1-HYSTERESIS)))
+        level = levelFor(wanted);
+      levels.put(key, level);
+      slices = Math.min(LEVELS[level], max);
+    }
+    count(slices);
+    return slices;
+  }
+
+  /* The lowest level with at least the wanted number of slices */
+  private static int levelFor(double wanted) {
+    int level = 0;
+    while (level < LEVELS.length-1 && LEVELS[level] < wanted)
+      level++;
+    return level;
+  }
+
+  private void count(int slices) {
+    Integer n = selected.get(slices);
+    selected.put(slices, (n == null) ? 1 : n+1);
+    triangles += 2L*slices*slices;  // about right for a sphere with as many stacks as slices
+  }
+
+  /**
+   * The approximate number of triangles in the shapes chosen for since the last setView(...),
+   * taking each to have as many stacks as slices.
+   *
+   * @return  the number of triangles
+   */
+  public long getNumTriangles() { return triangles; }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder("Level of detail:");
+    for (Map.Entry<Integer,Integer> e : selected.entrySet())
+      sb.append(" ").append(e.getValue()).append("x").append(e.getKey());
+    return sb.append(" slices, about ").append(triangles).append(" triangles").toString();
+  }
+
+}
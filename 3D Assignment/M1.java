@@ -3,6 +3,7 @@ Author: Steve Maddock
 Last updated: 9 September 2011
 */
 
+import java.io.*;
 import java.awt.*;
 import java.awt.event.*;
 import com.jogamp.opengl.*;
@@ -19,19 +20,29 @@ public class M1 extends Frame implements GLEventListener, ActionListener,
   private static final float NEAR_CLIP=0.1f;
   private static final float FAR_CLIP=100.0f;    
   private static final boolean CONTINUOUS_ANIMATION = false;
+  private static final String CAPTURE_DIRECTORY = "frames";
 
   private Point lastpoint;            // used with mouse routines
   private int width, height;
 
   private Checkbox checkAxes, checkObjects, checkRobotSpotlight,checkWorldlight,checkRoomSpotlight;
-  private Button startAnim, pauseAnim, resetScene;
+  private Checkbox checkCompact, checkCapture;
+  private Button startAnim, pauseAnim, resetScene, renderMode;
   private boolean continuousAnimation = CONTINUOUS_ANIMATION;
 
   private Camera camera;
   private M1Scene scene;
   private GLCanvas canvas;
+  private FPSAnimator animator;       // runs only while the animation does
+  private FramePacer pacer;           // moves the animation on and chooses the animator's rate
+  private static boolean useSimulationThread = false;
+  private SimulationThread simulation; // if not null, moves the animation on instead of the pacer
+  private volatile boolean captureOn = false;  // set from the checkbox; the capture is made and finished in display()
+  private FrameCapture capture;       // saves each frame drawn while captureOn, to CAPTURE_DIRECTORY
 
+  /* java M1 [-simthread]; -simthread runs the animation on its own thread (see SimulationThread) */
   public static void main(String[] args) {
+    useSimulationThread = args.length > 0 && args[0].equals("-simthread");
     M1 gl=new M1();
     gl.setVisible(true);
   }
@@ -61,14 +72,18 @@ public class M1 extends Frame implements GLEventListener, ActionListener,
     menuBar.add(fileMenu);
 
     Panel p = new Panel(new GridLayout(2,1));
-      Panel p1 = new Panel(new GridLayout(5,1));
+      Panel p1 = new Panel(new GridLayout(7,1));
         checkAxes = addCheckbox(p1, "axes on", this);
         checkObjects = addCheckbox(p1, "objects on", this);
         checkRobotSpotlight = addCheckbox(p1, "RobotSpotlight on/off", this);
         checkWorldlight = addCheckbox(p1, "Worldlight on/off", this);
         checkRoomSpotlight= addCheckbox(p1, "RoomSpotlight on/off", this);
+        checkCompact = addCheckbox(p1, "compact vertices", this);
+        checkCompact.setState(false);
+        checkCapture = addCheckbox(p1, "capture frames", this);
+        checkCapture.setState(false);
       p.add(p1);
-      p1 = new Panel(new GridLayout(4,1));
+      p1 = new Panel(new GridLayout(5,1));
         Button rotate = new Button("Rotate light");
         rotate.setActionCommand("Rotate");
         rotate.addActionListener(this);
@@ -85,18 +100,24 @@ public class M1 extends Frame implements GLEventListener, ActionListener,
         resetScene.setActionCommand("ResetScene");
         resetScene.addActionListener(this);
         p1.add(resetScene);
+        renderMode = new Button(Render.getModeName(Render.BUFFER_OBJECT));  // press to change the rendering mode
+        renderMode.setActionCommand("RenderMode");
+        renderMode.addActionListener(this);
+        p1.add(renderMode);
       p.add(p1);
     add(p, "East");
 
     canvas.addMouseMotionListener(this); // link mouse motion events
 
-    // We specify a refresh frame rate of 30 frames per second for the canvas.
-    // An animation event is actually not needed for this program, as the
-    // rotation is under control of a button press and a repaint call.
+    // The animator starts at the highest frame rate; the FramePacer lowers it
+    // if this machine cannot keep up (see adjustFrameRate()).
+    // The animator is only needed while the animation runs; otherwise it is
+    // paused, and a frame is drawn only when something changes, by a call
+    // to requestRender(), or when the canvas is resized or uncovered.
 
-    FPSAnimator animator=new FPSAnimator(canvas, 30);
-    //animator.add(canvas);
+    animator=new FPSAnimator(canvas, FramePacer.RATES[0]);
     animator.start();
+    if (!continuousAnimation) animator.pause();
   }
 
 
@@ -112,10 +133,15 @@ public class M1 extends Frame implements GLEventListener, ActionListener,
     return c;
   }
 
+  /* draws a frame, unless the animator is about to draw one anyway */
+  private void requestRender() {
+    if (!animator.isAnimating()) canvas.repaint();
+  }
+
   public void actionPerformed(ActionEvent e) {
     if(e.getActionCommand().equalsIgnoreCase("rotate")) {
       scene.incRotate();
-      canvas.repaint();
+      requestRender();
     }
     else if(e.getActionCommand().equalsIgnoreCase("quit")) {
       System.exit(0);
@@ -129,38 +155,79 @@ public class M1 extends Frame implements GLEventListener, ActionListener,
     else if (e.getActionCommand().equalsIgnoreCase("resetscene")) {
       reset();
     }
+    else if (e.getActionCommand().equalsIgnoreCase("rendermode")) {
+      int mode = (scene.getRenderMode()+1)%Render.NUM_MODES;
+      scene.setRenderMode(mode);
+      renderMode.setLabel(Render.getModeName(mode));
+      requestRender();
+    }
   }
 
   public void itemStateChanged(ItemEvent e) {
     Object source = e.getSource();
     if (source == checkAxes) {
       scene.getAxes().setSwitchedOn(checkAxes.getState());
-      canvas.repaint();
+      requestRender();
     }
     else if (source == checkObjects) {
       scene.setObjectsDisplay(checkObjects.getState());
-      canvas.repaint();
+      requestRender();
     }
     else if (source == checkRobotSpotlight) {
       scene.getLightRobertEye().setSwitchedOn(checkRobotSpotlight.getState());
-      canvas.repaint();
+      requestRender();
     }
     else if (source == checkWorldlight) {
       scene.getLightWorldlight().setSwitchedOn(checkWorldlight.getState());
-      canvas.repaint();
+      requestRender();
+    }
+    else if (source == checkCompact) {
+      scene.setUseCompactFormat(checkCompact.getState());
+      requestRender();
+    }
+    else if (source == checkCapture) {
+      captureOn = checkCapture.getState();
+      requestRender();
     }
     else if (source == checkRoomSpotlight) {
       scene.getLightlamblight1().setSwitchedOn(checkRoomSpotlight.getState());
       scene.getLightlamblight2().setSwitchedOn(checkRoomSpotlight.getState());
-      canvas.repaint();
+      requestRender();
     }
 
   }
   
   private void setContinuousAnimation(boolean b) {
     continuousAnimation = b;
-    if (b) scene.startAnimation();
-    else scene.pauseAnimation();
+    if (b) {
+      if (simulation != null) simulation.startAnimation();
+      else scene.startAnimation();
+      pacer.restart();
+      if (animator.isPaused()) animator.resume();
+    }
+    else {
+      if (simulation != null) simulation.pauseAnimation();
+      else scene.pauseAnimation();
+      animator.pause();
+      canvas.repaint();  // the frame it is paused on
+    }
+  }
+
+  /* restarts the animator at the rate the pacer aims for, if that has changed */
+  private void adjustFrameRate() {
+    final int fps = pacer.getTargetFps();
+    if (fps == animator.getFPS()) return;
+    // an FPSAnimator's rate can only be set while it is stopped, which must not be
+    // done from within display(...)
+    EventQueue.invokeLater(new Runnable() {
+      public void run() {
+        if (fps == animator.getFPS()) return;
+        animator.stop();
+        animator.setFPS(fps);
+        animator.start();
+        if (!continuousAnimation) animator.pause();
+      }
+    });
   }
 
   private void reset() {
@@ -174,6 +241,7 @@ public class M1 extends Frame implements GLEventListener, ActionListener,
     scene.getLightRobertEye().setSwitchedOn(true);
     setContinuousAnimation(CONTINUOUS_ANIMATION);
     scene.reset();
+    if (simulation != null) simulation.reset();
   }
 
  /*
@@ -183,6 +251,21 @@ public class M1 extends Frame implements GLEventListener, ActionListener,
   /* initialisation */
   public void init (GLAutoDrawable drawable) {
     GL2 gl = drawable.getGL().getGL2();
+    initialiseGL(gl);
+    camera = createCamera();
+    scene = new M1Scene(gl, camera);
+    if (useSimulationThread) {
+      simulation = new SimulationThread(FramePacer.TICK_RATE);
+      simulation.start();
+      pacer = new FramePacer(null);  // only chooses the frame rate
+    }
+    else {
+      pacer = new FramePacer(scene.getAnimationScene());
+    }
+  }
+
+  /* the OpenGL state the scene expects; also used by M1Headless */
+  public static void initialiseGL(GL2 gl) {
     gl.glClearColor(0.0f, 0.0f, 0.0f, 1.0f); //black
     gl.glEnable(GL2.GL_DEPTH_TEST); // We want to use the z buffer so that overlapping objects are drawn correctly.
     gl.glEnable(GL2.GL_CULL_FACE);  // Enable the ability to discard polygons.
@@ -204,14 +287,17 @@ public class M1 extends Frame implements GLEventListener, ActionListener,
 				                            // When turned on, it does slow rendering 
 				                            // See en.wikipedia.org/wiki/Normal_%28geometry%29#Transforming_normals
 				                            // for details of transforming normals.					
+  }
+
+  /* the camera the scene starts with; also used by M1Headless */
+  public static Camera createCamera() {
     double radius = 10.0;           // radius of 'camera sphere', i.e. distance from 
 	                                  // world origin
     double theta = Math.toRadians(-45); // theta rotates anticlockwise around y axis
                                     // here, 45 clockwise from x towards z axis
     double phi = Math.toRadians(30);// phi is inclination from ground plane
                                     // here, 30 degrees up from ground plane
-    camera = new Camera(theta, phi, radius);
-    scene = new M1Scene(gl, camera);
+    return new Camera(theta, phi, radius);
   }
    
   /* Called to indicate the drawing surface has been moved and/or resized  */
@@ -220,7 +306,11 @@ public class M1 extends Frame implements GLEventListener, ActionListener,
 
     this.width=width;
     this.height=height;
-    
+    setProjection(gl, scene, width, height);
+  }
+
+  /* the viewport and projection for a canvas of the given size; also used by M1Headless */
+  public static void setProjection(GL2 gl, M1Scene scene, int width, int height) {
     scene.setCanvasSize(width,height);
     
     float fAspect=(float) width/height;
@@ -236,17 +326,54 @@ public class M1 extends Frame implements GLEventListener, ActionListener,
     float right=fAspect*top;
     
     gl.glFrustum(left, right, bottom, top, NEAR_CLIP, FAR_CLIP);
+    scene.setProjection(left, right, bottom, top, NEAR_CLIP, FAR_CLIP);
     gl.glMatrixMode(GL2.GL_MODELVIEW);
   }
 
   /* draw */
   public void display(GLAutoDrawable drawable) {
     GL2 gl = drawable.getGL().getGL2();
-    if (continuousAnimation) scene.update();
+    if (simulation != null) simulation.apply(scene.getAnimationScene());  // the latest snapshot
+    if (continuousAnimation) pacer.beginFrame();  // instead of scene.update()
     scene.render(gl);
+    if (captureOn) captureFrame(gl);
+    else if (capture != null) finishCapture(gl);
+    if (continuousAnimation) {
+      pacer.endFrame();
+      adjustFrameRate();
+    }
   }
 
   public void dispose(GLAutoDrawable drawable) {
+    if (simulation != null) simulation.stop();
+    if (capture != null) finishCapture(drawable.getGL().getGL2());
+  }
+
+  /* saves the frame just drawn; capturing is switched off if a frame cannot be saved */
+  private void captureFrame(GL2 gl) {
+    if (capture == null) capture = new FrameCapture(new File(CAPTURE_DIRECTORY), FrameCapture.PNG);
+    try {
+      capture.capture(gl, width, height);
+    }
+    catch (IOException e) {  // finishCapture(...) reports it
+      captureOn = false;
+      EventQueue.invokeLater(new Runnable() {
+        public void run() { checkCapture.setState(false); }
+      });
+      finishCapture(gl);
+    }
+  }
+
+  /* writes the frames still waiting, and frees the capture's buffers and threads */
+  private void finishCapture(GL2 gl) {
+    try {
+      capture.finish(gl);
+      System.out.println(capture);
+    }
+    catch (IOException e) {
+      System.out.println("Frame capture failed: "+e.getMessage());
+    }
+    capture = null;
   }
 
 
@@ -269,6 +396,7 @@ public class M1 extends Frame implements GLEventListener, ActionListener,
       camera.updateRadius(-dy);
     
     lastpoint = ms;
+    requestRender();
   }
 
   /**
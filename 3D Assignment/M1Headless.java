@@ -0,0 +1,180 @@
+/**
+ * Renders M1Scene without a window, into an offscreen drawable, for overnight batch renders and
+ * performance tests on machines with no display (e.g. with Mesa's llvmpipe on a CI server).
+ * The animation follows a simulated clock that moves on by a fixed time step each frame, so a given
+ * frame always shows the same moment however long it takes to render. Frames are rendered one after
+ * another as fast as possible, without waiting for vsync or the real time.
+ * The OpenGL state, camera and projection are set up as in M1 (see M1.initialiseGL(...)).
+ * Usage: java M1Headless [-capture directory [png|raw]] [frames [width height [fps]]]
+ *   -capture       saves every frame in the directory, as PNG (the default) or raw files (see FrameCapture)
+ *   frames         the number of frames to render (default 300)
+ *   width, height  the size of the drawable in pixels (default M1.WIDTH x M1.HEIGHT)
+ *   fps            the simulated frame rate, i.e. the time step is 1/fps seconds (default 30)
+ */
+
+import java.io.*;
+import com.jogamp.opengl.*;
+
+public class M1Headless implements GLEventListener {
+
+  public static final int DEFAULT_FRAMES = 300;
+  public static final double DEFAULT_FPS = 30;
+
+  private int width, height;
+  private double timeStep;
+  private int framesLeft;
+
+  private Camera camera;
+  private M1Scene scene;
+  private GLOffscreenAutoDrawable drawable;
+  private FrameCapture capture;
+
+  /**
+   * Constructor.
+   *
+   * @param  width   the width of the drawable in pixels
+   * @param  height  the height of the drawable in pixels
+   * @param  fps     the simulated frame rate
+   */
+  public M1Headless(int width, int height, double fps) {
+    this.width = width;
+    this.height = height;
+    timeStep = 1/fps;
+  }
+
+  /**
+   * Creates the offscreen drawable. JOGL uses a framebuffer object or a pbuffer, whichever the
+   * driver provides.
+   */
+  public void create() {
+    GLProfile glp = GLProfile.getDefault();
+    GLCapabilities caps = new GLCapabilities(glp);
+    caps.setOnscreen(false);
+    caps.setDoubleBuffered(false);  // nothing is shown, so there is nothing to swap
+    drawable = GLDrawableFactory.getFactory(glp).createOffscreenAutoDrawable(null, caps, null, width, height);
+    drawable.addGLEventListener(this);
+  }
+
+  /**
+   * Renders a number of frames, moving the simulated clock on by one time step after each.
+   *
+   * @param  frames  the number of frames
+   * @return  the time taken, in seconds
+   */
+  public double render(int frames) {
+    if (drawable == null) create();
+    long start = System.nanoTime();
+    framesLeft = frames;
+    while (framesLeft > 0)
+      drawable.display();
+    return (System.nanoTime()-start)/1e9;
+  }
+
+  public GLOffscreenAutoDrawable getDrawable() {
+    return drawable;
+  }
+
+  public M1Scene getScene() {
+    return scene;
+  }
+
+  /**
+   * Sets where the frames are saved.
+   *
+   * @param  capture  null to save nothing
+   */
+  public void setFrameCapture(FrameCapture capture) {
+    this.capture = capture;
+  }
+
+  public FrameCapture getFrameCapture() {
+    return capture;
+  }
+
+  public void destroy() {
+    if (drawable != null) drawable.destroy();  // calls dispose(...), which finishes the capture
+    drawable = null;
+  }
+
+ /*
+   * METHODS DEFINED BY GLEventListener
+   */
+
+  public void init(GLAutoDrawable drawable) {
+    GL2 gl = drawable.getGL().getGL2();
+    gl.setSwapInterval(0);  // never wait for vsync
+    M1.initialiseGL(gl);
+    camera = M1.createCamera();
+    scene = new M1Scene(gl, camera);
+    scene.getAnimationScene().setFixedClock(true);
+    scene.startAnimation();
+  }
+
+  public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+    M1.setProjection(drawable.getGL().getGL2(), scene, width, height);
+  }
+
+  public void display(GLAutoDrawable drawable) {
+    GL2 gl = drawable.getGL().getGL2();
+    scene.update();
+    scene.render(gl);
+    if (capture != null) {
+      try {
+        capture.capture(gl, drawable.getSurfaceWidth(), drawable.getSurfaceHeight());
+      }
+      catch (IOException e) {
+        System.err.println("Error saving frames: "+e.getMessage());
+        finishCapture(gl);  // still waits for the frames already queued and releases the buffers
+      }
+    }
+    scene.getAnimationScene().advanceClock(timeStep);
+    framesLeft--;
+    if (framesLeft == 0) gl.glFinish();  // so that the time taken includes all the rendering
+  }
+
+  public void dispose(GLAutoDrawable drawable) {
+    if (capture != null) finishCapture(drawable.getGL().getGL2());
+  }
+
+  private void finishCapture(GL2 gl) {
+    try {
+      capture.finish(gl);
+    }
+    catch (IOException e) {
+      System.err.println("Error saving frames: "+e.getMessage());
+    }
+    capture = null;
+  }
+
+  public static void main(String[] args) {
+    FrameCapture capture = null;
+    if (args.length >= 2 && args[0].equals("-capture")) {
+      int n = 2;
+      int format = FrameCapture.PNG;
+      if (args.length >= 3 && (args[2].equals("png") || args[2].equals("raw"))) {
+        if (args[2].equals("raw")) format = FrameCapture.RAW;
+        n = 3;
+      }
+      capture = new FrameCapture(new File(args[1]), format);
+      String[] rest = new String[args.length-n];
+      System.arraycopy(args, n, rest, 0, rest.length);
+      args = rest;
+    }
+    int frames = (args.length >= 1) ? Integer.parseInt(args[0]) : DEFAULT_FRAMES;
+    int width = (args.length >= 3) ? Integer.parseInt(args[1]) : M1.WIDTH;
+    int height = (args.length >= 3) ? Integer.parseInt(args[2]) : M1.HEIGHT;
+    double fps = (args.length >= 4) ? Double.parseDouble(args[3]) : DEFAULT_FPS;
+
+    M1Headless headless = new M1Headless(width, height, fps);
+    headless.create();
+    headless.setFrameCapture(capture);
+    double seconds = headless.render(frames);
+    System.out.printf("Rendered %d frames at %dx%d in %.2f s (%.1f frames per second), %.1f s of animation%n",
+                      frames, width, height, seconds, frames/seconds, frames/fps);
+    System.out.println(headless.getScene().getStats());
+    headless.destroy();
+    if (capture != null) System.out.println(capture);
+    System.exit(0);
+  }
+
+}
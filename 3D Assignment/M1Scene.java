@@ -2,6 +2,7 @@
 /*Author <Yifan Pu><ypu6@sheffield.ac.uk>*/
 
 import java.io.File;
+import java.util.Arrays;
 import java.awt.image.*;
 import javax.imageio.*;
 import com.jogamp.opengl.util.awt.*;
@@ -22,7 +23,37 @@ public class M1Scene {
 
   private Robot robot ;
 
-  private House house=new House();
+  // material, texture and light changes all go through this, so that repeated ones are dropped
+  private GLStateCache state = new GLStateCache();
+  private int frames = 0;  // since the state cache's counts were reset
+
+  private House house=new House(state);
+
+  // the spheres, cylinders, etc. are made once and shared, instead of being generated by GLUT every frame
+  private PrimitiveCache primitives = new PrimitiveCache();
+
+  // the objects are drawn in the order of their sort keys, to keep texture and material changes down
+  private RenderQueue queue = new RenderQueue();
+  private static final float[] LAMB_COLOUR = {255f,255f,255f};
+
+  // only the colour differs from one part to the next, so no arrays are made per part
+  private static final float[] MAT_SPECULAR={0.5f,0.5f,0.5f,1.0f};
+  private static final float[] MAT_SHININESS={64f};
+  private static final float[] MAT_EMISSION={0.0f,0.0f,0.0f,1.0f};
+  private float[] matAmbientDiffuse={0,0,0,1.0f};  // reused; the state cache copies the values
+
+  private static final double[][] LAMB_POSITIONS = {{5,-5},{-5,5},{0,0}};  // x,z of each lamb
+  private InstancedRender lambs;  // all the lambs are drawn with one draw call
+  private int lambMaterial, cubeMaterial, torusMaterial, cylinderMaterial, robotMaterial, axesMaterial;
+
+  // objects outside the view are skipped; the frustum is found from these each frame
+  private Frustum frustum = new Frustum();
+  private Matrix4 projection = new Matrix4();
+  private Matrix4 robotToWorld = new Matrix4();
+  private double[] robotPosition = new double[3];  // where the robot is this frame, for sorting
+
+  // the curved shapes are tessellated less finely when they are small on the screen
+  private LodSelector lod = new LodSelector();
 
   private Obstacles obstacles;
 
@@ -51,8 +82,10 @@ public class M1Scene {
   public M1Scene(GL2 gl, Camera camera) {
 
     animationScene =new AnimationScene();
-    robot=new Robot(animationScene);
-    obstacles=new Obstacles(animationScene);
+    robot=new Robot(animationScene, state, primitives);
+    obstacles=new Obstacles(animationScene, state, primitives);
+    robot.setLodSelector(lod);
+    obstacles.setLodSelector(lod);
 
     light0 = new Light(GL2.GL_LIGHT0);  // Create a default light
 
@@ -71,10 +104,41 @@ public class M1Scene {
     float[] direction3={0,0,-1};
     light3.makeSpotlight(direction3,10f);
 
+    light0.setStateCache(state);
+    light1.setStateCache(state);
+    light2.setStateCache(state);
+    light3.setStateCache(state);
+
     this.camera = camera;
     axes = new Axes(2.2, 1.8, 1.6);
+    axes.setStateCache(state);
+    axes.setPrimitiveCache(primitives);
+    axes.setLodSelector(lod);
+
+    lambs = new InstancedRender(primitives.getFrustumCylinder(0.5, 0.2, 0.5, 20, 20, false));  // as gluCylinder
+    lambs.setStateCache(state);
+    float[] lambColour = {LAMB_COLOUR[0]/255f, LAMB_COLOUR[1]/255f, LAMB_COLOUR[2]/255f, 1.0f};
+    for (double[] p : LAMB_POSITIONS) {
+      Matrix4 m = new Matrix4();
+      m.translate(p[0],11.5,p[1]);
+      m.rotate(90,-1,0,0);
+      lambs.addInstance(m, lambColour);
+    }
 
     house.createRenderObjects(gl);
+
+    lambMaterial = colourId(LAMB_COLOUR);
+    cubeMaterial = colourId(Obstacles.CUBE_COLOUR);
+    torusMaterial = colourId(Obstacles.TORUS_COLOUR);
+    cylinderMaterial = colourId(Obstacles.CYLINDER_COLOUR);
+    robotMaterial = colourId(Robot.HEAD_COLOUR);
+    axesMaterial = queue.getId(axes);  // the axes' materials are their own, not used by anything else
+  }
+
+  // the render queue id of a material set from a colour by setMaterial(...); only the colour differs
+  // between such materials, so the same colour gets the same id whichever object sets it
+  private int colourId(float[] colour) {
+    return queue.getId(Arrays.asList(colour[0], colour[1], colour[2]));
   }
 
   
@@ -85,10 +149,32 @@ public class M1Scene {
     canvasheight=h;
   }
 
+  // called from M1.reshape() with the values passed to glFrustum
+  public void setProjection(double left, double right, double bottom, double top, double near, double far) {
+    projection.setIdentity();
+    projection.frustum(left, right, bottom, top, near, far);
+  }
+
   public void setObjectsDisplay(boolean b) {
     objectsOn = b;
   }
 
+  // Render.IMMEDIATE, Render.DISPLAY_LIST or Render.BUFFER_OBJECT, for the objects drawn from meshes
+  public void setRenderMode(int mode) {
+    house.setRenderMode(mode);
+    primitives.setMode(mode);
+  }
+
+  public int getRenderMode() {
+    return house.getRenderMode();
+  }
+
+  // whether the objects drawn from meshes keep their vertex data in the compact format (see Render.setUseCompactFormat(...))
+  public void setUseCompactFormat(boolean b) {
+    house.setUseCompactFormat(b);
+    primitives.setUseCompactFormat(b);
+  }
+
   public Light getLightRobertEye() {
     return light1;
   }
@@ -112,6 +198,38 @@ public class M1Scene {
   public Axes getAxes() {
     return axes;
   }
+
+  public AnimationScene getAnimationScene() {
+    return animationScene;
+  }
+
+  public GLStateCache getStateCache() {
+    return state;
+  }
+
+  public Frustum getFrustum() {
+    return frustum;
+  }
+
+  public LodSelector getLodSelector() {
+    return lod;
+  }
+
+  /**
+   * The state calls saved since the last call, and the texture/material changes, culling and
+   * levels of detail in the last frame, e.g. to print at the end of a run.
+   *
+   * @return  the statistics, one per line
+   */
+  public String getStats() {
+    String s = state+" over "+frames+" frames; "+queue.getNumStateChanges()+" texture/material changes per frame ("
+               +queue.getNumUnsortedStateChanges()+" unsorted)\n"
+               +frustum+" in the last frame\n"
+               +lod+" in the last frame";
+    state.resetCounts();
+    frames = 0;
+    return s;
+  }
   
   public void reset() {
     animationScene.reset();
@@ -181,6 +299,9 @@ public class M1Scene {
     gl.glClear(GL2.GL_COLOR_BUFFER_BIT|GL2.GL_DEPTH_BUFFER_BIT);
     gl.glLoadIdentity();
     camera.view(glu);      // Orientate the camera
+    frustum.set(projection, camera.getViewMatrix());
+    lod.setView(camera.getEyeX(), camera.getEyeY(), camera.getEyeZ(), projection, canvasheight);
+    calcRobotTransform();
     doLight0(gl);          // Place the default light
     
 
@@ -190,67 +311,71 @@ public class M1Scene {
 
 
 
+    queue.clear();
+    queue.setEye(camera.getEyeX(), camera.getEyeY(), camera.getEyeZ());
+
     if (axes.getSwitchedOn()) 
-      axes.display(gl, glut);
+      queue.submit(RenderQueue.OPAQUE, 0, axesMaterial, 0,0,0, drawAxes);
 
     if (objectsOn) {  // Render the objects
-      gl.glPushMatrix();
-        gl.glPushMatrix();
-          gl.glTranslated(5,0,-5);
-          displayLamb(gl);
-        gl.glPopMatrix();
-
-        gl.glPushMatrix();
-          gl.glTranslated(-5,0,5);
-          displayLamb(gl);
-        gl.glPopMatrix();
-      gl.glPopMatrix();
-
-      displayLamb(gl);
+      // each part is keyed by the texture and material it sets first
+      house.submit(queue, frustum);  // one submission per texture
 
-      house.displayHouse(gl);
+      queue.submit(RenderQueue.OPAQUE, queue.getId(house.lambTex), lambMaterial, 0,11.5,0, drawLambs);
 
-      obstacles.displayObstacles(gl);
+      queue.submit(RenderQueue.OPAQUE, 0, cubeMaterial, 5,1,-3, drawCube);
+      queue.submit(RenderQueue.OPAQUE, 0, torusMaterial, 6.1,6,5, drawTorus);
+      queue.submit(RenderQueue.OPAQUE, 0, cylinderMaterial, -1,6,2, drawCylinder);
 
-      gl.glPushMatrix();
-        transformationsForRobert(gl);
-        moveRobot(gl);
-        robot.displayRobot(gl);
-      gl.glPopMatrix();
-                
+      // the robot sets several materials, and is keyed by the first, its head's
+      robotToWorld.transformPoint(0,0,0, robotPosition);  // it moves, so is sorted by where it is now
+      queue.submit(RenderQueue.OPAQUE, 0, robotMaterial, robotPosition[0],robotPosition[1],robotPosition[2], drawRobot);
     }
+
+    queue.execute(gl);
+
+    frames++;
   }
 
-  private void moveRobot(GL2 gl)
+  // the robot's transformation is kept in a matrix, rather than made with gl calls, so that it
+  // can also be used to find where the robot is for frustum culling
+  private void calcRobotTransform()
+  {
+    robotToWorld.setIdentity();
+    transformationsForRobert(robotToWorld);
+    moveRobot(robotToWorld);
+  }
+
+  private void moveRobot(Matrix4 m)
   {
     double robotMove1 = animationScene.getParam(animationScene.ROBOT_PARAM1);
     double robotMove2 = animationScene.getParam(animationScene.ROBOT_PARAM2);
-    gl.glTranslated(robotMove1,robotMove2,0);
+    m.translate(robotMove1,robotMove2,0);
 
     
     double robotMove4 = animationScene.getParam(animationScene.ROBOT_PARAM4);
-    gl.glTranslated(0,0,robotMove4);
+    m.translate(0,0,robotMove4);
 
     double robotMove5 = animationScene.getParam(animationScene.ROBOT_PARAM5);
-    gl.glRotated(robotMove5,0,-1,0);
-    gl.glRotated(robotMove5,0,0,1);
+    m.rotate(robotMove5,0,-1,0);
+    m.rotate(robotMove5,0,0,1);
 
     double robotMove6 = animationScene.getParam(animationScene.ROBOT_PARAM6);
-    gl.glTranslated(0,0,robotMove6);
+    m.translate(0,0,robotMove6);
 
     double robotMove8 = animationScene.getParam(animationScene.ROBOT_PARAM8);
-    gl.glTranslated(0,robotMove8,0);
+    m.translate(0,robotMove8,0);
 
     double robotMove7 = animationScene.getParam(animationScene.ROBOT_PARAM7);
-    gl.glRotated(robotMove7,0,0,1);
+    m.rotate(robotMove7,0,0,1);
 
     double robotMove9 = animationScene.getParam(animationScene.ROBOT_PARAM9);
-    gl.glRotated(robotMove9,0,-1,0);
+    m.rotate(robotMove9,0,-1,0);
 
     double robotMove10 = animationScene.getParam(animationScene.ROBOT_PARAM10);
     double robotMove11 = animationScene.getParam(animationScene.ROBOT_PARAM11);
     double robotMove12 = animationScene.getParam(animationScene.ROBOT_PARAM12);
-    gl.glTranslated(robotMove11,robotMove12,robotMove10);
+    m.translate(robotMove11,robotMove12,robotMove10);
   }
 
   private void displaylambSpotlight(GL2 gl)
@@ -271,16 +396,15 @@ public class M1Scene {
   private void displayRobotEyelight(GL2 gl)
   { 
     gl.glPushMatrix();
-      transformationsForRobert(gl);
-      moveRobot(gl);
+      gl.glMultMatrixd(robotToWorld.getValues(), 0);
       adjustmentForRobotEye(gl);
       rotationForlight(gl,poleX+4.5155,poleHeight,poleZ);
       doSpotLightRobotEye(gl);
     gl.glPopMatrix();
   }
 
-  private void transformationsForRobert(GL2 gl) {
-    gl.glTranslated(poleX,poleHeight,poleZ);
+  private void transformationsForRobert(Matrix4 m) {
+    m.translate(poleX,poleHeight,poleZ);
   }
 
   private void rotationForlight(GL2 gl, double x, double y, double z) {
@@ -294,40 +418,59 @@ public class M1Scene {
     gl.glRotated(phi*180/Math.PI,1,0,0);          
   }
 
-  private void displayLamb(GL2 gl)
-  {
-    setMaterial(gl,255f,255f,255f);
-    house.lambTex.enable(gl);
-    house.lambTex.bind(gl);
-    house.lambTex.setTexParameteri(gl, GL2.GL_TEXTURE_ENV_MODE, GL2.GL_MODULATE);
+  /* Each object is drawn by a command from the render queue, starting from the camera transformation */
 
-    GLUquadric quadric = glu.gluNewQuadric();
-    glu.gluQuadricDrawStyle(quadric, GLU.GLU_FILL);
-    glu.gluQuadricTexture(quadric, true);        
-    glu.gluQuadricNormals(quadric, GLU.GLU_SMOOTH);
+  private RenderQueue.Command drawAxes = new RenderQueue.Command() {
+    public void draw(GL2 gl) { axes.display(gl); }
+  };
 
-    gl.glPushMatrix();
-      gl.glTranslated(0,11.5,0);
-      gl.glRotated(90,-1,0,0);
-      glu.gluCylinder(quadric, 0.5, 0.2, 0.5, 20, 20);
-    gl.glPopMatrix();
+  private RenderQueue.Command drawLambs = new RenderQueue.Command() {
+    public void draw(GL2 gl) { displayLambs(gl); }
+  };
 
-    glu.gluDeleteQuadric(quadric);  
-  
-    house.lambTex.disable(gl);
+  private RenderQueue.Command drawCube = new RenderQueue.Command() {
+    public void draw(GL2 gl) { obstacles.displayCube(gl, frustum); }
+  };
+
+  private RenderQueue.Command drawTorus = new RenderQueue.Command() {
+    public void draw(GL2 gl) { obstacles.displayTorus(gl, frustum); }
+  };
+
+  private RenderQueue.Command drawCylinder = new RenderQueue.Command() {
+    public void draw(GL2 gl) { obstacles.displayCylinder(gl, frustum); }
+  };
+
+  private RenderQueue.Command drawRobot = new RenderQueue.Command() {
+    public void draw(GL2 gl) {
+      gl.glPushMatrix();
+        gl.glMultMatrixd(robotToWorld.getValues(), 0);
+        robot.displayRobot(gl, robotToWorld, frustum);
+      gl.glPopMatrix();
+    }
+  };
+
+  private void displayLambs(GL2 gl)
+  {
+    setMaterial(gl,LAMB_COLOUR[0],LAMB_COLOUR[1],LAMB_COLOUR[2]);
+    state.enableTexture(gl, house.lambTex);
+    state.bindTexture(gl, house.lambTex);
+    state.textureEnvMode(gl, GL2.GL_MODULATE);
+
+    lambs.draw(gl, frustum);
+
+    state.disableTexture(gl, house.lambTex);
 
 
   }
 
   private void setMaterial(GL2 gl, float r, float g, float b) {
-    float[] matAmbientDiffuse = {r/255f, g/255f, b/255f, 1.0f};
-    float[] matSpecular = {0.5f,0.5f,0.5f, 1.0f};
-    float[] matShininess = {64f};
-    float[] matEmission = {0.0f, 0.0f, 0.0f, 1.0f};
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, matAmbientDiffuse, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SPECULAR, matSpecular, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SHININESS, matShininess, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_EMISSION, matEmission, 0);
+    matAmbientDiffuse[0] = r/255f;
+    matAmbientDiffuse[1] = g/255f;
+    matAmbientDiffuse[2] = b/255f;
+    state.material(gl, GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, matAmbientDiffuse);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_SPECULAR, MAT_SPECULAR);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_SHININESS, MAT_SHININESS);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_EMISSION, MAT_EMISSION);
   }
 }
 
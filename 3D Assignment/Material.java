@@ -174,6 +174,16 @@ public class Material implements Cloneable {
   public float[] getEmission() {
     return emission.clone();
   }
+
+  // The values themselves rather than clones, for code that reads them every frame without
+  // making garbage (e.g. GLStateCache, SoftwareRenderer). They must not be changed.
+  float[] ambientValues() { return ambient; }
+
+  float[] diffuseValues() { return diffuse; }
+
+  float[] specularValues() { return specular; }
+
+  float[] emissionValues() { return emission; }
     
   /**
    * Sets the shininess value (as used in Phong local reflection model)
@@ -0,0 +1,231 @@
+/**
+ * A 4x4 transformation matrix, stored in column-major order in a double[16] in the same way
+ * as OpenGL, so that getValues() can be passed straight to glLoadMatrixd or glMultMatrixd.
+ * The transform methods work in the same way as the OpenGL matrix stack: each one multiplies
+ * the current matrix on the right, so they are applied to points in the reverse order to which
+ * they are called. E.g. the OpenGL sequence
+ *   glTranslated(10,0,0); glRotated(90,0,1,0);
+ * is written
+ *   m.translate(10,0,0); m.rotate(90,0,1,0);
+ */
+
+public class Matrix4 implements Cloneable {
+
+  private double[] m = new double[16];
+
+  /**
+   * Constructor. Creates the identity matrix.
+   */
+  public Matrix4() {
+    setIdentity();
+  }
+
+  /**
+   * Constructor. The values are copied.
+   *
+   * @param  values  16 values in column-major order
+   */
+  public Matrix4(double[] values) {
+    System.arraycopy(values, 0, m, 0, 16);
+  }
+
+  /**
+   * Makes this matrix a copy of another, e.g. to reuse a scratch matrix instead of cloning.
+   *
+   * @param  b  the other matrix
+   */
+  public void set(Matrix4 b) {
+    System.arraycopy(b.m, 0, m, 0, 16);
+  }
+
+  public void setIdentity() {
+    for (int i=0; i<16; i++)
+      m[i] = (i%5 == 0) ? 1 : 0;
+  }
+
+  /**
+   * Gets the values as a reference, in column-major order. Element (row r, column c) is at c*4+r.
+   *
+   * @return  a reference to the 16 values
+   */
+  public double[] getValues() {
+    return m;
+  }
+
+  public double get(int row, int col) {
+    return m[col*4+row];
+  }
+
+  /**
+   * Multiplies this matrix on the right by another, i.e. this = this * b.
+   *
+   * @param  b  the other matrix
+   */
+  public void multiply(Matrix4 b) {
+    multiply(b.m);
+  }
+
+  /**
+   * Multiplies this matrix on the right by another, i.e. this = this * b.
+   *
+   * @param  b  16 values in column-major order
+   */
+  public void multiply(double[] b) {
+    double[] res = new double[16];
+    for (int c=0; c<4; c++)
+      for (int r=0; r<4; r++)
+        res[c*4+r] = m[r]*b[c*4] + m[4+r]*b[c*4+1] + m[8+r]*b[c*4+2] + m[12+r]*b[c*4+3];
+    m = res;
+  }
+
+  /**
+   * As glTranslated.
+   */
+  public void translate(double x, double y, double z) {
+    for (int r=0; r<4; r++)
+      m[12+r] += m[r]*x + m[4+r]*y + m[8+r]*z;
+  }
+
+  /**
+   * As glScaled.
+   */
+  public void scale(double x, double y, double z) {
+    for (int r=0; r<4; r++) {
+      m[r] *= x;
+      m[4+r] *= y;
+      m[8+r] *= z;
+    }
+  }
+
+  /**
+   * As glRotated: rotates by angle degrees anticlockwise about the axis (x,y,z).
+   */
+  public void rotate(double angle, double x, double y, double z) {
+    double mag = Math.sqrt(x*x+y*y+z*z);
+    if (mag == 0) return;
+    x /= mag;
+    y /= mag;
+    z /= mag;
+    double a = Math.toRadians(angle);
+    double c = Math.cos(a), s = Math.sin(a), t = 1-c;
+    multiply(new double[]{
+      t*x*x+c,   t*x*y+s*z, t*x*z-s*y, 0,
+      t*x*y-s*z, t*y*y+c,   t*y*z+s*x, 0,
+      t*x*z+s*y, t*y*z-s*x, t*z*z+c,   0,
+      0,         0,         0,         1});
+  }
+
+  /**
+   * As glFrustum: multiplies by a perspective projection.
+   */
+  public void frustum(double left, double right, double bottom, double top, double near, double far) {
+    multiply(new double[]{
+      2*near/(right-left),         0,                           0,                        0,
+      0,                           2*near/(top-bottom),         0,                        0,
+      (right+left)/(right-left),   (top+bottom)/(top-bottom),   -(far+near)/(far-near),   -1,
+      0,                           0,                           -2*far*near/(far-near),   0});
+  }
+
+  /**
+   * As gluLookAt: multiplies by the viewing transformation for an eye at (eyeX,eyeY,eyeZ)
+   * looking at (centreX,centreY,centreZ), with the given up direction.
+   */
+  public void lookAt(double eyeX, double eyeY, double eyeZ,
+                     double centreX, double centreY, double centreZ,
+                     double upX, double upY, double upZ) {
+    double fx = centreX-eyeX, fy = centreY-eyeY, fz = centreZ-eyeZ;
+    double mag = Math.sqrt(fx*fx+fy*fy+fz*fz);
+    if (mag == 0) return;
+    fx /= mag;
+    fy /= mag;
+    fz /= mag;
+    double sx = fy*upZ-fz*upY, sy = fz*upX-fx*upZ, sz = fx*upY-fy*upX;  // f x up
+    mag = Math.sqrt(sx*sx+sy*sy+sz*sz);
+    if (mag == 0) return;
+    sx /= mag;
+    sy /= mag;
+    sz /= mag;
+    double ux = sy*fz-sz*fy, uy = sz*fx-sx*fz, uz = sx*fy-sy*fx;  // s x f
+    multiply(new double[]{
+      sx, ux, -fx, 0,
+      sy, uy, -fy, 0,
+      sz, uz, -fz, 0,
+      0,  0,  0,   1});
+    translate(-eyeX, -eyeY, -eyeZ);
+  }
+
+  /**
+   * The largest factor by which the matrix scales a length, e.g. for the radius of a transformed
+   * bounding sphere. Exact if any scale() comes after the rotate() calls, as in the scene.
+   *
+   * @return  the length of the longest of the first three columns
+   */
+  public double getMaxScale() {
+    double s = 0;
+    for (int c=0; c<3; c++)
+      s = Math.max(s, m[c*4]*m[c*4] + m[c*4+1]*m[c*4+1] + m[c*4+2]*m[c*4+2]);
+    return Math.sqrt(s);
+  }
+
+  /**
+   * Transforms a point, i.e. out = this * (x,y,z,1). The result is divided by w if w is not 1.
+   *
+   * @param  out  set to the transformed x,y,z
+   */
+  public void transformPoint(double x, double y, double z, double[] out) {
+    double w = m[3]*x + m[7]*y + m[11]*z + m[15];
+    if (w == 0) w = 1;
+    double tx = (m[0]*x + m[4]*y + m[8]*z + m[12])/w;
+    double ty = (m[1]*x + m[5]*y + m[9]*z + m[13])/w;
+    double tz = (m[2]*x + m[6]*y + m[10]*z + m[14])/w;
+    out[0] = tx;
+    out[1] = ty;
+    out[2] = tz;
+  }
+
+  /**
+   * Transforms a normal, using the inverse transpose of the upper 3x3 part of the matrix
+   * so that normals stay at right angles to surfaces even after non-uniform scaling.
+   * The result is normalised.
+   *
+   * @param  out  set to the transformed normal x,y,z
+   */
+  public void transformNormal(double x, double y, double z, double[] out) {
+    // the inverse transpose is the cofactor matrix divided by the determinant, and the division
+    // does not matter as the result is normalised
+    double c00 = m[5]*m[10]-m[9]*m[6], c01 = m[9]*m[2]-m[1]*m[10], c02 = m[1]*m[6]-m[5]*m[2];
+    double c10 = m[8]*m[6]-m[4]*m[10], c11 = m[0]*m[10]-m[8]*m[2], c12 = m[4]*m[2]-m[0]*m[6];
+    double c20 = m[4]*m[9]-m[8]*m[5], c21 = m[8]*m[1]-m[0]*m[9], c22 = m[0]*m[5]-m[4]*m[1];
+    double det = m[0]*c00 + m[4]*c01 + m[8]*c02;
+    double tx = c00*x + c01*y + c02*z;
+    double ty = c10*x + c11*y + c12*z;
+    double tz = c20*x + c21*y + c22*z;
+    double mag = Math.sqrt(tx*tx+ty*ty+tz*tz);
+    if (det < 0) mag = -mag;   // a reflection would otherwise turn the normal inside out
+    if (mag != 0) {
+      tx /= mag;
+      ty /= mag;
+      tz /= mag;
+    }
+    out[0] = tx;
+    out[1] = ty;
+    out[2] = tz;
+  }
+
+  /**
+   * A clone of the matrix.
+   *
+   * @return  A clone of the matrix.
+   */
+  public Object clone() {
+    return new Matrix4(m);
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int r=0; r<4; r++)
+      sb.append("[").append(m[r]).append(", ").append(m[4+r]).append(", ").append(m[8+r]).append(", ").append(m[12+r]).append("]");
+    return sb.toString();
+  }
+
+}
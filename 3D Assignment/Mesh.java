@@ -1,17 +1,31 @@
 /**
  * The Mesh class is used to represent the basic structure that is common to all 3D objects
  * Arrays are used for the vertices and triangles.
+ * A Mesh can also be packed (see pack()), in which case the data is held in contiguous
+ * arrays of primitives (see PackedMeshData) rather than as one object per vertex and triangle.
+ * This uses much less memory for large meshes and is faster to process. The Vertex and
+ * Triangle methods still work on a packed Mesh, but return views onto the packed data.
  *
  * @author    Dr Steve Maddock
  * @version   3.1 (28/10/2015)
  */
  
 public class Mesh implements Cloneable {
-  public static final int MAX_NUM_VERTICES = 30000;
-  public static final int MAX_NUM_TRIANGLES = 10000;
+  /** @deprecated Not enforced. A Mesh can have any number of vertices, e.g. see MeshBuilder. */
+  @Deprecated public static final int MAX_NUM_VERTICES = 30000;
+  /** @deprecated Not enforced. A Mesh can have any number of triangles, e.g. see MeshBuilder. */
+  @Deprecated public static final int MAX_NUM_TRIANGLES = 10000;
 
   private Vertex[] vertices;
   private Triangle[] triangles;
+  private PackedMeshData packed;    // null unless the Mesh is packed
+  private MeshAdjacency adjacency;  // built when needed, if the Mesh is not packed
+  private boolean useDirectBuffers = false;
+  private MeshBuffers directBuffers;
+  private int[] boundsMinVertex = new int[3];  // index of a vertex on each side of the bounding box
+  private int[] boundsMaxVertex = new int[3];
+  private int dirtyFrom = Integer.MAX_VALUE, dirtyTo = 0;  // range of vertices that have moved
+  private int copyFrom = Integer.MAX_VALUE, copyTo = 0;    // moved vertices not yet copied to the direct buffers
   private Material material = new Material();
   private BoundingBox boundingbox = new BoundingBox();
   private float[] colour = new float[]{1.0f, 1.0f, 1.0f, 1.0f};
@@ -30,6 +44,7 @@ public class Mesh implements Cloneable {
    * @return  the number of vertices in the Mesh
    */ 
   public int getNumVertices() {
+    if (packed != null) return packed.getNumVertices();
     if (vertices != null) return vertices.length;
 	else return 0;
   }
@@ -37,23 +52,162 @@ public class Mesh implements Cloneable {
   /**
    * Set the vertex data structure. The reference is copied. A clone is not made. 
    * (Consider calling relevant method to set triangles too.)
+   * If the Mesh is packed, it is unpacked first.
    * 
    * @param  vertices         the new vertex data structure, passed as an array.
    */   
   public void setVertices(Vertex[] vertices) {
+    unpack();
     this.vertices = vertices;
     calcBoundingBox();
+    refreshDirectBuffers();
   }
 
   /**
    * Get the vertex data structure as a reference.
+   * If the Mesh is packed, a new array of views onto the packed data is returned instead.
    * 
    * @return  a reference to the vertex data structure
    */   
   public Vertex[] getVertices() {
+    if (packed != null) {
+      Vertex[] views = new Vertex[packed.getNumVertices()];
+      for (int v=0; v<views.length; v++)
+        views[v] = packed.getVertexView(v);
+      return views;
+    }
     return vertices;
   }
 
+  /**
+   * Packs the Mesh, i.e. copies the Vertex and Triangle data into contiguous arrays of
+   * primitives and discards the Vertex and Triangle objects. 
+   * References to Vertex or Triangle objects obtained before packing are no longer part of the Mesh.
+   * Does nothing if the Mesh is already packed.
+   */
+  public void pack() {
+    if (packed == null) {
+      packed = PackedMeshData.fromObjects(vertices, triangles);
+      vertices = null;
+      triangles = null;
+      adjacency = null;
+    }
+  }
+
+  /**
+   * Unpacks the Mesh, i.e. recreates the Vertex and Triangle objects from the packed data.
+   * Does nothing if the Mesh is not packed.
+   */
+  public void unpack() {
+    if (packed != null) {
+      vertices = packed.toVertices();
+      triangles = packed.toTriangles();
+      packed = null;
+      adjacency = null;
+    }
+  }
+
+  /**
+   * Whether or not the Mesh is packed.
+   * 
+   * @return  true if the Mesh data is held as a PackedMeshData
+   */
+  public boolean isPacked() {
+    return packed != null;
+  }
+
+  /**
+   * Set the packed data structure. The reference is copied. A clone is not made.
+   * The Mesh becomes packed, replacing any vertices and triangles it had.
+   * 
+   * @param  data  the new packed data
+   */
+  public void setPackedData(PackedMeshData data) {
+    packed = data;
+    vertices = null;
+    triangles = null;
+    adjacency = null;
+    calcBoundingBox();
+    refreshDirectBuffers();
+  }
+
+  /**
+   * Get the packed data structure as a reference.
+   * 
+   * @return  a reference to the packed data, or null if the Mesh is not packed
+   */
+  public PackedMeshData getPackedData() {
+    return packed;
+  }
+
+  /**
+   * Sets whether or not the Mesh should keep a copy of its data in direct buffers (see MeshBuffers),
+   * so that Render can pass the data straight to OpenGL instead of making its own copies.
+   * The buffers are a cache of the Mesh data, not where it is stored, so writing to them does
+   * not change the Mesh.
+   * 
+   * @param  b  true to use direct buffers
+   */
+  public void setUseDirectBuffers(boolean b) {
+    useDirectBuffers = b;
+    if (!b) {
+      directBuffers = null;
+      copyFrom = Integer.MAX_VALUE;
+      copyTo = 0;
+    }
+  }
+
+  /**
+   * Whether or not the Mesh keeps a copy of its data in direct buffers.
+   * 
+   * @return  true if direct buffers are used
+   */
+  public boolean getUseDirectBuffers() {
+    return useDirectBuffers;
+  }
+
+  /**
+   * Get the direct buffers holding a cached copy of the Mesh data. They are created the first time 
+   * this is called. The Mesh keeps them up to date when its data is set or its normals are calculated,
+   * and when it can it does this in place, so the same buffers stay valid.
+   * Vertices recorded using markVerticesDirty(...) are copied into the buffers here, if they have
+   * not been copied already, so the buffers returned always have the latest positions. Their normals
+   * are copied when updateDirtyVertices() is called.
+   * If vertex data is altered in any other way, e.g. using getVertex(...) without marking the
+   * vertices as dirty, call updateDirectBuffers().
+   * 
+   * @return  a reference to the direct buffers
+   */
+  public MeshBuffers getDirectBuffers() {
+    if (directBuffers == null)
+      directBuffers = new MeshBuffers(this);
+    else if (copyFrom<copyTo)
+      directBuffers.updateVertices(this, copyFrom, Math.min(copyTo, getNumVertices()));
+    copyFrom = Integer.MAX_VALUE;
+    copyTo = 0;
+    return directBuffers;
+  }
+
+  /**
+   * Copies the current Mesh data into the direct buffers, if they exist.
+   */
+  public void updateDirectBuffers() {
+    if (directBuffers != null) {
+      directBuffers.update(this);
+      copyFrom = Integer.MAX_VALUE;
+      copyTo = 0;
+    }
+  }
+
+  private void refreshDirectBuffers() {
+    if (directBuffers != null) {
+      if (directBuffers.fits(this)) directBuffers.update(this);
+      else directBuffers = null;
+    }
+    copyFrom = Integer.MAX_VALUE;
+    copyTo = 0;
+  }
+
   /**
    * Gets the vertex (x,y,z) data as an array of doubles. This is a copy of the data stored
    * in the vertex data structure.
@@ -62,6 +216,8 @@ public class Mesh implements Cloneable {
    * @return  an array of doubles representing the vertex x,y,z data
    */   
   public double[] getVertexList() {
+    if (packed != null)
+      return java.util.Arrays.copyOf(packed.getPositions(), packed.getNumVertices()*3);
     double[] tempverts = new double[vertices.length*3];
     for (int v=0; v<vertices.length; v++) {
       tempverts[v*3] = vertices[v].getPositionX();
@@ -79,6 +235,8 @@ public class Mesh implements Cloneable {
    * @return  an array of doubles representing the vertex normals x,y,z data
    */   
   public double[] getNormalList() {
+    if (packed != null)
+      return java.util.Arrays.copyOf(packed.getNormals(), packed.getNumVertices()*3);
     double[] temp = new double[vertices.length*3];
     for (int v=0; v<vertices.length; v++) {
       temp[v*3] = vertices[v].getNormalX();
@@ -96,6 +254,8 @@ public class Mesh implements Cloneable {
    * @return  an array of doubles representing the vertex texture coords x,y,z data
    */   
   public double[] getTextureCoordsList() {
+    if (packed != null)
+      return java.util.Arrays.copyOf(packed.getTexCoords(), packed.getNumVertices()*2);
     double[] temp = new double[vertices.length*2];
     for (int v=0; v<vertices.length; v++) {
       temp[v*2] = vertices[v].getTextureCoordU();
@@ -107,11 +267,14 @@ public class Mesh implements Cloneable {
   /**
    * Get a reference to a specific vertex in the Mesh.
    * Users should be aware that this allows original data to be altered.
+   * If the Mesh is packed, a view onto the packed data is returned.
    * 
    * @param  index  the index of the vertex to return.
    * @return  a reference to the Vertex at the given index value. null is returned if the vertex index does not exist.
    */ 
   public Vertex getVertex(int index) {
+    if (packed != null)
+      return (index < packed.getNumVertices()) ? packed.getVertexView(index) : null;
     // Return a clone of the vertex and not the original one so that external classes cannot alter the data
     if (index < vertices.length)
       return vertices[index];
@@ -127,6 +290,8 @@ public class Mesh implements Cloneable {
    * @return  a clone of the Vertex at the given index value. null is returned if the vertex index does not exist.
    */ 
   public Vertex getVertexClone(int index) {
+    if (packed != null)
+      return (index < packed.getNumVertices()) ? (Vertex) packed.getVertexView(index).clone() : null;
     // Return a clone of the vertex and not the original one so that external classes cannot alter the data
     if (index < vertices.length)
       return (Vertex) vertices[index].clone();
@@ -140,6 +305,7 @@ public class Mesh implements Cloneable {
    * @return  the number of triangles in the Mesh
    */   
   public int getNumTriangles() {
+    if (packed != null) return packed.getNumTriangles();
     if (triangles != null) return triangles.length;
     else return 0;
   }
@@ -147,19 +313,44 @@ public class Mesh implements Cloneable {
   /**
    * Set the triangle data structure. The reference is copied. A clone is not made. 
    * (Consider calling relevant method to set vertices too.)
+   * If the Mesh is packed, it is unpacked first.
    * 
    * @param  triangles         the new triangle data structure, passed as an array.
    */   
   public void setTriangles(Triangle[] triangles) {
+    unpack();
     this.triangles = triangles;
+    adjacency = null;
+    refreshDirectBuffers();
+  }
+
+  /**
+   * Gets the adjacency of the triangles (see MeshAdjacency), for fast neighbourhood queries.
+   * It is built the first time it is needed and kept until the triangles are replaced.
+   * If the vertex indices of existing Triangle objects are changed, call setTriangles(...) again
+   * so that the adjacency is rebuilt.
+   * 
+   * @return  the adjacency
+   */
+  public MeshAdjacency getAdjacency() {
+    if (packed != null) return packed.getAdjacency();
+    if (adjacency == null) adjacency = MeshAdjacency.create(this);
+    return adjacency;
   }
    
   /**
    * Get a reference to the triangle data structure.
+   * If the Mesh is packed, a new array of views onto the packed data is returned instead.
    * 
    * @return  a reference to the triangle data structure
    */   
   public Triangle[] getTriangles() {
+    if (packed != null) {
+      Triangle[] views = new Triangle[packed.getNumTriangles()];
+      for (int t=0; t<views.length; t++)
+        views[t] = packed.getTriangleView(t);
+      return views;
+    }
     return triangles;
   }
 
@@ -172,6 +363,8 @@ public class Mesh implements Cloneable {
    * @return  an array of ints representing the triangle vertex index data
    */   
   public int[] getTriangleList() {
+    if (packed != null)
+      return java.util.Arrays.copyOf(packed.getIndices(), packed.getNumTriangles()*3);
     int[] temptris = new int[triangles.length*3];
     for (int t=0; t<triangles.length; t++)
       for (int i=0; i<3; i++)
@@ -182,11 +375,14 @@ public class Mesh implements Cloneable {
   /**
    * Get a reference to a specific triangle in the Mesh.
    * Users should be aware that the original data can thus be altered.
+   * If the Mesh is packed, a view onto the packed data is returned.
    * 
    * @param  index  the index of the triangle to return.
    * @return  a reference to the Triangle at the given index value.  null is returned if the triangle index does not exist.
    */   
   public Triangle getTriangle(int index) {
+    if (packed != null)
+      return (index < packed.getNumTriangles()) ? packed.getTriangleView(index) : null;
     if (index<triangles.length)
       return triangles[index];
     else
@@ -201,6 +397,8 @@ public class Mesh implements Cloneable {
    * @return  a copy of the Triangle at the given index value.  null is returned if the triangle index does not exist.
    */   
   public Triangle getTriangleClone(int index) {
+    if (packed != null)
+      return (index < packed.getNumTriangles()) ? (Triangle) packed.getTriangleView(index).clone() : null;
     if (index<triangles.length)
       return (Triangle) triangles[index].clone();
     else
@@ -269,7 +467,7 @@ public class Mesh implements Cloneable {
    * @return  a clone of the colour for the Mesh
    */   
   public float[] getColour() {
-    return (float[]) colour.clone();
+    return colour.clone();
   }
 
   /**
@@ -286,20 +484,115 @@ public class Mesh implements Cloneable {
     double min[] = new double[3];
     double max[] = new double[3];
     
-    if (vertices.length>0) {
-      for (i=0; i<3; i++)
+    if (packed != null) {
+      if (packed.calcBounds(min, max, boundsMinVertex, boundsMaxVertex))
+        boundingbox.setBounds(min, max);
+    }
+    else if (vertices.length>0) {
+      for (i=0; i<3; i++) {
         max[i] = min[i] = vertices[0].getPosition()[i];
+        boundsMinVertex[i] = boundsMaxVertex[i] = 0;
+      }
          
       for (i=1; i<vertices.length; i++)
         for (int j=0; j<3; j++)
-          if (vertices[i].getPosition()[j]<min[j])
+          if (vertices[i].getPosition()[j]<min[j]) {
             min[j] = vertices[i].getPosition()[j];
-          else if (vertices[i].getPosition()[j]>max[j])
+            boundsMinVertex[j] = i;
+          }
+          else if (vertices[i].getPosition()[j]>max[j]) {
             max[j] = vertices[i].getPosition()[j];
+            boundsMaxVertex[j] = i;
+          }
       boundingbox.setBounds(min, max);
     }
   }
 
+  /**
+   * Updates the bounding box after the vertices from up to to have moved.
+   * If none of the vertices that defined the old bounding box moved, the box only needs
+   * to grow to include the moved vertices. Otherwise, the box is recalculated.
+   */
+  private void updateBoundingBox(int from, int to) {
+    for (int j=0; j<3; j++) {
+      if ((boundsMinVertex[j]>=from && boundsMinVertex[j]<to) || (boundsMaxVertex[j]>=from && boundsMaxVertex[j]<to)) {
+        calcBoundingBox();
+        return;
+      }
+    }
+    double min[] = boundingbox.getMinimumBounds().clone();
+    double max[] = boundingbox.getMaximumBounds().clone();
+    for (int v=from; v<to; v++)
+      for (int j=0; j<3; j++) {
+        double d = packed.getPosition(v, j);
+        if (d<min[j]) {
+          min[j] = d;
+          boundsMinVertex[j] = v;
+        }
+        else if (d>max[j]) {
+          max[j] = d;
+          boundsMaxVertex[j] = v;
+        }
+      }
+    boundingbox.setBounds(min, max);
+  }
+
+  /**
+   * Records that the vertices from up to to have moved. The normals and bounding box are
+   * not updated until updateDirtyVertices() is called, so several changes can be collected first.
+   * If the Mesh uses direct buffers, the new positions are copied into them the next time
+   * getDirectBuffers() is called.
+   * 
+   * @param  from  the first vertex that moved
+   * @param  to    the vertex after the last vertex that moved
+   */
+  public void markVerticesDirty(int from, int to) {
+    if (from<dirtyFrom) dirtyFrom = from;
+    if (to>dirtyTo) dirtyTo = to;
+    if (directBuffers != null) {
+      if (from<copyFrom) copyFrom = from;
+      if (to>copyTo) copyTo = to;
+    }
+  }
+
+  /**
+   * Updates the normals and bounding box for all the vertices recorded using markVerticesDirty(...).
+   * As with updateVertices(...), the Mesh must be packed if any vertices have been recorded.
+   */
+  public void updateDirtyVertices() {
+    if (dirtyFrom<dirtyTo) updateVertices(dirtyFrom, dirtyTo);
+    dirtyFrom = Integer.MAX_VALUE;
+    dirtyTo = 0;
+    copyFrom = Integer.MAX_VALUE;  // updateVertices(...) copied at least the dirty range
+    copyTo = 0;
+  }
+
+  /**
+   * Updates the normals and bounding box after the vertices from up to to have moved.
+   * Only the triangles that use those vertices have their normals recalculated, and the bounding
+   * box is updated without looking at the rest of the Mesh where possible. This makes it practical
+   * to deform a large Mesh every frame. The normals must have been calculated before the vertices
+   * moved, e.g. using calcSmoothNormals(), and the results are then the same as calling it again.
+   * The Mesh must be packed (see pack()). If the Mesh uses direct buffers, only the changed part
+   * of them is updated.
+   * 
+   * @param  from  the first vertex that moved
+   * @param  to    the vertex after the last vertex that moved
+   * @throws IllegalStateException  if the Mesh is not packed
+   */
+  public void updateVertices(int from, int to) {
+    if (packed == null)
+      throw new IllegalStateException("updateVertices(...) needs a packed Mesh; call pack() first");
+    if (from<0) from = 0;
+    if (to>packed.getNumVertices()) to = packed.getNumVertices();
+    if (from>=to) return;
+    int[] changed = new int[2];
+    packed.updateNormals(from, to, changed);
+    updateBoundingBox(from, to);
+    if (directBuffers != null)
+      directBuffers.updateVertices(this, changed[0], changed[1]);
+  }
+
   public void calcSmoothNormals() {
     int i, j;
     double mag;
@@ -307,6 +600,12 @@ public class Mesh implements Cloneable {
     double avec[] = new double[3];
     double bvec[] = new double[3];
     
+    if (packed != null) {
+      packed.calcSmoothNormals();
+      refreshDirectBuffers();
+      return;
+    }
+
     // Reset the vertex normals back to {0, 0, 0}
     for (i=0; i<vertices.length; i++)
       vertices[i].setNormal(0, 0, 0);
@@ -335,6 +634,22 @@ public class Mesh implements Cloneable {
     // normalise the normals
     for (i=0; i<vertices.length; ++i)
       vertices[i].normaliseNormal();
+    refreshDirectBuffers();
+  }
+
+  /**
+   * Calculates the smooth vertex normals (and the triangle normals) using all available processors.
+   * The results are identical, bit for bit, to calcSmoothNormals(). 
+   * Only packed data is split between processors, so if the Mesh is not packed this
+   * just calls calcSmoothNormals().
+   */
+  public void calcSmoothNormalsParallel() {
+    if (packed == null) {
+      calcSmoothNormals();
+      return;
+    }
+    packed.calcSmoothNormalsParallel();
+    refreshDirectBuffers();
   }
 
   /**
@@ -345,6 +660,9 @@ public class Mesh implements Cloneable {
   public Object clone() {
     Mesh res = new Mesh();
     
+    if (packed != null)
+      res.packed = (PackedMeshData) packed.clone();
+
     if (vertices != null) {
       res.vertices = new Vertex[vertices.length];
       for (int i=0; i<vertices.length; i++)
@@ -360,12 +678,43 @@ public class Mesh implements Cloneable {
     if (material != null)
       res.material = (Material) material.clone();          
    
-    res.colour = (float[]) colour.clone();
+    res.colour = colour.clone();
+    res.useDirectBuffers = useDirectBuffers;
+    res.boundsMinVertex = boundsMinVertex.clone();
+    res.boundsMaxVertex = boundsMaxVertex.clone();
 
     if (boundingbox != null)
       res.boundingbox = (BoundingBox) boundingbox.clone();
 
     return res;
   }
+
+  /**
+   * A copy-on-write clone of the Mesh. The clone shares the geometry (vertex and triangle data)
+   * with this Mesh until one of them changes it through the Mesh API, e.g. calcSmoothNormals()
+   * or setting a position on a Vertex returned by getVertex(...), and then only the arrays that
+   * are changed are copied (see PackedMeshData.cloneShared()). The Material, colour and bounding box
+   * are copied as normal. Useful for lots of copies of the same geometry with different materials.
+   * Only packed data can be shared, so if this Mesh is not packed the clone gets its own packed
+   * copy of the geometry instead, and this Mesh is left as it is.
+   * 
+   * @return  A clone of the Mesh that shares its geometry.
+   */ 
+  public Mesh cloneShared() {
+    Mesh res = new Mesh();
+    if (packed != null)
+      res.packed = packed.cloneShared();
+    else
+      res.packed = PackedMeshData.fromObjects(vertices, triangles);
+    if (material != null)
+      res.material = (Material) material.clone();
+    res.colour = colour.clone();
+    res.useDirectBuffers = useDirectBuffers;
+    res.boundsMinVertex = boundsMinVertex.clone();
+    res.boundsMaxVertex = boundsMaxVertex.clone();
+    if (boundingbox != null)
+      res.boundingbox = (BoundingBox) boundingbox.clone();
+    return res;
+  }
   
 }
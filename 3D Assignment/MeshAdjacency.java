@@ -0,0 +1,221 @@
+/**
+ * Connectivity of the triangles in a Mesh, as a corner table, so that neighbourhood queries
+ * (the triangles around a vertex, the triangle across an edge, boundary edges) do not need
+ * a scan of all the triangles.
+ * Corner c = t*3+j is vertex j of triangle t. It is also used as the half-edge that starts at
+ * that vertex and ends at the next vertex of the triangle, i.e. corner t*3+(j+1)%3.
+ * Each half-edge knows its twin, the half-edge going the other way along the same edge in the
+ * neighbouring triangle, or -1 if the edge is on a boundary (which includes texture seams, where
+ * vertices are duplicated). Edges shared by more than two triangles are paired off in order and
+ * any that are left over count as boundary edges.
+ * Each vertex has a list of the corners that use it, in increasing order.
+ * Everything is held in arrays of ints and built in time proportional to the number of triangles
+ * (for meshes in which each vertex is used by a bounded number of triangles).
+ * The adjacency is a snapshot: if the triangles change, a new one must be made.
+ */
+
+import java.util.*;
+
+public class MeshAdjacency {
+
+  private int numVertices;
+  private int numTriangles;
+  private int[] indices;
+  private int[] cornerStart;    // for each vertex, where its list of corners starts in vertexCorners
+  private int[] vertexCorners;
+  private int[] twin;
+  private int numBoundaryEdges;
+
+  /**
+   * Constructor. Builds the adjacency for the given triangles.
+   * The reference to indices is copied. A clone is not made.
+   *
+   * @param  indices       triangle vertex indices, at least numTriangles*3 long
+   * @param  numVertices   the number of vertices
+   * @param  numTriangles  the number of triangles
+   */
+  public MeshAdjacency(int[] indices, int numVertices, int numTriangles) {
+    this.indices = indices;
+    this.numVertices = numVertices;
+    this.numTriangles = numTriangles;
+    int n = numTriangles*3;
+
+    cornerStart = new int[numVertices+1];
+    for (int c=0; c<n; c++)
+      cornerStart[indices[c]+1]++;
+    for (int v=0; v<numVertices; v++)
+      cornerStart[v+1] += cornerStart[v];
+    int[] next = Arrays.copyOf(cornerStart, numVertices);
+    vertexCorners = new int[n];
+    for (int c=0; c<n; c++)
+      vertexCorners[next[indices[c]]++] = c;
+
+    // The twin of a->b is found among the half-edges leaving b
+    twin = new int[n];
+    Arrays.fill(twin, -1);
+    for (int h=0; h<n; h++) {
+      if (twin[h] >= 0) continue;
+      int a = indices[h], b = indices[next(h)];
+      for (int k=cornerStart[b]; k<cornerStart[b+1]; k++) {
+        int g = vertexCorners[k];
+        if (g != h && twin[g] < 0 && indices[next(g)] == a) {
+          twin[h] = g;
+          twin[g] = h;
+          break;
+        }
+      }
+      if (twin[h] < 0) numBoundaryEdges++;
+    }
+  }
+
+  /**
+   * Builds the adjacency for a Mesh.
+   *
+   * @param  m  the Mesh
+   * @return  the adjacency of its triangles
+   */
+  public static MeshAdjacency create(Mesh m) {
+    return new MeshAdjacency(m.getTriangleList(), m.getNumVertices(), m.getNumTriangles());
+  }
+
+  public int getNumVertices() { return numVertices; }
+
+  public int getNumTriangles() { return numTriangles; }
+
+  public static int next(int c) { return (c%3 == 2) ? c-2 : c+1; }
+
+  public static int prev(int c) { return (c%3 == 0) ? c+2 : c-1; }
+
+  public static int getTriangle(int c) { return c/3; }
+
+  /**
+   * Gets the vertex at a corner, i.e. the start vertex of the half-edge.
+   *
+   * @param  c  the corner
+   * @return  the vertex index
+   */
+  public int getVertex(int c) { return indices[c]; }
+
+  /**
+   * Gets the end vertex of the half-edge c.
+   *
+   * @param  c  the half-edge
+   * @return  the vertex index
+   */
+  public int getEndVertex(int c) { return indices[next(c)]; }
+
+  /**
+   * Gets the half-edge going the other way along the same edge.
+   *
+   * @param  c  the half-edge
+   * @return  the twin half-edge, or -1 if c is on a boundary
+   */
+  public int getTwin(int c) { return twin[c]; }
+
+  public boolean isBoundaryEdge(int c) { return twin[c] < 0; }
+
+  /**
+   * Gets the triangle on the other side of edge j of triangle t, i.e. the edge from vertex j to vertex (j+1)%3.
+   *
+   * @param  t  the triangle
+   * @param  j  the edge, 0, 1 or 2
+   * @return  the neighbouring triangle, or -1 if the edge is on a boundary
+   */
+  public int getEdgeNeighbour(int t, int j) {
+    int g = twin[t*3+j];
+    return (g < 0) ? -1 : g/3;
+  }
+
+  /**
+   * Gets the start of each vertex's list of corners in getVertexCorners().
+   * The corners that use vertex v are getVertexCorners()[getCornerStart()[v]] up to,
+   * but not including, getVertexCorners()[getCornerStart()[v+1]], in increasing order.
+   * A triangle that uses the same vertex twice has two corners listed.
+   *
+   * @return  a reference to the start indices, numVertices+1 long
+   */
+  public int[] getCornerStart() { return cornerStart; }
+
+  /**
+   * Gets the lists of corners that use each vertex. See getCornerStart().
+   *
+   * @return  a reference to the corner lists
+   */
+  public int[] getVertexCorners() { return vertexCorners; }
+
+  /**
+   * Gets the number of corners that use a vertex, i.e. the number of triangles around it.
+   *
+   * @param  v  the vertex
+   * @return  the number of corners
+   */
+  public int getValence(int v) { return cornerStart[v+1]-cornerStart[v]; }
+
+  /**
+   * Gets the triangles that use a vertex.
+   *
+   * @param  v  the vertex
+   * @return  a new array of triangle indices, in increasing order
+   */
+  public int[] getTriangles(int v) {
+    int[] res = new int[getValence(v)];
+    for (int k=0; k<res.length; k++)
+      res[k] = vertexCorners[cornerStart[v]+k]/3;
+    return res;
+  }
+
+  /**
+   * Gets the vertices joined to a vertex by an edge.
+   *
+   * @param  v  the vertex
+   * @return  a new array of vertex indices, each listed once
+   */
+  public int[] getNeighbours(int v) {
+    int[] res = new int[getValence(v)*2];
+    int count = 0;
+    for (int k=cornerStart[v]; k<cornerStart[v+1]; k++) {
+      int c = vertexCorners[k];
+      count = addOnce(res, count, indices[next(c)], v);
+      count = addOnce(res, count, indices[prev(c)], v);
+    }
+    return Arrays.copyOf(res, count);
+  }
+
+  private static int addOnce(int[] list, int count, int u, int v) {
+    if (u == v) return count;
+    for (int i=0; i<count; i++)
+      if (list[i] == u) return count;
+    list[count] = u;
+    return count+1;
+  }
+
+  /**
+   * Whether a vertex is on a boundary, i.e. is the start or end of a boundary edge.
+   *
+   * @param  v  the vertex
+   * @return  true if the vertex is on a boundary
+   */
+  public boolean isBoundaryVertex(int v) {
+    for (int k=cornerStart[v]; k<cornerStart[v+1]; k++) {
+      int c = vertexCorners[k];
+      if (twin[c] < 0 || twin[prev(c)] < 0) return true;
+    }
+    return false;
+  }
+
+  public int getNumBoundaryEdges() { return numBoundaryEdges; }
+
+  /**
+   * Gets all the boundary half-edges.
+   *
+   * @return  a new array of half-edges, in increasing order
+   */
+  public int[] getBoundaryEdges() {
+    int[] res = new int[numBoundaryEdges];
+    int count = 0;
+    for (int c=0; c<numTriangles*3; c++)
+      if (twin[c] < 0) res[count++] = c;
+    return res;
+  }
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Native-order direct buffers holding a copy of the data in a Mesh, ready to be handed
+ * straight to OpenGL (e.g. using glVertexPointer and glDrawElements) without any further copying.
+ * The buffers are a cache, not the Mesh's storage: changing them does not change the Mesh, and
+ * changes to the Mesh only reach them when they are copied in (see Mesh.getDirectBuffers()).
+ * All the buffers are slices of a single direct allocation: positions, normals and texture
+ * coords are stored as floats, and triangle vertex indices as ints.
+ * The data is organised in the same way as the list methods in Mesh, e.g. getVertexList().
+ */
+
+import java.nio.*;
+import com.jogamp.common.nio.*;
+
+public class MeshBuffers {
+
+  private int numVertices;
+  private int numTriangles;
+  private FloatBuffer positions;
+  private FloatBuffer normals;
+  private FloatBuffer texCoords;
+  private IntBuffer indices;
+
+  /**
+   * Constructor. Allocates buffers of the right size for the Mesh and copies its data into them.
+   *
+   * @param  m  the Mesh
+   */
+  public MeshBuffers(Mesh m) {
+    numVertices = m.getNumVertices();
+    numTriangles = m.getNumTriangles();
+    int nv = numVertices*Buffers.SIZEOF_FLOAT;
+    ByteBuffer block = Buffers.newDirectByteBuffer(nv*8+numTriangles*3*Buffers.SIZEOF_INT);
+    positions = slice(block, 0, nv*3).asFloatBuffer();
+    normals = slice(block, nv*3, nv*3).asFloatBuffer();
+    texCoords = slice(block, nv*6, nv*2).asFloatBuffer();
+    indices = slice(block, nv*8, numTriangles*3*Buffers.SIZEOF_INT).asIntBuffer();
+    update(m);
+  }
+
+  private static ByteBuffer slice(ByteBuffer block, int offset, int length) {
+    block.limit(offset+length);
+    block.position(offset);
+    ByteBuffer b = block.slice();
+    block.clear();
+    return b.order(ByteOrder.nativeOrder());  // slice() does not keep the byte order
+  }
+
+  /**
+   * Checks whether the buffers are the right size for the Mesh.
+   *
+   * @param  m  the Mesh
+   * @return  true if the Mesh has the same number of vertices and triangles as the buffers
+   */
+  public boolean fits(Mesh m) {
+    return m.getNumVertices() == numVertices && m.getNumTriangles() == numTriangles;
+  }
+
+  /**
+   * Copies all the data from the Mesh into the buffers.
+   * The Mesh must have the same number of vertices and triangles as when the buffers were created.
+   *
+   * @param  m  the Mesh
+   */
+  public void update(Mesh m) {
+    updateVertices(m, 0, numVertices);
+    PackedMeshData packed = m.getPackedData();
+    if (packed != null) {
+      int[] tris = packed.getIndices();
+      for (int i=0; i<numTriangles*3; i++)
+        indices.put(i, tris[i]);
+    }
+    else {
+      for (int t=0; t<numTriangles; t++)
+        for (int j=0; j<3; j++)
+          indices.put(t*3+j, m.getTriangle(t).getVertexIndex(j));
+    }
+  }
+
+  /**
+   * Copies the position, normal and texture coords of a range of vertices from the Mesh into the buffers.
+   *
+   * @param  m     the Mesh
+   * @param  from  index of the first vertex to copy
+   * @param  to    index after the last vertex to copy
+   */
+  public void updateVertices(Mesh m, int from, int to) {
+    PackedMeshData packed = m.getPackedData();
+    if (packed != null) {
+      double[] p = packed.getPositions();
+      double[] n = packed.getNormals();
+      double[] uv = packed.getTexCoords();
+      for (int i=from*3; i<to*3; i++) {
+        positions.put(i, (float) p[i]);
+        normals.put(i, (float) n[i]);
+      }
+      for (int i=from*2; i<to*2; i++)
+        texCoords.put(i, (float) uv[i]);
+    }
+    else {
+      for (int v=from; v<to; v++) {
+        Vertex vertex = m.getVertex(v);
+        for (int j=0; j<3; j++) {
+          positions.put(v*3+j, (float) vertex.getPosition()[j]);
+          normals.put(v*3+j, (float) vertex.getNormal()[j]);
+        }
+        texCoords.put(v*2, (float) vertex.getTextureCoordU());
+        texCoords.put(v*2+1, (float) vertex.getTextureCoordV());
+      }
+    }
+  }
+
+  public int getNumVertices() { return numVertices; }
+
+  public int getNumTriangles() { return numTriangles; }
+
+  /**
+   * Gets the vertex x,y,z buffer (as a reference)
+   *
+   * @return  the vertex positions
+   */
+  public FloatBuffer getPositions() { return positions; }
+
+  /**
+   * Gets the vertex normal x,y,z buffer (as a reference)
+   *
+   * @return  the vertex normals
+   */
+  public FloatBuffer getNormals() { return normals; }
+
+  /**
+   * Gets the vertex texture coords u,v buffer (as a reference)
+   *
+   * @return  the vertex texture coords
+   */
+  public FloatBuffer getTexCoords() { return texCoords; }
+
+  /**
+   * Gets the triangle vertex indices buffer (as a reference)
+   *
+   * @return  the triangle vertex indices
+   */
+  public IntBuffer getIndices() { return indices; }
+
+}
@@ -0,0 +1,241 @@
+/**
+ * Builds a packed Mesh (see PackedMeshData) a vertex and a triangle at a time, without
+ * needing to know the final size in advance. The data goes straight into arrays of primitives,
+ * which grow by half as much again whenever they are full, so adding n vertices or triangles
+ * takes O(n) time overall. build() hands the arrays to the Mesh without copying them,
+ * so meshes with millions of triangles can be made without holding two copies.
+ * Typical use:
+ *   MeshBuilder b = new MeshBuilder();
+ *   int v0 = b.addVertex(0,0,0, 0,0);  ...
+ *   b.addTriangle(v0, v1, v2);  ...
+ *   Mesh m = b.build();
+ *   m.calcSmoothNormals();
+ */
+
+import java.util.Arrays;
+
+public class MeshBuilder {
+
+  private static final int DEFAULT_CAPACITY = 64;
+  private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE-8;
+
+  private int numVertices;
+  private int numTriangles;
+  private double[] positions;
+  private double[] normals;
+  private double[] texCoords;
+  private int[] indices;
+  private double[] triangleNormals;   // only allocated if triangle normals are set
+
+  /**
+   * Constructor. Starts with room for a small number of vertices and triangles.
+   */
+  public MeshBuilder() {
+    this(DEFAULT_CAPACITY, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Constructor. Starts with room for the given number of vertices and triangles.
+   * More are allowed; this just avoids growing the arrays if the sizes are known.
+   *
+   * @param  vertexCapacity    the expected number of vertices
+   * @param  triangleCapacity  the expected number of triangles
+   */
+  public MeshBuilder(int vertexCapacity, int triangleCapacity) {
+    vertexCapacity = Math.max(vertexCapacity, 1);
+    triangleCapacity = Math.max(triangleCapacity, 1);
+    positions = new double[vertexCapacity*3];
+    normals = new double[vertexCapacity*3];
+    texCoords = new double[vertexCapacity*2];
+    indices = new int[triangleCapacity*3];
+  }
+
+  public int getNumVertices() { return numVertices; }
+
+  public int getNumTriangles() { return numTriangles; }
+
+/* Vertices ******************************************************************
+*/
+
+  /**
+   * Adds a vertex with a normal of (0,0,0) and texture coords of (0,0).
+   *
+   * @return  the index of the new vertex
+   */
+  public int addVertex(double x, double y, double z) {
+    return addVertex(x, y, z, 0, 0, 0, 0, 0);
+  }
+
+  /**
+   * Adds a vertex with a normal of (0,0,0).
+   *
+   * @return  the index of the new vertex
+   */
+  public int addVertex(double x, double y, double z, double u, double v) {
+    return addVertex(x, y, z, 0, 0, 0, u, v);
+  }
+
+  /**
+   * Adds a vertex.
+   *
+   * @param  x,y,z     the position
+   * @param  nx,ny,nz  the normal
+   * @param  u,v       the texture coords
+   * @return  the index of the new vertex
+   */
+  public int addVertex(double x, double y, double z, double nx, double ny, double nz, double u, double v) {
+    ensureVertexCapacity(numVertices+1);
+    int i = numVertices*3;
+    positions[i] = x;
+    positions[i+1] = y;
+    positions[i+2] = z;
+    normals[i] = nx;
+    normals[i+1] = ny;
+    normals[i+2] = nz;
+    texCoords[numVertices*2] = u;
+    texCoords[numVertices*2+1] = v;
+    return numVertices++;
+  }
+
+  /**
+   * Adds a number of vertices at once. The data is organised in the same way as the list
+   * methods in Mesh, e.g. getVertexList().
+   *
+   * @param  positions  vertex x,y,z data, at least count*3 long
+   * @param  normals    vertex normal x,y,z data, at least count*3 long; otherwise, null for (0,0,0)
+   * @param  texCoords  vertex texture coords u,v data, at least count*2 long; otherwise, null for (0,0)
+   * @param  count      the number of vertices to add
+   * @return  the index of the first new vertex
+   */
+  public int addVertices(double[] positions, double[] normals, double[] texCoords, int count) {
+    ensureVertexCapacity(numVertices+(long) count);
+    int first = numVertices;
+    System.arraycopy(positions, 0, this.positions, first*3, count*3);
+    if (normals != null) System.arraycopy(normals, 0, this.normals, first*3, count*3);
+    if (texCoords != null) System.arraycopy(texCoords, 0, this.texCoords, first*2, count*2);
+    numVertices += count;
+    return first;
+  }
+
+  public void setPosition(int v, double x, double y, double z) {
+    positions[v*3] = x;
+    positions[v*3+1] = y;
+    positions[v*3+2] = z;
+  }
+
+  public void setNormal(int v, double nx, double ny, double nz) {
+    normals[v*3] = nx;
+    normals[v*3+1] = ny;
+    normals[v*3+2] = nz;
+  }
+
+  public void setTextureCoord(int v, double u, double tv) {
+    texCoords[v*2] = u;
+    texCoords[v*2+1] = tv;
+  }
+
+/* Triangles ******************************************************************
+*/
+
+  /**
+   * Adds a triangle, with vertices in anticlockwise order when viewed from the front.
+   *
+   * @param  i1, i2, i3  the indices of the vertices
+   * @return  the index of the new triangle
+   */
+  public int addTriangle(int i1, int i2, int i3) {
+    ensureTriangleCapacity(numTriangles+1);
+    int i = numTriangles*3;
+    indices[i] = i1;
+    indices[i+1] = i2;
+    indices[i+2] = i3;
+    return numTriangles++;
+  }
+
+  /**
+   * Adds a number of triangles at once.
+   *
+   * @param  indices       triangle vertex indices, at least count*3 long
+   * @param  count         the number of triangles to add
+   * @param  vertexOffset  added to every index, e.g. the value returned by addVertices(...)
+   * @return  the index of the first new triangle
+   */
+  public int addTriangles(int[] indices, int count, int vertexOffset) {
+    ensureTriangleCapacity(numTriangles+(long) count);
+    int first = numTriangles;
+    int start = first*3;
+    if (vertexOffset == 0) {
+      System.arraycopy(indices, 0, this.indices, start, count*3);
+    }
+    else {
+      for (int i=0; i<count*3; i++)
+        this.indices[start+i] = indices[i]+vertexOffset;
+    }
+    numTriangles += count;
+    return first;
+  }
+
+  /**
+   * Sets the normal of a triangle. If no triangle normals are set, they are all (0,0,0)
+   * until calculated, e.g. by Mesh.calcSmoothNormals().
+   */
+  public void setTriangleNormal(int t, double nx, double ny, double nz) {
+    if (triangleNormals == null) triangleNormals = new double[indices.length];
+    triangleNormals[t*3] = nx;
+    triangleNormals[t*3+1] = ny;
+    triangleNormals[t*3+2] = nz;
+  }
+
+/* Building ******************************************************************
+*/
+
+  /**
+   * Creates a packed Mesh from the data added so far. The arrays are handed over, not copied,
+   * so the builder is emptied ready to start again.
+   * Normals are not calculated; call Mesh.calcSmoothNormals() if they have not been set.
+   *
+   * @return  the new Mesh
+   * @throws  IllegalStateException  if a triangle uses a vertex index that does not exist
+   */
+  public Mesh build() {
+    for (int i=0; i<numTriangles*3; i++)
+      if (indices[i] < 0 || indices[i] >= numVertices)
+        throw new IllegalStateException("Triangle "+i/3+" uses vertex "+indices[i]+", but there are only "
+                                        +numVertices+" vertices");
+    PackedMeshData data = new PackedMeshData(positions, normals, texCoords, numVertices,
+                                             indices, triangleNormals, numTriangles);
+    Mesh mesh = new Mesh();
+    mesh.setPackedData(data);
+    numVertices = numTriangles = 0;
+    positions = new double[DEFAULT_CAPACITY*3];
+    normals = new double[DEFAULT_CAPACITY*3];
+    texCoords = new double[DEFAULT_CAPACITY*2];
+    indices = new int[DEFAULT_CAPACITY*3];
+    triangleNormals = null;
+    return mesh;
+  }
+
+  private void ensureVertexCapacity(long needed) {
+    if (needed*3 <= positions.length) return;
+    int capacity = newCapacity(positions.length/3, needed);
+    positions = Arrays.copyOf(positions, capacity*3);
+    normals = Arrays.copyOf(normals, capacity*3);
+    texCoords = Arrays.copyOf(texCoords, capacity*2);
+  }
+
+  private void ensureTriangleCapacity(long needed) {
+    if (needed*3 <= indices.length) return;
+    int capacity = newCapacity(indices.length/3, needed);
+    indices = Arrays.copyOf(indices, capacity*3);
+    if (triangleNormals != null) triangleNormals = Arrays.copyOf(triangleNormals, capacity*3);
+  }
+
+  /* Grows by half as much again (or to what is needed, if more), staying within the largest array length */
+  private static int newCapacity(int current, long needed) {
+    long max = MAX_ARRAY_LENGTH/3;
+    if (needed > max)
+      throw new IllegalStateException("Too many vertices or triangles for one Mesh: "+needed);
+    return (int) Math.min(max, Math.max(needed, current+(current>>1)));
+  }
+
+}
@@ -0,0 +1,403 @@
+/**
+ * Methods that optimise the data in a Mesh, without changing what it looks like.
+ * All the methods work on packed data, so the Mesh is packed first (see Mesh.pack()).
+ */
+
+public class MeshOptimiser {
+
+/* Vertex welding ******************************************************************
+*/
+
+  /**
+   * Welds together vertices whose position, normal and texture coords all match within the given tolerance.
+   * See weldVertices(Mesh, double, double, double).
+   *
+   * @param  m          the Mesh
+   * @param  tolerance  the largest difference allowed in any x,y,z, normal or u,v component
+   * @return  the number of vertices removed
+   */
+  public static int weldVertices(Mesh m, double tolerance) {
+    return weldVertices(m, tolerance, tolerance, tolerance);
+  }
+
+  /**
+   * Welds together vertices whose position, normal and texture coords all match within the given tolerances,
+   * keeping the first of each group, and rewrites the triangle vertex indices to use the remaining vertices.
+   * Triangles that end up using the same vertex more than once are removed.
+   * Vertices are placed in a spatial hash grid with cells the size of the position tolerance,
+   * so each vertex is only compared with the vertices in the neighbouring cells and the pass runs in O(n).
+   * Hard edges (e.g. the corners of a hard cube) are kept, since the vertices there have different normals.
+   *
+   * @param  m                  the Mesh
+   * @param  positionTolerance  the largest difference allowed in any x,y,z component
+   * @param  normalTolerance    the largest difference allowed in any normal component
+   * @param  uvTolerance        the largest difference allowed in any u,v component
+   * @return  the number of vertices removed
+   */
+  public static int weldVertices(Mesh m, double positionTolerance, double normalTolerance, double uvTolerance) {
+    m.pack();
+    PackedMeshData data = m.getPackedData();
+    int nv = data.getNumVertices();
+    int nt = data.getNumTriangles();
+    double[] p = data.getPositions();
+    double[] n = data.getNormals();
+    double[] uv = data.getTexCoords();
+    int[] tris = data.getIndices();
+
+    double cellSize = Math.max(positionTolerance, 1e-9);
+    int size = Integer.highestOneBit(Math.max(nv, 1)*2-1)*2;   // power of 2, at least 2*nv
+    int mask = size-1;
+    int[] head = new int[size];       // first vertex in each hash bucket
+    int[] next = new int[nv];         // next vertex in the same bucket
+    java.util.Arrays.fill(head, -1);
+    int[] remap = new int[nv];        // old vertex index to new vertex index
+    int[] kept = new int[nv];         // new vertex index to old vertex index
+    int numKept = 0;
+
+    for (int v=0; v<nv; v++) {
+      long cx = (long) Math.floor(p[v*3]/cellSize);
+      long cy = (long) Math.floor(p[v*3+1]/cellSize);
+      long cz = (long) Math.floor(p[v*3+2]/cellSize);
+      int match = -1;
+      for (long dx=-1; dx<=1 && match<0; dx++)
+        for (long dy=-1; dy<=1 && match<0; dy++)
+          for (long dz=-1; dz<=1 && match<0; dz++) {
+            for (int u=head[hashCell(cx+dx, cy+dy, cz+dz) & mask]; u>=0; u=next[u]) {
+              if (within(p, u*3, v*3, 3, positionTolerance) && within(n, u*3, v*3, 3, normalTolerance)
+                  && within(uv, u*2, v*2, 2, uvTolerance)) {
+                match = u;
+                break;
+              }
+            }
+          }
+      if (match >= 0) {
+        remap[v] = remap[match];
+      }
+      else {
+        int b = hashCell(cx, cy, cz) & mask;
+        next[v] = head[b];
+        head[b] = v;
+        remap[v] = numKept;
+        kept[numKept++] = v;
+      }
+    }
+    if (numKept == nv) return 0;
+
+    double[] newp = new double[numKept*3];
+    double[] newn = new double[numKept*3];
+    double[] newuv = new double[numKept*2];
+    for (int i=0; i<numKept; i++) {
+      System.arraycopy(p, kept[i]*3, newp, i*3, 3);
+      System.arraycopy(n, kept[i]*3, newn, i*3, 3);
+      System.arraycopy(uv, kept[i]*2, newuv, i*2, 2);
+    }
+    int[] newtris = new int[nt*3];
+    double[] newtn = new double[nt*3];
+    double[] tn = data.getTriangleNormals();
+    int numTris = 0;
+    for (int t=0; t<nt; t++) {
+      int a = remap[tris[t*3]], b = remap[tris[t*3+1]], c = remap[tris[t*3+2]];
+      if (a==b || b==c || a==c) continue;
+      newtris[numTris*3] = a;
+      newtris[numTris*3+1] = b;
+      newtris[numTris*3+2] = c;
+      System.arraycopy(tn, t*3, newtn, numTris*3, 3);
+      numTris++;
+    }
+    m.setPackedData(new PackedMeshData(newp, newn, newuv, numKept, newtris, newtn, numTris));
+    return nv-numKept;
+  }
+
+/* Vertex cache optimisation ******************************************************************
+*/
+
+  public static final int DEFAULT_CACHE_SIZE = 32;
+
+  // Scoring constants from Tom Forsyth, "Linear-Speed Vertex Cache Optimisation" (2006)
+  private static final double CACHE_DECAY_POWER = 1.5;
+  private static final double LAST_TRI_SCORE = 0.75;
+  private static final double VALENCE_BOOST_SCALE = 2.0;
+  private static final double VALENCE_BOOST_POWER = 0.5;
+
+  /**
+   * Calculates the average cache miss ratio (ACMR), i.e. the average number of vertices that
+   * would need to be transformed per triangle, for a FIFO post-transform vertex cache of the given size.
+   * 0.5 is the best possible for a large regular grid and 3.0 is the worst.
+   *
+   * @param  m          the Mesh
+   * @param  cacheSize  the number of vertices the cache holds
+   * @return  the average cache miss ratio
+   */
+  public static double calcACMR(Mesh m, int cacheSize) {
+    m.pack();
+    PackedMeshData data = m.getPackedData();
+    int nt = data.getNumTriangles();
+    if (nt == 0) return 0;
+    int[] tris = data.getIndices();
+    int[] entered = new int[data.getNumVertices()];  // when each vertex entered the cache; 0 for never
+    int time = 0, misses = 0;
+    for (int i=0; i<nt*3; i++) {
+      int v = tris[i];
+      if (entered[v] == 0 || time-entered[v] >= cacheSize) {
+        misses++;
+        entered[v] = ++time;
+      }
+    }
+    return (double) misses/nt;
+  }
+
+  /**
+   * Reorders the triangles of the Mesh so that vertices are reused while they are still in
+   * the graphics card's post-transform vertex cache, using Forsyth's linear-speed algorithm
+   * with a cache of DEFAULT_CACHE_SIZE vertices.
+   *
+   * @param  m  the Mesh
+   */
+  public static void optimiseVertexCache(Mesh m) {
+    optimiseVertexCache(m, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * Reorders the triangles of the Mesh so that vertices are reused while they are still in
+   * the graphics card's post-transform vertex cache, using Forsyth's linear-speed algorithm.
+   * Each vertex is scored by its position in a simulated LRU cache and by how many triangles
+   * still need it, and the next triangle is the one with the highest total score.
+   * Only the triangle order changes; the triangles themselves and the vertices stay the same.
+   *
+   * @param  m          the Mesh
+   * @param  cacheSize  the number of vertices in the simulated cache (at least 4)
+   */
+  public static void optimiseVertexCache(Mesh m, int cacheSize) {
+    m.pack();
+    PackedMeshData data = m.getPackedData();
+    int nv = data.getNumVertices();
+    int nt = data.getNumTriangles();
+    if (nt == 0) return;
+    cacheSize = Math.max(cacheSize, 4);
+    int[] tris = data.getIndices();
+    MeshAdjacency adj = data.getAdjacency();
+    int[] start = adj.getCornerStart();
+    int[] active = new int[nt*3];  // each vertex's triangles that are still to be added
+    for (int k=0; k<active.length; k++)
+      active[k] = adj.getVertexCorners()[k]/3;
+    int[] valence = new int[nv];
+    int[] cachePos = new int[nv];
+    double[] vscore = new double[nv];
+    for (int v=0; v<nv; v++) {
+      valence[v] = start[v+1]-start[v];
+      cachePos[v] = -1;
+      vscore[v] = vertexScore(-1, valence[v], cacheSize);
+    }
+    double[] tscore = new double[nt];
+    boolean[] added = new boolean[nt];
+    int best = 0;
+    for (int t=0; t<nt; t++) {
+      tscore[t] = vscore[tris[t*3]]+vscore[tris[t*3+1]]+vscore[tris[t*3+2]];
+      if (tscore[t] > tscore[best]) best = t;
+    }
+
+    int[] cache = new int[cacheSize+3];
+    int[] newCache = new int[cacheSize+3];
+    int cacheCount = 0;
+    int[] order = new int[nt];
+    int cursor = 0;
+    for (int i=0; i<nt; i++) {
+      if (best < 0) {  // nothing in the cache has triangles left, so start somewhere new
+        while (added[cursor]) cursor++;
+        best = cursor;
+      }
+      int t = best;
+      added[t] = true;
+      order[i] = t;
+
+      // remove the triangle from its vertices' lists and put its vertices at the front of the cache
+      int newCount = 0;
+      for (int j=0; j<3; j++) {
+        int v = tris[t*3+j];
+        int end = start[v]+valence[v];
+        for (int k=start[v]; k<end; k++) {
+          if (active[k] == t) {
+            active[k] = active[end-1];
+            active[end-1] = t;
+            valence[v]--;
+            break;
+          }
+        }
+        boolean seen = false;
+        for (int k=0; k<newCount; k++) seen |= (newCache[k] == v);
+        if (!seen) newCache[newCount++] = v;
+      }
+      for (int k=0; k<cacheCount; k++) {
+        int v = cache[k];
+        if (v != tris[t*3] && v != tris[t*3+1] && v != tris[t*3+2])
+          newCache[newCount++] = v;
+      }
+
+      // rescore the vertices that were or are in the cache, and the triangles that use them
+      for (int k=0; k<newCount; k++) {
+        int v = newCache[k];
+        cachePos[v] = (k<cacheSize) ? k : -1;
+        vscore[v] = vertexScore(cachePos[v], valence[v], cacheSize);
+      }
+      best = -1;
+      double bestScore = -1;
+      for (int k=0; k<newCount; k++) {
+        int v = newCache[k];
+        for (int a=start[v]; a<start[v]+valence[v]; a++) {
+          int tt = active[a];
+          tscore[tt] = vscore[tris[tt*3]]+vscore[tris[tt*3+1]]+vscore[tris[tt*3+2]];
+          if (tscore[tt] > bestScore) {
+            bestScore = tscore[tt];
+            best = tt;
+          }
+        }
+      }
+      int[] swap = cache;
+      cache = newCache;
+      newCache = swap;
+      cacheCount = Math.min(newCount, cacheSize);
+    }
+
+    int[] newtris = new int[nt*3];
+    double[] newtn = new double[nt*3];
+    double[] tn = data.getTriangleNormals();
+    for (int i=0; i<nt; i++) {
+      System.arraycopy(tris, order[i]*3, newtris, i*3, 3);
+      System.arraycopy(tn, order[i]*3, newtn, i*3, 3);
+    }
+    m.setPackedData(data.withTriangles(newtris, newtn, nt));
+  }
+
+  private static double vertexScore(int cachePos, int valence, int cacheSize) {
+    if (valence == 0) return -1;  // no triangles left to use this vertex
+    double score = 0;
+    if (cachePos >= 0) {
+      if (cachePos < 3) score = LAST_TRI_SCORE;  // used by the last triangle, so its exact position does not matter
+      else score = Math.pow(1.0-(double) (cachePos-3)/(cacheSize-3), CACHE_DECAY_POWER);
+    }
+    return score+VALENCE_BOOST_SCALE*Math.pow(valence, -VALENCE_BOOST_POWER);
+  }
+
+/* Vertex fetch optimisation ******************************************************************
+*/
+
+  /**
+   * Renumbers the vertices in the order in which the triangles first use them, so that vertex
+   * data is read from memory sequentially. Call this after optimiseVertexCache(...).
+   * Vertices that are not used by any triangle are moved to the end.
+   *
+   * @param  m  the Mesh
+   */
+  public static void optimiseVertexFetch(Mesh m) {
+    m.pack();
+    PackedMeshData data = m.getPackedData();
+    int nv = data.getNumVertices();
+    int nt = data.getNumTriangles();
+    int[] tris = data.getIndices();
+    int[] remap = new int[nv];
+    java.util.Arrays.fill(remap, -1);
+    int[] newtris = new int[nt*3];
+    int count = 0;
+    for (int i=0; i<nt*3; i++) {
+      int v = tris[i];
+      if (remap[v] < 0) remap[v] = count++;
+      newtris[i] = remap[v];
+    }
+    for (int v=0; v<nv; v++)
+      if (remap[v] < 0) remap[v] = count++;
+
+    double[] p = data.getPositions(), n = data.getNormals(), uv = data.getTexCoords();
+    double[] newp = new double[nv*3];
+    double[] newn = new double[nv*3];
+    double[] newuv = new double[nv*2];
+    for (int v=0; v<nv; v++) {
+      System.arraycopy(p, v*3, newp, remap[v]*3, 3);
+      System.arraycopy(n, v*3, newn, remap[v]*3, 3);
+      System.arraycopy(uv, v*2, newuv, remap[v]*2, 2);
+    }
+    m.setPackedData(new PackedMeshData(newp, newn, newuv, nv, newtris,
+                                       java.util.Arrays.copyOf(data.getTriangleNormals(), nt*3), nt));
+  }
+
+  /**
+   * Test harness. Optimises some of the procedural meshes and reports their ACMR before and after.
+   * Throws an AssertionError if the ACMR does not go down, if optimiseVertexCache(...) does not
+   * keep the same triangles with the same winding, or if optimiseVertexFetch(...) changes the
+   * shape of the mesh.
+   */
+  public static void main(String[] args) {
+    Mesh[] meshes = {ProceduralMeshFactory.createPlane(20, 20, 60, 60, 1, 1),
+                     ProceduralMeshFactory.createCylinder(30, 40, true)};
+    String[] names = {"plane 60x60", "cylinder 30x40"};
+    for (int i=0; i<meshes.length; i++) {
+      Mesh m = meshes[i];
+      double before16 = calcACMR(m, 16), before32 = calcACMR(m, 32);
+
+      long[] trianglesBefore = canonicalTriangles(m.getTriangleList());
+      optimiseVertexCache(m);
+      if (!java.util.Arrays.equals(trianglesBefore, canonicalTriangles(m.getTriangleList())))
+        throw new AssertionError(names[i]+": optimiseVertexCache did not keep the same triangles and winding");
+      double after16 = calcACMR(m, 16), after32 = calcACMR(m, 32);
+      if (!(after16 < before16 && after32 < before32))
+        throw new AssertionError(names[i]+": ACMR did not go down");
+
+      int[] tris = m.getTriangleList();
+      double[] p = m.getVertexList(), n = m.getNormalList(), uv = m.getTextureCoordsList();
+      optimiseVertexFetch(m);
+      checkSameShape(names[i], tris, p, n, uv, m);
+
+      System.out.println(names[i]+": ACMR (16) "+before16+" -> "+after16
+                         +", ACMR (32) "+before32+" -> "+after32);
+    }
+  }
+
+  /* Each triangle as one number, starting from its lowest index so that the winding is kept, sorted */
+  private static long[] canonicalTriangles(int[] tris) {
+    long[] keys = new long[tris.length/3];
+    for (int t=0; t<keys.length; t++) {
+      int a = tris[t*3], b = tris[t*3+1], c = tris[t*3+2];
+      while (a > b || a > c) {  // rotate, which keeps the winding
+        int tmp = a; a = b; b = c; c = tmp;
+      }
+      keys[t] = ((long) a << 42) | ((long) b << 21) | c;
+    }
+    java.util.Arrays.sort(keys);
+    return keys;
+  }
+
+  /* Checks that m has the given triangles, with each vertex renumbered one to one but unchanged */
+  private static void checkSameShape(String name, int[] tris, double[] p, double[] n, double[] uv, Mesh m) {
+    int[] newTris = m.getTriangleList();
+    double[] newp = m.getVertexList(), newn = m.getNormalList(), newuv = m.getTextureCoordsList();
+    if (newTris.length != tris.length || newp.length != p.length)
+      throw new AssertionError(name+": optimiseVertexFetch changed the mesh size");
+    int[] map = new int[p.length/3], inverse = new int[p.length/3];
+    java.util.Arrays.fill(map, -1);
+    java.util.Arrays.fill(inverse, -1);
+    for (int i=0; i<tris.length; i++) {
+      int v = tris[i], w = newTris[i];
+      if ((map[v] >= 0 && map[v] != w) || (inverse[w] >= 0 && inverse[w] != v))
+        throw new AssertionError(name+": optimiseVertexFetch did not renumber the vertices one to one");
+      map[v] = w;
+      inverse[w] = v;
+      for (int j=0; j<3; j++)
+        if (p[v*3+j] != newp[w*3+j] || n[v*3+j] != newn[w*3+j])
+          throw new AssertionError(name+": optimiseVertexFetch moved a vertex");
+      for (int j=0; j<2; j++)
+        if (uv[v*2+j] != newuv[w*2+j])
+          throw new AssertionError(name+": optimiseVertexFetch changed a texture coordinate");
+    }
+  }
+
+  private static int hashCell(long x, long y, long z) {
+    long h = x*73856093L ^ y*19349663L ^ z*83492791L;
+    return (int) (h ^ (h >>> 32));
+  }
+
+  private static boolean within(double[] a, int i, int j, int count, double tolerance) {
+    for (int k=0; k<count; k++)
+      if (Math.abs(a[i+k]-a[j+k]) > tolerance) return false;
+    return true;
+  }
+
+}
@@ -0,0 +1,402 @@
+/**
+ * Creates lighter versions of a Mesh, e.g. for distant objects, using the quadric error metric
+ * edge collapse method of Garland and Heckbert ("Surface Simplification Using Quadric Error Metrics", 1997).
+ * Each vertex has a quadric that measures the squared distance to the planes of its original triangles.
+ * The edge whose collapse adds the least error is repeatedly collapsed to the point that minimises
+ * the sum of the two quadrics, until the target triangle count or error budget is reached.
+ * Texture coords and normals are interpolated along the collapsed edge. Open edges, which includes
+ * texture seams (where vertices are duplicated with different texture coords), are given extra weight
+ * so that outlines and seams are kept.
+ */
+
+import java.util.*;
+
+public class MeshSimplifier {
+
+  private static final double BOUNDARY_WEIGHT = 1000.0;
+  private static final double MIN_FLIP_DOT = 0.0;  // a collapse may not turn any triangle more than 90 degrees
+
+  private int nv, nt;
+  private double[] p, n, uv;
+  private int[] tris;
+  private boolean[] triAlive, vertAlive;
+  private double[] quadrics;         // 10 values per vertex, see addPlane(...)
+  private int[] version;             // incremented whenever a vertex changes, to spot out of date collapses
+  private int[][] vtris;             // triangles around each vertex; may include dead triangles
+  private int[] vtriCount;
+  private int aliveTriangles;
+  private PriorityQueue<Collapse> heap = new PriorityQueue<Collapse>();
+
+  private static class Collapse implements Comparable<Collapse> {
+    double cost, x, y, z, t;
+    int a, b, versionA, versionB;
+
+    public int compareTo(Collapse c) {
+      return Double.compare(cost, c.cost);
+    }
+  }
+
+/* Public methods ******************************************************************
+*/
+
+  /**
+   * Simplifies a Mesh down to about the given number of triangles.
+   *
+   * @param  m                the Mesh, which is not changed
+   * @param  targetTriangles  the number of triangles to aim for
+   * @return  a new, simplified, packed Mesh with the same Material and colour
+   */
+  public static Mesh simplify(Mesh m, int targetTriangles) {
+    return simplify(m, targetTriangles, Double.MAX_VALUE);
+  }
+
+  /**
+   * Simplifies a Mesh down to about the given number of triangles, or until any further
+   * edge collapse would add more than the given error, whichever comes first.
+   *
+   * @param  m                the Mesh, which is not changed
+   * @param  targetTriangles  the number of triangles to aim for
+   * @param  maxError         the largest quadric error (a squared distance) allowed for a single collapse
+   * @return  a new, simplified, packed Mesh with the same Material and colour
+   */
+  public static Mesh simplify(Mesh m, int targetTriangles, double maxError) {
+    Mesh res = new MeshSimplifier(m).run(targetTriangles, maxError);
+    res.setMaterial(m.getMaterialClone());
+    res.setColour(m.getColour());
+    return res;
+  }
+
+  /**
+   * Creates a chain of levels of detail. Level 0 is the Mesh itself and each further level
+   * has about ratio times as many triangles as the one before, e.g. 0.5 halves the triangle
+   * count each time. Each level is made by simplifying the previous one.
+   *
+   * @param  m       the Mesh
+   * @param  levels  the number of levels, including the Mesh itself
+   * @param  ratio   the fraction of triangles to keep from one level to the next, between 0 and 1
+   * @return  the levels of detail, from most to least detailed
+   */
+  public static Mesh[] createLODChain(Mesh m, int levels, double ratio) {
+    Mesh[] chain = new Mesh[Math.max(levels, 1)];
+    chain[0] = m;
+    for (int i=1; i<chain.length; i++) {
+      int target = Math.max(1, (int) (chain[i-1].getNumTriangles()*ratio));
+      chain[i] = simplify(chain[i-1], target);
+    }
+    return chain;
+  }
+
+/* Set up ******************************************************************
+*/
+
+  private MeshSimplifier(Mesh m) {
+    Mesh c = (Mesh) m.clone();
+    c.pack();
+    PackedMeshData data = c.getPackedData();
+    nv = data.getNumVertices();
+    nt = data.getNumTriangles();
+    p = data.getPositions();
+    n = data.getNormals();
+    uv = data.getTexCoords();
+    tris = data.getIndices();
+    triAlive = new boolean[nt];
+    vertAlive = new boolean[nv];
+    quadrics = new double[nv*10];
+    version = new int[nv];
+    vtriCount = new int[nv];
+    vtris = new int[nv][];
+    MeshAdjacency adj = data.getAdjacency();
+    for (int v=0; v<nv; v++) {
+      vtris[v] = adj.getTriangles(v);
+      vtriCount[v] = vtris[v].length;
+      vertAlive[v] = vtriCount[v] > 0;
+    }
+    aliveTriangles = 0;
+    for (int t=0; t<nt; t++) {
+      int a = tris[t*3], b = tris[t*3+1], cc = tris[t*3+2];
+      triAlive[t] = (a != b && b != cc && a != cc);
+      if (!triAlive[t]) continue;
+      aliveTriangles++;
+      double[] plane = plane(a, b, cc);
+      if (plane == null) continue;
+      double area = plane[4];
+      for (int j=0; j<3; j++)
+        addPlane(tris[t*3+j], plane[0], plane[1], plane[2], plane[3], area);
+    }
+    addBoundaryQuadrics(adj);
+    for (int t=0; t<nt; t++) {
+      if (!triAlive[t]) continue;
+      for (int j=0; j<3; j++) {
+        int a = tris[t*3+j], b = tris[t*3+(j+1)%3];
+        if (a < b) pushCollapse(a, b);   // each shared edge is only pushed once
+        else if (adj.isBoundaryEdge(t*3+j)) pushCollapse(b, a);
+      }
+    }
+  }
+
+  /* Returns {nx, ny, nz, d, area} for the plane of a triangle, or null if it is degenerate */
+  private double[] plane(int a, int b, int c) {
+    double ax = p[b*3]-p[a*3], ay = p[b*3+1]-p[a*3+1], az = p[b*3+2]-p[a*3+2];
+    double bx = p[c*3]-p[a*3], by = p[c*3+1]-p[a*3+1], bz = p[c*3+2]-p[a*3+2];
+    double nx = ay*bz-az*by, ny = az*bx-ax*bz, nz = ax*by-ay*bx;
+    double mag = Math.sqrt(nx*nx+ny*ny+nz*nz);
+    if (mag == 0) return null;
+    nx /= mag;
+    ny /= mag;
+    nz /= mag;
+    return new double[]{nx, ny, nz, -(nx*p[a*3]+ny*p[a*3+1]+nz*p[a*3+2]), mag*0.5};
+  }
+
+  /* Adds weight * (the squared distance to the plane nx*x+ny*y+nz*z+d=0) to the quadric for vertex v */
+  private void addPlane(int v, double nx, double ny, double nz, double d, double weight) {
+    int i = v*10;
+    quadrics[i]   += weight*nx*nx;
+    quadrics[i+1] += weight*nx*ny;
+    quadrics[i+2] += weight*nx*nz;
+    quadrics[i+3] += weight*nx*d;
+    quadrics[i+4] += weight*ny*ny;
+    quadrics[i+5] += weight*ny*nz;
+    quadrics[i+6] += weight*ny*d;
+    quadrics[i+7] += weight*nz*nz;
+    quadrics[i+8] += weight*nz*d;
+    quadrics[i+9] += weight*d*d;
+  }
+
+  /* Adds a plane at right angles to the triangle along every edge that is only used by one triangle */
+  private void addBoundaryQuadrics(MeshAdjacency adj) {
+    for (int t=0; t<nt; t++) {
+      if (!triAlive[t]) continue;
+      for (int j=0; j<3; j++) {
+        int a = tris[t*3+j], b = tris[t*3+(j+1)%3];
+        if (!adj.isBoundaryEdge(t*3+j)) continue;
+        double[] tp = plane(tris[t*3], tris[t*3+1], tris[t*3+2]);
+        if (tp == null) continue;
+        double ex = p[b*3]-p[a*3], ey = p[b*3+1]-p[a*3+1], ez = p[b*3+2]-p[a*3+2];
+        double len2 = ex*ex+ey*ey+ez*ez;
+        double mx = ey*tp[2]-ez*tp[1], my = ez*tp[0]-ex*tp[2], mz = ex*tp[1]-ey*tp[0];
+        double mag = Math.sqrt(mx*mx+my*my+mz*mz);
+        if (mag == 0) continue;
+        mx /= mag;
+        my /= mag;
+        mz /= mag;
+        double d = -(mx*p[a*3]+my*p[a*3+1]+mz*p[a*3+2]);
+        addPlane(a, mx, my, mz, d, BOUNDARY_WEIGHT*len2);
+        addPlane(b, mx, my, mz, d, BOUNDARY_WEIGHT*len2);
+      }
+    }
+  }
+
+/* Collapsing edges ******************************************************************
+*/
+
+  private void pushCollapse(int a, int b) {
+    double[] q = new double[10];
+    for (int i=0; i<10; i++)
+      q[i] = quadrics[a*10+i]+quadrics[b*10+i];
+    Collapse c = new Collapse();
+    c.a = a;
+    c.b = b;
+    c.versionA = version[a];
+    c.versionB = version[b];
+
+    // Try the point that minimises the error. If the quadric cannot be inverted (e.g. a flat area),
+    // use the best of the two ends and the middle of the edge.
+    double det = q[0]*(q[4]*q[7]-q[5]*q[5]) - q[1]*(q[1]*q[7]-q[5]*q[2]) + q[2]*(q[1]*q[5]-q[4]*q[2]);
+    double ex = p[b*3]-p[a*3], ey = p[b*3+1]-p[a*3+1], ez = p[b*3+2]-p[a*3+2];
+    double len2 = ex*ex+ey*ey+ez*ez;
+    c.cost = Double.MAX_VALUE;
+    if (Math.abs(det) > 1e-12*Math.max(1.0, len2*len2*len2)) {
+      double x = -(q[3]*(q[4]*q[7]-q[5]*q[5]) - q[1]*(q[6]*q[7]-q[5]*q[8]) + q[2]*(q[6]*q[5]-q[4]*q[8]))/det;
+      double y = -(q[0]*(q[6]*q[7]-q[5]*q[8]) - q[3]*(q[1]*q[7]-q[5]*q[2]) + q[2]*(q[1]*q[8]-q[6]*q[2]))/det;
+      double z = -(q[0]*(q[4]*q[8]-q[6]*q[5]) - q[1]*(q[1]*q[8]-q[6]*q[2]) + q[3]*(q[1]*q[5]-q[4]*q[2]))/det;
+      double t = (len2 > 0) ? ((x-p[a*3])*ex+(y-p[a*3+1])*ey+(z-p[a*3+2])*ez)/len2 : 0;
+      if (t >= -0.5 && t <= 1.5)   // otherwise the point is too far from the edge to interpolate sensibly
+        setCandidate(c, q, x, y, z, Math.max(0, Math.min(1, t)));
+    }
+    if (c.cost == Double.MAX_VALUE) {
+      for (int k=0; k<=2; k++) {
+        double t = k*0.5;
+        setCandidate(c, q, p[a*3]+t*ex, p[a*3+1]+t*ey, p[a*3+2]+t*ez, t);
+      }
+    }
+    heap.add(c);
+  }
+
+  private static void setCandidate(Collapse c, double[] q, double x, double y, double z, double t) {
+    double err = q[0]*x*x + 2*q[1]*x*y + 2*q[2]*x*z + 2*q[3]*x
+               + q[4]*y*y + 2*q[5]*y*z + 2*q[6]*y
+               + q[7]*z*z + 2*q[8]*z + q[9];
+    err = Math.max(err, 0);
+    if (err < c.cost) {
+      c.cost = err;
+      c.x = x;
+      c.y = y;
+      c.z = z;
+      c.t = t;
+    }
+  }
+
+  private Mesh run(int targetTriangles, double maxError) {
+    while (aliveTriangles > targetTriangles && !heap.isEmpty()) {
+      Collapse c = heap.poll();
+      if (!vertAlive[c.a] || !vertAlive[c.b] || version[c.a] != c.versionA || version[c.b] != c.versionB)
+        continue;  // out of date
+      if (c.cost > maxError) break;
+      if (flips(c)) continue;
+      collapse(c);
+    }
+    return buildMesh();
+  }
+
+  /* Checks whether moving a and b to the new point would flip or squash any triangle that is kept */
+  private boolean flips(Collapse c) {
+    int[] ends = {c.a, c.b};
+    for (int e=0; e<2; e++) {
+      int v = ends[e];
+      for (int k=0; k<vtriCount[v]; k++) {
+        int t = vtris[v][k];
+        if (!triAlive[t]) continue;
+        int i0 = tris[t*3], i1 = tris[t*3+1], i2 = tris[t*3+2];
+        boolean hasA = (i0==c.a || i1==c.a || i2==c.a);
+        boolean hasB = (i0==c.b || i1==c.b || i2==c.b);
+        if (hasA && hasB) continue;   // this triangle is removed by the collapse
+        double[] before = plane(i0, i1, i2);
+        if (before == null) continue;
+        double[] q = new double[9];
+        for (int j=0; j<3; j++) {
+          int u = tris[t*3+j];
+          if (u == c.a || u == c.b) {
+            q[j*3] = c.x;
+            q[j*3+1] = c.y;
+            q[j*3+2] = c.z;
+          }
+          else {
+            q[j*3] = p[u*3];
+            q[j*3+1] = p[u*3+1];
+            q[j*3+2] = p[u*3+2];
+          }
+        }
+        double ax = q[3]-q[0], ay = q[4]-q[1], az = q[5]-q[2];
+        double bx = q[6]-q[0], by = q[7]-q[1], bz = q[8]-q[2];
+        double nx = ay*bz-az*by, ny = az*bx-ax*bz, nz = ax*by-ay*bx;
+        double mag = Math.sqrt(nx*nx+ny*ny+nz*nz);
+        if (mag == 0) return true;
+        if ((nx*before[0]+ny*before[1]+nz*before[2])/mag <= MIN_FLIP_DOT) return true;
+      }
+    }
+    return false;
+  }
+
+  /* Moves a to the new point, interpolates its attributes, and replaces b with a everywhere */
+  private void collapse(Collapse c) {
+    int a = c.a, b = c.b;
+    double t = c.t;
+    p[a*3] = c.x;
+    p[a*3+1] = c.y;
+    p[a*3+2] = c.z;
+    for (int j=0; j<2; j++)
+      uv[a*2+j] += t*(uv[b*2+j]-uv[a*2+j]);
+    double mag = 0;
+    for (int j=0; j<3; j++) {
+      n[a*3+j] += t*(n[b*3+j]-n[a*3+j]);
+      mag += n[a*3+j]*n[a*3+j];
+    }
+    mag = Math.sqrt(mag);
+    if (mag != 0)
+      for (int j=0; j<3; j++) n[a*3+j] /= mag;
+    for (int i=0; i<10; i++)
+      quadrics[a*10+i] += quadrics[b*10+i];
+
+    for (int k=0; k<vtriCount[b]; k++) {
+      int tb = vtris[b][k];
+      if (!triAlive[tb]) continue;
+      boolean hasA = false;
+      for (int j=0; j<3; j++) hasA |= (tris[tb*3+j] == a);
+      if (hasA) {
+        triAlive[tb] = false;
+        aliveTriangles--;
+      }
+      else {
+        for (int j=0; j<3; j++)
+          if (tris[tb*3+j] == b) tris[tb*3+j] = a;
+        addTriangle(a, tb);
+      }
+    }
+    vertAlive[b] = false;
+    version[a]++;   // only a and b change, so only collapses that use them are out of date;
+    version[b]++;   // those of a's neighbours with other vertices are still right
+
+    // new collapses for the edges around a
+    for (int k=0; k<vtriCount[a]; k++) {
+      int ta = vtris[a][k];
+      if (!triAlive[ta]) continue;
+      for (int j=0; j<3; j++) {
+        int u = tris[ta*3+j];
+        if (u != a) pushCollapse(Math.min(a, u), Math.max(a, u));
+      }
+    }
+  }
+
+  private void addTriangle(int v, int t) {
+    if (vtriCount[v] == vtris[v].length)
+      vtris[v] = Arrays.copyOf(vtris[v], Math.max(4, vtris[v].length*2));
+    vtris[v][vtriCount[v]++] = t;
+  }
+
+  private Mesh buildMesh() {
+    int[] remap = new int[nv];
+    Arrays.fill(remap, -1);
+    int count = 0;
+    int[] newtris = new int[aliveTriangles*3];
+    int numTris = 0;
+    for (int t=0; t<nt; t++) {
+      if (!triAlive[t]) continue;
+      for (int j=0; j<3; j++) {
+        int v = tris[t*3+j];
+        if (remap[v] < 0) remap[v] = count++;
+        newtris[numTris*3+j] = remap[v];
+      }
+      numTris++;
+    }
+    double[] newp = new double[count*3];
+    double[] newn = new double[count*3];
+    double[] newuv = new double[count*2];
+    for (int v=0; v<nv; v++) {
+      if (remap[v] < 0) continue;
+      System.arraycopy(p, v*3, newp, remap[v]*3, 3);
+      System.arraycopy(n, v*3, newn, remap[v]*3, 3);
+      System.arraycopy(uv, v*2, newuv, remap[v]*2, 2);
+    }
+    PackedMeshData data = new PackedMeshData(newp, newn, newuv, count, newtris, null, numTris);
+    for (int t=0; t<numTris; t++)
+      data.calcTriangleNormal(t);
+    Mesh res = new Mesh();
+    res.setPackedData(data);
+    return res;
+  }
+
+  /**
+   * Test harness. Checks that simplifying a plane reaches the triangle counts asked for, then
+   * prints the triangle counts of a level of detail chain for a cylinder.
+   * Throws an AssertionError if a check fails.
+   */
+  public static void main(String[] args) {
+    Mesh plane = ProceduralMeshFactory.createPlane(10, 10, 40, 40, 1, 1);
+    int[] targets = {1000, 50, 4};
+    for (int target : targets) {
+      int n = simplify(plane, target).getNumTriangles();
+      if (n > target) throw new AssertionError("plane simplified to "+target+" triangles has "+n);
+      System.out.println("Plane of "+plane.getNumTriangles()+" triangles simplified to "+target+": "+n);
+    }
+
+    Mesh m = ProceduralMeshFactory.createCylinder(60, 40, true);
+    Mesh[] chain = createLODChain(m, 5, 0.5);
+    for (int i=0; i<chain.length; i++) {
+      if (i > 0 && chain[i].getNumTriangles() >= chain[i-1].getNumTriangles())
+        throw new AssertionError("LOD "+i+" is no lighter than LOD "+(i-1));
+      System.out.println("LOD "+i+": "+chain[i].getNumTriangles()+" triangles, "
+                         +chain[i].getNumVertices()+" vertices, bounds "+chain[i].getBoundingBox());
+    }
+  }
+
+}
@@ -18,12 +18,41 @@ import com.jogamp.opengl.util.gl2.GLUT;
 public class Obstacles
 {
   private GLU glu = new GLU();
-  private GLUT glut = new GLUT();
   private AnimationScene animationScene;
+  private GLStateCache state;
+  private PrimitiveCache primitives;
 
-  public Obstacles(AnimationScene animationScene1)
+  // only the colour differs from one part to the next, so no arrays are made per part
+  private static final float[] MAT_SPECULAR={0.5f,0.5f,0.5f,1.0f};
+  private static final float[] MAT_SHININESS={64f};
+  private static final float[] MAT_EMISSION={0.0f,0.0f,0.0f,1.0f};
+  private float[] matAmbientDiffuse={0,0,0,1.0f};  // reused; the state cache copies the values
+
+  // bounding spheres, in world coordinates, for frustum culling
+  private static final double CUBE_RADIUS=Math.sqrt(3);
+  private static final double[] TORUS_CENTRE={6.1,6,5};  // also covers the cylinder holding it
+  private static final double TORUS_RADIUS=4.2;
+  private static final double[] CYLINDER_CENTRE={-1,6,2};
+  private static final double CYLINDER_RADIUS=6.1;
+
+  // the colour of each obstacle's material, e.g. to key it in a RenderQueue
+  public static final float[] CUBE_COLOUR={255f,128f,0f};
+  public static final float[] TORUS_COLOUR={34f,139f,34f};
+  public static final float[] CYLINDER_COLOUR={138f,43f,226f};
+
+  private LodSelector lod;  // null to always use the full number of slices
+
+  public Obstacles(AnimationScene animationScene1, GLStateCache state, PrimitiveCache primitives)
   {
   	animationScene=animationScene1;
+  	this.state=state;
+  	this.primitives=primitives;
+  }
+
+  // the torus and cylinders get fewer slices when they are small on the screen
+  public void setLodSelector(LodSelector lod)
+  {
+    this.lod=lod;
   }
 
   public void displayObstacles(GL2 gl)
@@ -34,48 +63,90 @@ public class Obstacles
 
   }
 
+  // as displayObstacles, but the obstacles outside the view frustum are skipped
+  public void displayObstacles(GL2 gl, Frustum frustum)
+  {
+    displayCube(gl,frustum);
+    displayTorus(gl,frustum);
+    displayCylinder(gl,frustum);
+  }
+
+  // each obstacle on its own, skipped if it is outside the view frustum, so that each can be drawn with its own material
+  public void displayCube(GL2 gl, Frustum frustum)
+  {
+    double cubeParam = animationScene.getParam(AnimationScene.CUBE_PARAM);
+    if (frustum.isSphereVisible(5,1,-3+cubeParam,CUBE_RADIUS))
+      obstacleCube(gl);
+  }
+
+  public void displayTorus(GL2 gl, Frustum frustum)
+  {
+    if (frustum.isSphereVisible(TORUS_CENTRE[0],TORUS_CENTRE[1],TORUS_CENTRE[2],TORUS_RADIUS))
+      obstacleTorus(gl);
+  }
+
+  public void displayCylinder(GL2 gl, Frustum frustum)
+  {
+    if (frustum.isSphereVisible(CYLINDER_CENTRE[0],CYLINDER_CENTRE[1],CYLINDER_CENTRE[2],CYLINDER_RADIUS))
+      obstacleCylinder(gl);
+  }
+
   private void obstacleCube(GL2 gl)
   {
-    setMaterial(gl,255f,128f,0f);
+    setMaterial(gl,CUBE_COLOUR);
     gl.glPushMatrix();
       gl.glTranslated(5,1,-3);
-      double cubeParam = animationScene.getParam(animationScene.CUBE_PARAM);
+      double cubeParam = animationScene.getParam(AnimationScene.CUBE_PARAM);
       gl.glTranslated(0,0,cubeParam);
-      glut.glutSolidCube(2);
+      primitives.getCube(2).draw(gl);
     gl.glPopMatrix();
   }
 
   private void obstacleTorus(GL2 gl)
   {
-    setMaterial(gl,34f,139f,34f);
+    setMaterial(gl,TORUS_COLOUR);
     gl.glPushMatrix();
       gl.glTranslated(10,6,5);
       gl.glRotated(90,0,-1,0);
-      glut.glutSolidCylinder(0.3,1.5,30,30);
+      int n=detail("torus cylinder",0.3,TORUS_CENTRE,30);
+      primitives.getCylinder(0.3,1.5,n,n).draw(gl);
       gl.glRotated(90,0,1,0);
       gl.glTranslated(-3.9,0,0);
-        glut.glutSolidTorus(0.5,2.5,30,30);
+        int sides=detail("torus tube",0.5,TORUS_CENTRE,30);
+        int rings=detail("torus",3.0,TORUS_CENTRE,30);
+        primitives.getTorus(0.5,2.5,sides,rings).draw(gl);
     gl.glPopMatrix();
   }
 
   private void obstacleCylinder(GL2 gl)
   {
-    setMaterial(gl,138f,43,226f);
+    setMaterial(gl,CYLINDER_COLOUR);
     gl.glPushMatrix();
       gl.glTranslated(-1,0,2);
       gl.glRotated(90,-1,0,0);
-      glut.glutSolidCylinder(1,12,30,30);
+      int n=detail("cylinder",1,CYLINDER_CENTRE,30);
+      primitives.getCylinder(1,12,n,n).draw(gl);
     gl.glPopMatrix();
   }
+  // the number of slices for a part with the given radius, in the obstacle at centre
+  private int detail(String part, double radius, double[] centre, int max)
+  {
+    if (lod==null) return max;
+    return lod.select(part,radius,lod.getDistance(centre[0],centre[1],centre[2]),max);
+  }
+
+  private void setMaterial(GL2 gl, float[] colour) {
+    setMaterial(gl,colour[0],colour[1],colour[2]);
+  }
+
   private void setMaterial(GL2 gl, float r, float g, float b) {
-    float[] matAmbientDiffuse = {r/255f, g/255f, b/255f, 1.0f};
-    float[] matSpecular = {0.5f,0.5f,0.5f, 1.0f};
-    float[] matShininess = {64f};
-    float[] matEmission = {0.0f, 0.0f, 0.0f, 1.0f};
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, matAmbientDiffuse, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SPECULAR, matSpecular, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SHININESS, matShininess, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_EMISSION, matEmission, 0);
+    matAmbientDiffuse[0] = r/255f;
+    matAmbientDiffuse[1] = g/255f;
+    matAmbientDiffuse[2] = b/255f;
+    state.material(gl, GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, matAmbientDiffuse);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_SPECULAR, MAT_SPECULAR);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_SHININESS, MAT_SHININESS);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_EMISSION, MAT_EMISSION);
   }
 
 }
\ No newline at end of file
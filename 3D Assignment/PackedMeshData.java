@@ -0,0 +1,600 @@
+/**
+ * Packed (structure-of-arrays) storage for a Mesh.
+ * Instead of one Vertex object, with three small arrays, per vertex, all positions, normals
+ * and texture coordinates are held in contiguous arrays of doubles, and all the triangle
+ * vertex indices in a single array of ints. This means far fewer objects on the heap and
+ * loops over the data (normals, bounding box, copies for rendering) stream through memory.
+ * The data is organised as follows: vertex i occupies positions[i*3..i*3+2], normals[i*3..i*3+2]
+ * and texCoords[i*2..i*2+1]; triangle t occupies indices[t*3..t*3+2] and triangleNormals[t*3..t*3+2].
+ * The arrays may be longer than needed. Only the first getNumVertices() vertices and
+ * getNumTriangles() triangles are in use.
+ * Packed data can share its arrays with a copy made by cloneShared(). A shared array is only
+ * copied when it is first changed through one of the set (or calc) methods, so copies that just
+ * have a different material or colour cost almost no memory.
+ */
+
+public class PackedMeshData implements Cloneable {
+
+  private int numVertices;
+  private int numTriangles;
+  private double[] positions;
+  private double[] normals;
+  private double[] texCoords;
+  private int[] indices;
+  private double[] triangleNormals;
+  private MeshAdjacency adjacency;    // built when needed; null if out of date
+  private boolean sharedPositions, sharedNormals, sharedTexCoords;   // true if the array may be used by
+  private boolean sharedIndices, sharedTriangleNormals;              // another PackedMeshData
+  private int[] triangleMark, vertexMark;  // used by updateNormals(...) to avoid visiting anything twice
+  private int mark;
+
+  /**
+   * Constructor. Allocates storage for the given number of vertices and triangles,
+   * with all values initialised to 0.
+   *
+   * @param  numVertices   the number of vertices
+   * @param  numTriangles  the number of triangles
+   */
+  public PackedMeshData(int numVertices, int numTriangles) {
+    this(new double[numVertices*3], null, null, numVertices, new int[numTriangles*3], null, numTriangles);
+  }
+
+  /**
+   * Constructor. The references to the arrays are copied. Clones are not made.
+   * Any of normals, texCoords and triangleNormals may be null, in which case they are
+   * allocated and initialised to 0.
+   *
+   * @param  positions        vertex x,y,z data, at least numVertices*3 long
+   * @param  normals          vertex normal x,y,z data, at least numVertices*3 long; otherwise, null
+   * @param  texCoords        vertex texture coords u,v data, at least numVertices*2 long; otherwise, null
+   * @param  numVertices      the number of vertices in use
+   * @param  indices          triangle vertex indices, at least numTriangles*3 long
+   * @param  triangleNormals  triangle normal x,y,z data, at least numTriangles*3 long; otherwise, null
+   * @param  numTriangles     the number of triangles in use
+   */
+  public PackedMeshData(double[] positions, double[] normals, double[] texCoords, int numVertices,
+                        int[] indices, double[] triangleNormals, int numTriangles) {
+    this.numVertices = numVertices;
+    this.numTriangles = numTriangles;
+    this.positions = positions;
+    this.normals = (normals != null) ? normals : new double[numVertices*3];
+    this.texCoords = (texCoords != null) ? texCoords : new double[numVertices*2];
+    this.indices = indices;
+    this.triangleNormals = (triangleNormals != null) ? triangleNormals : new double[numTriangles*3];
+  }
+
+  /**
+   * Creates packed data from the object based Mesh data structures. The data is copied.
+   *
+   * @param  vertices   the vertex data structure; may be null
+   * @param  triangles  the triangle data structure; may be null
+   * @return  the packed data
+   */
+  public static PackedMeshData fromObjects(Vertex[] vertices, Triangle[] triangles) {
+    int nv = (vertices != null) ? vertices.length : 0;
+    int nt = (triangles != null) ? triangles.length : 0;
+    PackedMeshData data = new PackedMeshData(nv, nt);
+    for (int v=0; v<nv; v++) {
+      for (int j=0; j<3; j++) {
+        data.positions[v*3+j] = vertices[v].getPosition()[j];
+        data.normals[v*3+j] = vertices[v].getNormal()[j];
+      }
+      data.texCoords[v*2] = vertices[v].getTextureCoordU();
+      data.texCoords[v*2+1] = vertices[v].getTextureCoordV();
+    }
+    for (int t=0; t<nt; t++) {
+      for (int j=0; j<3; j++) {
+        data.indices[t*3+j] = triangles[t].getVertexIndex(j);
+        data.triangleNormals[t*3+j] = triangles[t].getTriangleNormal()[j];
+      }
+    }
+    return data;
+  }
+
+  /**
+   * Creates a new object based vertex data structure from the packed data.
+   *
+   * @return  an array of new Vertex objects
+   */
+  public Vertex[] toVertices() {
+    Vertex[] res = new Vertex[numVertices];
+    for (int v=0; v<numVertices; v++) {
+      res[v] = new Vertex(positions[v*3], positions[v*3+1], positions[v*3+2],
+                          texCoords[v*2], texCoords[v*2+1]);
+      res[v].setNormal(normals[v*3], normals[v*3+1], normals[v*3+2]);
+    }
+    return res;
+  }
+
+  /**
+   * Creates a new object based triangle data structure from the packed data.
+   *
+   * @return  an array of new Triangle objects
+   */
+  public Triangle[] toTriangles() {
+    Triangle[] res = new Triangle[numTriangles];
+    for (int t=0; t<numTriangles; t++) {
+      res[t] = new Triangle(indices[t*3], indices[t*3+1], indices[t*3+2]);
+      res[t].setTriangleNormal(triangleNormals[t*3], triangleNormals[t*3+1], triangleNormals[t*3+2]);
+    }
+    return res;
+  }
+
+  public int getNumVertices() { return numVertices; }
+
+  public int getNumTriangles() { return numTriangles; }
+
+  /**
+   * Get the vertex x,y,z array as a reference.
+   * The array may be shared with other packed data (see cloneShared()), so the values should
+   * only be changed using the set methods. The same applies to the other array getters.
+   *
+   * @return  a reference to the vertex position data
+   */
+  public double[] getPositions() { return positions; }
+
+  /**
+   * Get the vertex normal x,y,z array as a reference.
+   *
+   * @return  a reference to the vertex normal data
+   */
+  public double[] getNormals() { return normals; }
+
+  /**
+   * Get the vertex texture coords u,v array as a reference.
+   *
+   * @return  a reference to the vertex texture coords data
+   */
+  public double[] getTexCoords() { return texCoords; }
+
+  /**
+   * Get the triangle vertex index array as a reference.
+   *
+   * @return  a reference to the triangle vertex index data
+   */
+  public int[] getIndices() { return indices; }
+
+  /**
+   * Get the triangle normal x,y,z array as a reference.
+   *
+   * @return  a reference to the triangle normal data
+   */
+  public double[] getTriangleNormals() { return triangleNormals; }
+
+  public double getPosition(int v, int j) { return positions[v*3+j]; }
+
+  public void setPosition(int v, double x, double y, double z) {
+    ownPositions();
+    positions[v*3] = x;
+    positions[v*3+1] = y;
+    positions[v*3+2] = z;
+  }
+
+  public double getNormal(int v, int j) { return normals[v*3+j]; }
+
+  public void setNormal(int v, double nx, double ny, double nz) {
+    ownNormals();
+    normals[v*3] = nx;
+    normals[v*3+1] = ny;
+    normals[v*3+2] = nz;
+  }
+
+  public void addNormal(int v, double nx, double ny, double nz) {
+    ownNormals();
+    normals[v*3] += nx;
+    normals[v*3+1] += ny;
+    normals[v*3+2] += nz;
+  }
+
+  public void normaliseNormal(int v) {
+    ownNormals();
+    int i = v*3;
+    double mag = Math.sqrt(normals[i]*normals[i]+normals[i+1]*normals[i+1]+normals[i+2]*normals[i+2]);
+    if (mag!=0.0) {
+      normals[i] /= mag;
+      normals[i+1] /= mag;
+      normals[i+2] /= mag;
+    }
+  }
+
+  public double getTextureCoord(int v, int j) { return texCoords[v*2+j]; }
+
+  public void setTextureCoord(int v, double u, double tv) {
+    ownTexCoords();
+    texCoords[v*2] = u;
+    texCoords[v*2+1] = tv;
+  }
+
+  public int getVertexIndex(int t, int j) { return indices[t*3+j]; }
+
+  public void setVertexIndices(int t, int i1, int i2, int i3) {
+    ownIndices();
+    indices[t*3] = i1;
+    indices[t*3+1] = i2;
+    indices[t*3+2] = i3;
+    adjacency = null;
+  }
+
+  /**
+   * Must be called if the triangle vertex indices are changed directly in the array returned by
+   * getIndices(), so that the adjacency is rebuilt.
+   */
+  public void indicesChanged() {
+    adjacency = null;
+  }
+
+  /**
+   * Gets the adjacency of the triangles (see MeshAdjacency), which is built the first time it is needed
+   * and kept until the triangle vertex indices change.
+   *
+   * @return  the adjacency
+   */
+  public MeshAdjacency getAdjacency() {
+    if (adjacency == null) adjacency = new MeshAdjacency(indices, numVertices, numTriangles);
+    return adjacency;
+  }
+
+  public double getTriangleNormal(int t, int j) { return triangleNormals[t*3+j]; }
+
+  public void setTriangleNormal(int t, double nx, double ny, double nz) {
+    ownTriangleNormals();
+    triangleNormals[t*3] = nx;
+    triangleNormals[t*3+1] = ny;
+    triangleNormals[t*3+2] = nz;
+  }
+
+  /**
+   * Gets a lightweight Vertex that reads and writes through to the packed data.
+   * Methods that would normally return a reference to an array (getPosition(), getNormal() and
+   * getTextureCoord()) return a copy instead, so changes must be made using the set methods.
+   *
+   * @param  v  the index of the vertex
+   * @return  a view onto vertex v
+   */
+  public Vertex getVertexView(int v) {
+    return new VertexView(this, v);
+  }
+
+  /**
+   * Gets a lightweight Triangle that reads and writes through to the packed data.
+   * Methods that would normally return a reference to an array (getVertexIndices() and
+   * getTriangleNormal()) return a copy instead, so changes must be made using the set methods.
+   *
+   * @param  t  the index of the triangle
+   * @return  a view onto triangle t
+   */
+  public Triangle getTriangleView(int t) {
+    return new TriangleView(this, t);
+  }
+
+  /**
+   * Calculates the minimum and maximum vertex positions.
+   *
+   * @param  min        set to the minimum (x,y,z)
+   * @param  max        set to the maximum (x,y,z)
+   * @param  minVertex  set to the index of a vertex with the minimum x, y and z; otherwise, null
+   * @param  maxVertex  set to the index of a vertex with the maximum x, y and z; otherwise, null
+   * @return  false if there are no vertices, in which case nothing is changed
+   */
+  public boolean calcBounds(double[] min, double[] max, int[] minVertex, int[] maxVertex) {
+    if (numVertices == 0) return false;
+    int[] minv = new int[3], maxv = new int[3];
+    for (int j=0; j<3; j++)
+      max[j] = min[j] = positions[j];
+    int n = numVertices*3;
+    for (int i=3; i<n; i+=3) {
+      for (int j=0; j<3; j++) {
+        double d = positions[i+j];
+        if (d<min[j]) {
+          min[j] = d;
+          minv[j] = i/3;
+        }
+        else if (d>max[j]) {
+          max[j] = d;
+          maxv[j] = i/3;
+        }
+      }
+    }
+    if (minVertex != null) System.arraycopy(minv, 0, minVertex, 0, 3);
+    if (maxVertex != null) System.arraycopy(maxv, 0, maxVertex, 0, 3);
+    return true;
+  }
+
+  /**
+   * Calculates the triangle normals and the smooth vertex normals.
+   * Follows exactly the same steps as the object based version in Mesh,
+   * so the results are identical.
+   */
+  public void calcSmoothNormals() {
+    ownNormals();
+    ownTriangleNormals();
+    int nv3 = numVertices*3;
+    for (int i=0; i<nv3; i++)
+      normals[i] = 0;
+
+    for (int t=0; t<numTriangles; t++) {
+      calcTriangleNormal(t);
+      for (int j=0; j<3; j++)
+        addNormal(indices[t*3+j], triangleNormals[t*3], triangleNormals[t*3+1], triangleNormals[t*3+2]);
+    }
+    for (int v=0; v<numVertices; v++)
+      normaliseNormal(v);
+  }
+
+  /**
+   * Calculates the triangle normals and the smooth vertex normals using all available processors.
+   * The triangle normals are calculated in parallel. Then, instead of each triangle adding its normal
+   * to its vertices (which would need the threads to synchronise), each vertex gathers the normals of
+   * the triangles that use it (see MeshAdjacency), again in parallel.
+   * The normals are added in the same order as calcSmoothNormals(), so the results are identical, bit for bit.
+   */
+  public void calcSmoothNormalsParallel() {
+    ownNormals();  // before the threads start, so that they do not all copy the arrays
+    ownTriangleNormals();
+    new ParallelRange(0, numTriangles, 4096) {
+      protected void run(int from, int to) {
+        for (int t=from; t<to; t++)
+          calcTriangleNormal(t);
+      }
+    }.runParallel();
+    getAdjacency();
+    new ParallelRange(0, numVertices, 4096) {
+      protected void run(int from, int to) {
+        for (int v=from; v<to; v++)
+          gatherNormal(v);
+      }
+    }.runParallel();
+  }
+
+  /**
+   * Updates the normals after the vertices from up to to have moved.
+   * Only the triangles that use those vertices have their normals recalculated, and only
+   * the vertices of those triangles have their smooth normals recalculated.
+   * All the normals must have been calculated before the vertices moved, e.g. using calcSmoothNormals().
+   * The results are then identical to calling calcSmoothNormals() again.
+   *
+   * @param  from     the first vertex that moved
+   * @param  to       the vertex after the last vertex that moved
+   * @param  changed  if not null, set to the range of vertices whose normals may have changed: 
+   *                  changed[0] is the first and changed[1] the one after the last
+   */
+  public void updateNormals(int from, int to, int[] changed) {
+    ownNormals();
+    ownTriangleNormals();
+    MeshAdjacency adj = getAdjacency();
+    int[] start = adj.getCornerStart();
+    int[] corners = adj.getVertexCorners();
+    if (triangleMark == null || triangleMark.length < numTriangles) triangleMark = new int[numTriangles];
+    if (vertexMark == null || vertexMark.length < numVertices) vertexMark = new int[numVertices];
+    if (++mark == 0) {  // wrapped around, so clear the old marks
+      java.util.Arrays.fill(triangleMark, 0);
+      java.util.Arrays.fill(vertexMark, 0);
+      mark = 1;
+    }
+    int lo = from, hi = to;
+    for (int v=from; v<to; v++) {
+      for (int k=start[v]; k<start[v+1]; k++) {
+        int t = corners[k]/3;
+        if (triangleMark[t] != mark) {
+          triangleMark[t] = mark;
+          calcTriangleNormal(t);
+        }
+      }
+    }
+    for (int v=from; v<to; v++) {
+      for (int k=start[v]; k<start[v+1]; k++) {
+        int t = corners[k]/3;
+        for (int j=0; j<3; j++) {
+          int u = indices[t*3+j];
+          if (vertexMark[u] != mark) {
+            vertexMark[u] = mark;
+            gatherNormal(u);
+            if (u<lo) lo = u;
+            if (u>=hi) hi = u+1;
+          }
+        }
+      }
+    }
+    if (changed != null) {
+      changed[0] = lo;
+      changed[1] = hi;
+    }
+  }
+
+  /**
+   * Recalculates the smooth normal of vertex v from the current triangle normals of the triangles that use it.
+   *
+   * @param  v  the index of the vertex
+   */
+  public void gatherNormal(int v) {
+    MeshAdjacency adj = getAdjacency();
+    int[] start = adj.getCornerStart();
+    int[] corners = adj.getVertexCorners();
+    double nx = 0, ny = 0, nz = 0;
+    for (int k=start[v]; k<start[v+1]; k++) {
+      int i = (corners[k]/3)*3;
+      nx += triangleNormals[i];
+      ny += triangleNormals[i+1];
+      nz += triangleNormals[i+2];
+    }
+    setNormal(v, nx, ny, nz);
+    normaliseNormal(v);
+  }
+
+  /**
+   * Calculates the normal of triangle t from the current vertex positions.
+   * Degenerate triangles are given a normal of (0,0,0).
+   *
+   * @param  t  the index of the triangle
+   */
+  public void calcTriangleNormal(int t) {
+    int i0 = indices[t*3]*3, i1 = indices[t*3+1]*3, i2 = indices[t*3+2]*3;
+    double d = positions[i0];
+    double ax = d - positions[i1];
+    double bx = d - positions[i2];
+    d = positions[i0+1];
+    double ay = d - positions[i1+1];
+    double by = d - positions[i2+1];
+    d = positions[i0+2];
+    double az = d - positions[i1+2];
+    double bz = d - positions[i2+2];
+    // Cross product of a and b to determine the triangle normal
+    double nx = ay*bz-az*by;
+    double ny = az*bx-ax*bz;
+    double nz = ax*by-ay*bx;
+    double mag = Math.sqrt(nx*nx+ny*ny+nz*nz);
+    if (mag!=0.0f) {
+      nx /= mag;
+      ny /= mag;
+      nz /= mag;
+      setTriangleNormal(t, nx, ny, nz);
+    }
+    else setTriangleNormal(t, 0, 0, 0);
+  }
+
+  /**
+   * A clone of the packed data. The arrays are trimmed to the number of vertices and triangles in use.
+   *
+   * @return  a deep copy of the packed data
+   */
+  public Object clone() {
+    return new PackedMeshData(java.util.Arrays.copyOf(positions, numVertices*3),
+                              java.util.Arrays.copyOf(normals, numVertices*3),
+                              java.util.Arrays.copyOf(texCoords, numVertices*2), numVertices,
+                              java.util.Arrays.copyOf(indices, numTriangles*3),
+                              java.util.Arrays.copyOf(triangleNormals, numTriangles*3), numTriangles);
+  }
+
+  /**
+   * A copy-on-write clone of the packed data. The clone shares all the arrays with this
+   * packed data. Whichever of the two first changes an array, through the set (or calc) methods,
+   * gets its own copy of that array first, so neither sees the other's changes.
+   *
+   * @return  a clone that shares the arrays
+   */
+  public PackedMeshData cloneShared() {
+    PackedMeshData res = withTriangles(indices, triangleNormals, numTriangles);
+    sharedIndices = sharedTriangleNormals = true;
+    res.sharedIndices = res.sharedTriangleNormals = true;
+    res.adjacency = adjacency;   // the adjacency never changes, so it can be shared too
+    return res;
+  }
+
+  /**
+   * Creates packed data with the same vertices as this packed data, but different triangles.
+   * The vertex arrays are shared in the same way as cloneShared(). The references to the triangle
+   * arrays are copied. Clones are not made.
+   *
+   * @param  indices          triangle vertex indices, at least numTriangles*3 long
+   * @param  triangleNormals  triangle normal x,y,z data, at least numTriangles*3 long; otherwise, null
+   * @param  numTriangles     the number of triangles in use
+   * @return  the new packed data
+   */
+  public PackedMeshData withTriangles(int[] indices, double[] triangleNormals, int numTriangles) {
+    PackedMeshData res = new PackedMeshData(positions, normals, texCoords, numVertices,
+                                            indices, triangleNormals, numTriangles);
+    sharedPositions = sharedNormals = sharedTexCoords = true;
+    res.sharedPositions = res.sharedNormals = res.sharedTexCoords = true;
+    return res;
+  }
+
+  /**
+   * Whether any of the arrays may be shared with other packed data (see cloneShared()).
+   *
+   * @return  true if an array may be shared
+   */
+  public boolean isShared() {
+    return sharedPositions || sharedNormals || sharedTexCoords || sharedIndices || sharedTriangleNormals;
+  }
+
+  private void ownPositions() {
+    if (sharedPositions) positions = java.util.Arrays.copyOf(positions, numVertices*3);
+    sharedPositions = false;
+  }
+
+  private void ownNormals() {
+    if (sharedNormals) normals = java.util.Arrays.copyOf(normals, numVertices*3);
+    sharedNormals = false;
+  }
+
+  private void ownTexCoords() {
+    if (sharedTexCoords) texCoords = java.util.Arrays.copyOf(texCoords, numVertices*2);
+    sharedTexCoords = false;
+  }
+
+  private void ownIndices() {
+    if (sharedIndices) indices = java.util.Arrays.copyOf(indices, numTriangles*3);
+    sharedIndices = false;
+  }
+
+  private void ownTriangleNormals() {
+    if (sharedTriangleNormals) triangleNormals = java.util.Arrays.copyOf(triangleNormals, numTriangles*3);
+    sharedTriangleNormals = false;
+  }
+
+  /* ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ */
+  /* Views, so that the packed data can still be used through the Vertex and Triangle API */
+  /* ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ */
+
+  private static class VertexView extends Vertex {
+    private PackedMeshData data;
+    private int v;
+
+    VertexView(PackedMeshData data, int v) {
+      super(false);
+      this.data = data;
+      this.v = v;
+    }
+
+    public void setPosition(double x, double y, double z) { data.setPosition(v, x, y, z); }
+    public void setPosition(double[] p) { data.setPosition(v, p[0], p[1], p[2]); }
+    public double[] getPosition() { return new double[]{getPositionX(), getPositionY(), getPositionZ()}; }
+    public double getPositionX() { return data.getPosition(v, 0); }
+    public double getPositionY() { return data.getPosition(v, 1); }
+    public double getPositionZ() { return data.getPosition(v, 2); }
+    public void setNormal(double nx, double ny, double nz) { data.setNormal(v, nx, ny, nz); }
+    public void setNormal(double[] n) { data.setNormal(v, n[0], n[1], n[2]); }
+    public double[] getNormal() { return new double[]{getNormalX(), getNormalY(), getNormalZ()}; }
+    public double getNormalX() { return data.getNormal(v, 0); }
+    public double getNormalY() { return data.getNormal(v, 1); }
+    public double getNormalZ() { return data.getNormal(v, 2); }
+    public void addNormal(double nx, double ny, double nz) { data.addNormal(v, nx, ny, nz); }
+    public void normaliseNormal() { data.normaliseNormal(v); }
+    public void setTextureCoord(double u, double tv) { data.setTextureCoord(v, u, tv); }
+    public void setTextureCoord(double[] uv) { data.setTextureCoord(v, uv[0], uv[1]); }
+    public double[] getTextureCoord() { return new double[]{getTextureCoordU(), getTextureCoordV()}; }
+    public double getTextureCoordU() { return data.getTextureCoord(v, 0); }
+    public double getTextureCoordV() { return data.getTextureCoord(v, 1); }
+
+    public Object clone() {
+      return new Vertex(getPosition(), getNormal(), getTextureCoord());
+    }
+  }
+
+  private static class TriangleView extends Triangle {
+    private PackedMeshData data;
+    private int t;
+
+    TriangleView(PackedMeshData data, int t) {
+      super(false);
+      this.data = data;
+      this.t = t;
+    }
+
+    public void setVertexIndices(int i1, int i2, int i3) { data.setVertexIndices(t, i1, i2, i3); }
+    public void setVertexIndices(int[] i) { data.setVertexIndices(t, i[0], i[1], i[2]); }
+    public int[] getVertexIndices() { return new int[]{getVertexIndex(0), getVertexIndex(1), getVertexIndex(2)}; }
+    public int getVertexIndex(int j) { return data.getVertexIndex(t, j); }
+    public void setTriangleNormal(double nx, double ny, double nz) { data.setTriangleNormal(t, nx, ny, nz); }
+    public void setTriangleNormal(double[] n) { data.setTriangleNormal(t, n[0], n[1], n[2]); }
+    public double[] getTriangleNormal() { return new double[]{getTriangleNormalX(), getTriangleNormalY(), getTriangleNormalZ()}; }
+    public double getTriangleNormalX() { return data.getTriangleNormal(t, 0); }
+    public double getTriangleNormalY() { return data.getTriangleNormal(t, 1); }
+    public double getTriangleNormalZ() { return data.getTriangleNormal(t, 2); }
+
+    public Object clone() {
+      return new Triangle(getVertexIndices(), getTriangleNormal());
+    }
+  }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * A fork/join task that splits the index range [from, to) in half until it is no larger
+ * than a threshold, and then calls run(...) on each piece. Subclasses supply run(...),
+ * which must only write to data belonging to its own range.
+ * Typical use: new ParallelRange(0, n, 4096) { protected void run(int from, int to) {...} }.invoke();
+ */
+
+import java.util.concurrent.*;
+
+public abstract class ParallelRange extends RecursiveAction {
+
+  private static final long serialVersionUID = 1L;
+
+  private int from, to, threshold;
+
+  /**
+   * Constructor.
+   *
+   * @param  from       the first index
+   * @param  to         the index after the last index
+   * @param  threshold  ranges no larger than this are not split further
+   */
+  public ParallelRange(int from, int to, int threshold) {
+    this.from = from;
+    this.to = to;
+    this.threshold = Math.max(1, threshold);
+  }
+
+  /**
+   * Runs this task in the common fork/join pool and waits for it to finish.
+   * Small ranges are run directly on the calling thread.
+   */
+  public void runParallel() {
+    if (to-from <= threshold) run(from, to);
+    else ForkJoinPool.commonPool().invoke(this);
+  }
+
+  protected void compute() {
+    if (to-from <= threshold) {
+      run(from, to);
+    }
+    else {
+      ParallelRange root = (this instanceof Piece) ? ((Piece) this).root : this;
+      int mid = (from+to) >>> 1;
+      invokeAll(new Piece(root, from, mid), new Piece(root, mid, to));
+    }
+  }
+
+  /**
+   * Processes the indices [from, to).
+   *
+   * @param  from  the first index
+   * @param  to    the index after the last index
+   */
+  protected abstract void run(int from, int to);
+
+  private static class Piece extends ParallelRange {
+    private static final long serialVersionUID = 1L;
+    private ParallelRange root;
+
+    Piece(ParallelRange root, int from, int to) {
+      super(from, to, root.threshold);
+      this.root = root;
+    }
+
+    protected void run(int from, int to) {
+      root.run(from, to);
+    }
+  }
+
+}
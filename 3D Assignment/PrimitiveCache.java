@@ -0,0 +1,146 @@
+/**
+ * Replaces the GLUT and GLU shapes (glutSolidSphere, gluCylinder, etc.), which generate all their
+ * geometry on the CPU every time they are drawn. Each shape is made once by ProceduralMeshFactory,
+ * the first time it is asked for, and kept in a Render, keyed by the kind of shape and its parameters.
+ * The shapes are drawn with Render.draw(...), which does not set the material or texture,
+ * so they can be shared by objects with different materials.
+ * Typical use, instead of glut.glutSolidSphere(0.5, 30, 30):
+ *   primitives.getSphere(0.5, 30, 30).draw(gl);
+ */
+
+import java.util.*;
+import com.jogamp.opengl.*;
+
+public class PrimitiveCache {
+
+  private static final int SPHERE = 0, CONE = 1, TORUS = 2, FRUSTUM = 3, CUBE = 4;
+
+  private Map<Key,Render> renders = new HashMap<Key,Render>();
+  private int mode = Render.BUFFER_OBJECT;
+  private boolean compact = false;
+
+  /* The kind of shape and its parameters */
+  private static class Key {
+    int type;
+    double[] params;
+
+    Key(int type, double... params) {
+      this.type = type;
+      this.params = params;
+    }
+
+    public boolean equals(Object o) {
+      return (o instanceof Key) && ((Key) o).type == type && Arrays.equals(((Key) o).params, params);
+    }
+
+    public int hashCode() {
+      return type*31+Arrays.hashCode(params);
+    }
+  }
+
+  /**
+   * Sets the rendering mode of all the shapes: Render.IMMEDIATE, Render.DISPLAY_LIST or Render.BUFFER_OBJECT.
+   *
+   * @param  mode  the rendering mode
+   */
+  public void setMode(int mode) {
+    this.mode = mode;
+    for (Render r : renders.values())
+      r.setMode(mode);
+  }
+
+  public int getMode() { return mode; }
+
+  /**
+   * Sets whether all the shapes keep their vertex data in the compact format (see Render.setUseCompactFormat(...)).
+   *
+   * @param  b  true to use the compact format
+   */
+  public void setUseCompactFormat(boolean b) {
+    compact = b;
+    for (Render r : renders.values())
+      r.setUseCompactFormat(b);
+  }
+
+  public boolean getUseCompactFormat() { return compact; }
+
+  public int getNumShapes() { return renders.size(); }
+
+  /**
+   * As glutSolidSphere. See ProceduralMeshFactory.createSphere(...).
+   */
+  public Render getSphere(double radius, int slices, int stacks) {
+    Key key = new Key(SPHERE, radius, slices, stacks);
+    Render r = renders.get(key);
+    if (r == null) r = add(key, ProceduralMeshFactory.createSphere(radius, slices, stacks));
+    return r;
+  }
+
+  /**
+   * As glutSolidCone. See ProceduralMeshFactory.createCone(...).
+   */
+  public Render getCone(double base, double height, int slices, int stacks) {
+    Key key = new Key(CONE, base, height, slices, stacks);
+    Render r = renders.get(key);
+    if (r == null) r = add(key, ProceduralMeshFactory.createCone(base, height, slices, stacks));
+    return r;
+  }
+
+  /**
+   * As glutSolidTorus. See ProceduralMeshFactory.createTorus(...).
+   */
+  public Render getTorus(double innerRadius, double outerRadius, int sides, int rings) {
+    Key key = new Key(TORUS, innerRadius, outerRadius, sides, rings);
+    Render r = renders.get(key);
+    if (r == null) r = add(key, ProceduralMeshFactory.createTorus(innerRadius, outerRadius, sides, rings));
+    return r;
+  }
+
+  /**
+   * As glutSolidCylinder, i.e. with caps.
+   */
+  public Render getCylinder(double radius, double height, int slices, int stacks) {
+    return getFrustumCylinder(radius, radius, height, slices, stacks, true);
+  }
+
+  /**
+   * As gluCylinder if caps is false. See ProceduralMeshFactory.createFrustumCylinder(...).
+   */
+  public Render getFrustumCylinder(double baseRadius, double topRadius, double height,
+                                   int slices, int stacks, boolean caps) {
+    Key key = new Key(FRUSTUM, baseRadius, topRadius, height, slices, stacks, caps ? 1 : 0);
+    Render r = renders.get(key);
+    if (r == null) r = add(key, ProceduralMeshFactory.createFrustumCylinder(baseRadius, topRadius, height,
+                                                                          slices, stacks, caps));
+    return r;
+  }
+
+  /**
+   * As glutSolidCube.
+   */
+  public Render getCube(double size) {
+    Key key = new Key(CUBE, size);
+    Render r = renders.get(key);
+    if (r == null) r = add(key, ProceduralMeshFactory.createHardCube(size, size, size));
+    return r;
+  }
+
+  private Render add(Key key, Mesh m) {
+    Render r = new Render(m);
+    r.setMode(mode);
+    if (compact) r.setUseCompactFormat(true);
+    renders.put(key, r);
+    return r;
+  }
+
+  /**
+   * Frees the display lists and buffer objects of all the shapes. They are made again if needed.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void dispose(GL2 gl) {
+    for (Render r : renders.values())
+      r.dispose(gl);
+  }
+
+}
@@ -1,6 +1,8 @@
 /**
  * Methods to create mesh instances
- * Need to add a sphere method too.
+ * The sphere, cone, torus and frustum cylinder match the shapes drawn by glutSolidSphere, glutSolidCone,
+ * glutSolidTorus, glutSolidCylinder and gluCylinder, so that they can be made once and drawn many times
+ * (see PrimitiveCache) instead of being generated again on every frame.
  *
  * @author    Dr Steve Maddock
  * @version   2.1 (28/10/2015)
@@ -41,7 +43,7 @@ public class ProceduralMeshFactory {
     if (m<2) m=2; 
     if (n<2) n=2;
 
-    int vertoffset=0, trioffset=0;
+    int vertoffset=0;
     double texu;
     double startM=-width/2.0;
     double startN=-depth/2.0;
@@ -51,45 +53,31 @@ public class ProceduralMeshFactory {
     double txStepZ=tilingN/(n-1);
 
     int numVertices=m*n;
-    Vertex[] vertices=new Vertex[numVertices];
- 
     int numTriangles=2*(m-1)*(n-1);
-    Triangle[] triangles=new Triangle[numTriangles];
+    MeshBuilder builder = new MeshBuilder(numVertices, numTriangles);
  
     // negate all z coordinates so that they run from depth/2 to -depth/2
     // and be careful of winding order
+    // All the normals point in the same direction so can just be set
 
     for (int i=0; i<n; i++) {
-      vertices[i] = new Vertex(startM, 0.0, -(startN+i*stepN), 0, i*txStepZ);
+      builder.addVertex(startM, 0.0, -(startN+i*stepN), 0, 1, 0, 0, i*txStepZ);
     }
 
     for (int j=1; j<m; j++) {
       vertoffset+=n;
       texu=j*txStepX;
-      vertices[vertoffset] = new Vertex(startM+j*stepM, 0.0, -startN, texu, 0);
+      builder.addVertex(startM+j*stepM, 0.0, -startN, 0, 1, 0, texu, 0);
       for (int i=1; i<n; i++) {
-        vertices[vertoffset+i] = new Vertex(startM+j*stepM, 0.0, -(startN+i*stepN), texu, i*txStepZ);
+        builder.addVertex(startM+j*stepM, 0.0, -(startN+i*stepN), 0, 1, 0, texu, i*txStepZ);
         int vi1 = vertoffset+i, vi2 = vertoffset+i-n-1,
         vi3 = vertoffset+i-1, vi4 = vertoffset+i-n;
-        triangles[trioffset++] = new Triangle(vi1, vi2, vi3);
-        triangles[trioffset++] = new Triangle(vi2, vi1, vi4);
+        builder.setTriangleNormal(builder.addTriangle(vi1, vi2, vi3), 0, 1, 0);
+        builder.setTriangleNormal(builder.addTriangle(vi2, vi1, vi4), 0, 1, 0);
       }
     }
 
-    Mesh mesh = new Mesh();
-    mesh.setVertices(vertices);
-    mesh.setTriangles(triangles);    
-    
-    // Set Normals;
-    for (int i=0; i<numVertices; ++i) {
-      vertices[i].setNormal(0,1,0);
-    }
-    for (int i=0; i<numTriangles; ++i) {
-      triangles[i].setTriangleNormal(0,1,0);
-    }
-	
-    //Calc Normals; - not required, as all the normals point in the same direction so can just be set
-    //mesh.calcSmoothNormals();
+    Mesh mesh = builder.build();
 	
     return mesh;
   }
@@ -325,4 +313,150 @@ public class ProceduralMeshFactory {
     return mesh;
   }
 
+/* Sphere ******************************************************************
+*/
+
+  /**
+   * Creates a sphere centred at the origin, with its poles on the z axis, as glutSolidSphere.
+   * The vertices along the seam and at the poles are duplicated so that the texture coords
+   * can run from 0 to 1: u around the z axis and v from the bottom pole to the top.
+   * @param radius radius of the sphere
+   * @param slices number of subdivisions around the z axis
+   * @param stacks number of subdivisions along the z axis
+   */
+  public static Mesh createSphere(double radius, int slices, int stacks) {
+    if (slices<3) slices=3;
+    if (stacks<2) stacks=2;
+    MeshBuilder builder = new MeshBuilder((slices+1)*(stacks+1), 2*slices*(stacks-1));
+    for (int i=0; i<=stacks; i++) {
+      double phi = Math.PI*i/stacks;
+      double z = -Math.cos(phi), ring = Math.sin(phi);
+      for (int j=0; j<=slices; j++) {
+        double theta = 2.0*Math.PI*j/slices;
+        double x = ring*Math.cos(theta), y = ring*Math.sin(theta);
+        builder.addVertex(x*radius, y*radius, z*radius, x, y, z, (double) j/slices, (double) i/stacks);
+      }
+    }
+    for (int i=0; i<stacks; i++) {
+      for (int j=0; j<slices; j++) {
+        int a = i*(slices+1)+j, b = a+1, c = b+slices+1, d = a+slices+1;
+        if (i>0) builder.addTriangle(a, b, c);          // the others would have two vertices
+        if (i<stacks-1) builder.addTriangle(a, c, d);   // at the same pole
+      }
+    }
+    return builder.build();
+  }
+
+/* Cone and frustum cylinder ******************************************************************
+*/
+
+  /**
+   * Creates a cone, as glutSolidCone: the base is a disc of the given radius on the z=0 plane,
+   * centred at the origin, and the point is on the z axis.
+   * @param base radius of the base
+   * @param height height (in z direction)
+   * @param slices number of subdivisions around the z axis
+   * @param stacks number of subdivisions along the z axis
+   */
+  public static Mesh createCone(double base, double height, int slices, int stacks) {
+    return createMeshFrustum(base, 0, height, slices, stacks, true, false);
+  }
+
+  /**
+   * Creates a cylinder whose radius may change along its length, as gluCylinder
+   * (or glutSolidCylinder if the radii are the same and it has caps).
+   * The base is centred at the origin on the z=0 plane and the top is at z=height.
+   * The texture coords run from 0 to 1 around the z axis (u) and from the base to the top (v),
+   * in the same way as gluCylinder with gluQuadricTexture on.
+   * @param baseRadius radius at z=0
+   * @param topRadius radius at z=height
+   * @param height height (in z direction)
+   * @param slices number of subdivisions around the z axis
+   * @param stacks number of subdivisions along the z axis
+   * @param caps true if the ends are to be closed with discs, otherwise false for an open tube
+   */
+  public static Mesh createFrustumCylinder(double baseRadius, double topRadius, double height,
+                                           int slices, int stacks, boolean caps) {
+    return createMeshFrustum(baseRadius, topRadius, height, slices, stacks, caps, caps);
+  }
+
+  private static Mesh createMeshFrustum(double baseRadius, double topRadius, double height,
+                                        int slices, int stacks, boolean baseCap, boolean topCap) {
+    if (slices<3) slices=3;
+    if (stacks<1) stacks=1;
+    MeshBuilder builder = new MeshBuilder((slices+1)*(stacks+3)+2, 2*slices*(stacks+1));
+    // The normal of the side leans towards the narrower end
+    double slope = baseRadius-topRadius;
+    double len = Math.sqrt(height*height+slope*slope);
+    double nr = height/len, nz = slope/len;
+    // As gluCylinder: x = sin, y = cos, so u runs clockwise when viewed from above
+    for (int i=0; i<=stacks; i++) {
+      double radius = baseRadius+(topRadius-baseRadius)*i/stacks;
+      for (int j=0; j<=slices; j++) {
+        double theta = 2.0*Math.PI*j/slices;
+        double s = Math.sin(theta), c = Math.cos(theta);
+        builder.addVertex(radius*s, radius*c, height*i/stacks, s*nr, c*nr, nz, (double) j/slices, (double) i/stacks);
+      }
+    }
+    for (int i=0; i<stacks; i++) {
+      for (int j=0; j<slices; j++) {
+        int a = i*(slices+1)+j, b = a+1, c = b+slices+1, d = a+slices+1;
+        if (i>0 || baseRadius != 0) builder.addTriangle(a, c, b);
+        if (i<stacks-1 || topRadius != 0) builder.addTriangle(a, d, c);
+      }
+    }
+    if (baseCap && baseRadius != 0) addDisc(builder, baseRadius, 0, -1, slices);
+    if (topCap && topRadius != 0) addDisc(builder, topRadius, height, 1, slices);
+    return builder.build();
+  }
+
+  /* A disc on the plane z = z, facing along the z axis in the given direction (1 or -1) */
+  private static void addDisc(MeshBuilder builder, double radius, double z, int facing, int slices) {
+    int centre = builder.addVertex(0, 0, z, 0, 0, facing, 0.5, 0.5);
+    for (int j=0; j<=slices; j++) {
+      double theta = 2.0*Math.PI*j/slices;
+      double s = Math.sin(theta), c = Math.cos(theta);
+      builder.addVertex(radius*s, radius*c, z, 0, 0, facing, 0.5+s*0.5, 0.5+c*0.5*facing);
+    }
+    for (int j=0; j<slices; j++) {
+      if (facing > 0) builder.addTriangle(centre, centre+j+2, centre+j+1);
+      else builder.addTriangle(centre, centre+j+1, centre+j+2);
+    }
+  }
+
+/* Torus ******************************************************************
+*/
+
+  /**
+   * Creates a torus lying on the z=0 plane, centred at the origin, as glutSolidTorus.
+   * The texture coords run from 0 to 1 around the z axis (u) and around the tube (v).
+   * @param innerRadius radius of the tube
+   * @param outerRadius distance from the origin to the centre of the tube
+   * @param sides number of subdivisions around the tube
+   * @param rings number of subdivisions around the z axis
+   */
+  public static Mesh createTorus(double innerRadius, double outerRadius, int sides, int rings) {
+    if (sides<3) sides=3;
+    if (rings<3) rings=3;
+    MeshBuilder builder = new MeshBuilder((sides+1)*(rings+1), 2*sides*rings);
+    for (int i=0; i<=sides; i++) {
+      double phi = 2.0*Math.PI*i/sides;
+      double cp = Math.cos(phi), sp = Math.sin(phi);
+      for (int j=0; j<=rings; j++) {
+        double theta = 2.0*Math.PI*j/rings;
+        double ct = Math.cos(theta), st = Math.sin(theta);
+        double dist = outerRadius+innerRadius*cp;
+        builder.addVertex(dist*ct, dist*st, innerRadius*sp, cp*ct, cp*st, sp, (double) j/rings, (double) i/sides);
+      }
+    }
+    for (int i=0; i<sides; i++) {
+      for (int j=0; j<rings; j++) {
+        int a = i*(rings+1)+j, b = a+1, c = b+rings+1, d = a+rings+1;
+        builder.addTriangle(a, b, c);
+        builder.addTriangle(a, c, d);
+      }
+    }
+    return builder.build();
+  }
+
 }
\ No newline at end of file
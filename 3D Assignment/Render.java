@@ -9,6 +9,18 @@
  * to support ease of editing.
  * If the Mesh structure was to be updated, e.g. a vertex moved, then then relevant data would
  * need to be copied here again, before rendering would produce the correct result.
+ * If the Mesh uses direct buffers (see Mesh.setUseDirectBuffers(...)), no copies are made. Instead,
+ * the buffers are handed straight to OpenGL using vertex arrays. The arrays are then only copied
+ * if immediate mode is used. 
+ * If the compact format is used (see setUseCompactFormat(...)), the data is kept as a
+ * CompactVertexFormat instead of arrays of doubles, at about a third of the memory, and decoded as it is sent.
+ * In buffer object mode, the compact format is uploaded as 24 bytes per vertex (float positions,
+ * 16-bit normals and half float texture coords) instead of 32 bytes of floats.
+ * The buffer object mode uploads the data to the graphics card once, as an interleaved vertex buffer
+ * and an index buffer, and then draws it with a single glDrawElements call. 
+ * render(...) draws the mesh in the mode chosen by setMode(...), so that the modes can be compared.
+ * Material, texture and polygon mode changes go through a GLStateCache (see setStateCache(...)),
+ * so that a shared cache can drop the ones that are already set.
  *
  * @author    Dr Steve Maddock
  * @version   3.1 (28/10/2015)
@@ -23,13 +35,34 @@ import com.jogamp.opengl.util.texture.*;
 import com.jogamp.opengl.util.texture.awt.*;
  
 public class Render {
+  public static final int IMMEDIATE = 0;
+  public static final int DISPLAY_LIST = 1;
+  public static final int BUFFER_OBJECT = 2;
+  public static final int NUM_MODES = 3;
+  private static final String[] MODE_NAMES = {"Immediate mode", "Display list", "Buffer objects"};
+  private static final int FLOATS_PER_VERTEX = 8;  // x,y,z, nx,ny,nz, u,v in the vertex buffer
+  private static final int STRIDE = FLOATS_PER_VERTEX*Buffers.SIZEOF_FLOAT;
+
   private Mesh mesh;
   private double[] vertices;
   private double[] normals;
   private int[] triangles;
   private double[] textureCoords;
+  private MeshBuffers buffers;
+  private boolean useCompact = false;
+  private CompactVertexFormat compact;
+  private float[] decoded = new float[3];
   private int dlist;
+  private GLStateCache dlistState;  // the state the display list leaves set
+  private int drawList;         // for draw(...), without the material and texture
+  private int mode = DISPLAY_LIST;
+  private int[] bufferObjects;  // vertex buffer and index buffer; null until created
+  private FloatBuffer updateData;  // reused by updateRange(...) to upload changed vertices
+  private ByteBuffer compactUpdateData;
+  private boolean bufferCompact;   // whether the vertex buffer holds the compact layout
+  private int bufferTriangles;
   private Texture tex;
+  private GLStateCache state = new GLStateCache(false);
 
   /**
    * Constructor. Copies the vertex, triangle and normal data from the Mesh structure.
@@ -49,14 +82,115 @@ public class Render {
   
   public void reset(Mesh m, Texture t) {
     mesh = m;
-    vertices = m.getVertexList();
-    normals = m.getNormalList();
-    triangles = m.getTriangleList();
-    textureCoords = m.getTextureCoordsList();
-    dlist = 0;
+    compact = null;
+    if (m.getUseDirectBuffers()) {
+      buffers = m.getDirectBuffers();
+      vertices = normals = textureCoords = null;
+      triangles = null;
+    }
+    else {
+      buffers = null;
+      if (useCompact) compact = new CompactVertexFormat(m);
+      else copyArrays();
+    }
+    dlist = drawList = 0;
+    bufferObjects = null;
     tex = t;
   }
 
+  /**
+   * Sets the mode used by render(...): IMMEDIATE, DISPLAY_LIST or BUFFER_OBJECT.
+   * The display list or buffer objects are created the first time they are needed.
+   * 
+   * @param  mode  the rendering mode
+   */
+  public void setMode(int mode) {
+    this.mode = mode;
+  }
+
+  public int getMode() {
+    return mode;
+  }
+
+  public static String getModeName(int mode) {
+    return MODE_NAMES[mode];
+  }
+
+  /**
+   * Sets the cache through which material, texture and polygon mode changes are made.
+   * By default, a cache of its own is used that passes every call on.
+   * 
+   * @param  state  the cache, usually shared by everything drawn in the scene
+   */
+  public void setStateCache(GLStateCache state) {
+    this.state = state;
+  }
+
+  public GLStateCache getStateCache() {
+    return state;
+  }
+
+  public Mesh getMesh() {
+    return mesh;
+  }
+
+  /**
+   * Render the mesh in the current mode (see setMode(...)).
+   * 
+   * @param  gl     the OpenGL context.
+   * @param  texit  true if the texture is to be used
+   */ 
+  public void render(GL2 gl, boolean texit) {
+    switch (mode) {
+      case IMMEDIATE:
+        renderImmediateMode(gl, texit);
+        break;
+      case DISPLAY_LIST:
+        if (dlist == 0) initialiseDisplayList(gl, texit);
+        renderDisplayList(gl);
+        break;
+      default:
+        renderBufferObject(gl, texit);
+    }
+  }
+
+  /**
+   * Sets whether the vertex data is kept in the compact format (see CompactVertexFormat) rather
+   * than as arrays of doubles. Float positions, 16-bit normals and half float texture coords are
+   * accurate enough for display and take a third of the memory. In buffer object mode, the
+   * vertex buffer is made again in the compact layout the next time it is drawn, which needs
+   * OpenGL 3.0 or ARB_half_float_vertex.
+   * Has no effect on vertex arrays if the Mesh uses direct buffers.
+   * 
+   * @param  b  true to use the compact format
+   */
+  public void setUseCompactFormat(boolean b) {
+    useCompact = b;
+    if (b) {
+      compact = new CompactVertexFormat(mesh);
+      vertices = normals = textureCoords = null;
+      triangles = null;
+    }
+    else {
+      compact = null;
+    }
+  }
+
+  public boolean getUseCompactFormat() {
+    return useCompact;
+  }
+
+  private void copyArrays() {
+    if (useCompact) {
+      compact = new CompactVertexFormat(mesh);
+      return;
+    }
+    vertices = mesh.getVertexList();
+    normals = mesh.getNormalList();
+    triangles = mesh.getTriangleList();
+    textureCoords = mesh.getTextureCoordsList();
+  }
+
   /* ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ */
   /* Immediate mode sending individual triangles */
   /* ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ */
@@ -68,13 +202,14 @@ public class Render {
    */ 
   
   private void setMaterial(GL2 gl) {
-    Material material = mesh.getMaterial();
-    gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_AMBIENT, material.getAmbient(), 0);    
-    gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_DIFFUSE, material.getDiffuse(), 0);    
-    gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SPECULAR, material.getSpecular(), 0);
-    gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_EMISSION, material.getEmission(), 0);
-    gl.glMaterialf(GL2.GL_FRONT_AND_BACK, GL2.GL_SHININESS, material.getShininess());
+    state.material(gl, GL2.GL_FRONT_AND_BACK, mesh.getMaterial());
   }  
+
+  private void useTexture(GL2 gl) {
+    state.enableTexture(gl, tex);
+    state.bindTexture(gl, tex);
+    state.textureEnvMode(gl, GL2.GL_MODULATE);
+  }
   
   private void sendNVData(GL2 gl, int t, int i) {
     int index = triangles[t*3+i]*3;
@@ -83,23 +218,41 @@ public class Render {
   }
   
   private void sendAllNVData(GL2 gl) {
+    if (compact != null) {
+      sendCompactData(gl, false, 0, compact.getNumTriangles());
+      return;
+    }
     for (int t=0; t<triangles.length/3; t++) {
       for (int i=0; i<3; i++) {
         sendNVData(gl, t,i);
       }
     }
   }
+
+  private void sendCompactData(GL2 gl, boolean texit, int first, int count) {
+    IntBuffer indices = compact.getIndices();
+    for (int i=first*3; i<(first+count)*3; i++) {
+      int v = indices.get(i);
+      if (texit) {
+        compact.getTextureCoord(v, decoded);
+        gl.glTexCoord2f(decoded[0], decoded[1]);
+      }
+      compact.getNormal(v, decoded);
+      gl.glNormal3f(decoded[0], decoded[1], decoded[2]);
+      gl.glVertex3f(compact.getPosition(v, 0), compact.getPosition(v, 1), compact.getPosition(v, 2));
+    }
+  }
   
   public void renderImmediateMode(GL2 gl, boolean texit) {
-    if (texit) {
-      tex.enable(gl);
-      tex.bind(gl);
-    }
+    if (triangles == null && compact == null) copyArrays();
+    if (texit) useTexture(gl);
     setMaterial(gl);
-    if (texit) tex.setTexParameteri(gl, GL2.GL_TEXTURE_ENV_MODE,GL2.GL_MODULATE);
     
     gl.glBegin(GL2.GL_TRIANGLES);
-      if (texit) {
+      if (compact != null) {
+        sendCompactData(gl, texit, 0, compact.getNumTriangles());
+      }
+      else if (texit) {
         for (int t=0; t<triangles.length/3; t++) {
           for (int i=0; i<3; i++) {
             int tindex = triangles[t*3+i]*2;
@@ -113,7 +266,295 @@ public class Render {
       }
     gl.glEnd();
     
-    if (texit) tex.disable(gl);
+    if (texit) state.disableTexture(gl, tex);
+  }
+
+  /* ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ */
+  /* Vertex arrays, using direct buffers */
+  /* ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ */
+
+  /**
+   * Render a mesh using vertex arrays. The Mesh's direct buffers are used if it has them.
+   * Otherwise, direct buffers are created here (once).
+   * 
+   * @param  gl  the OpenGL context.
+   */ 
+
+  public void renderVertexArrays(GL2 gl, boolean texit) {
+    if (mesh.getUseDirectBuffers()) buffers = mesh.getDirectBuffers();  // copies in any vertices marked as dirty
+    else if (buffers == null) buffers = new MeshBuffers(mesh);
+    if (texit) useTexture(gl);
+    setMaterial(gl);
+
+    gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+    gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+    gl.glVertexPointer(3, GL2.GL_FLOAT, 0, buffers.getPositions());
+    gl.glNormalPointer(GL2.GL_FLOAT, 0, buffers.getNormals());
+    if (texit) {
+      gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+      gl.glTexCoordPointer(2, GL2.GL_FLOAT, 0, buffers.getTexCoords());
+    }
+    gl.glDrawElements(GL2.GL_TRIANGLES, buffers.getNumTriangles()*3, GL2.GL_UNSIGNED_INT, buffers.getIndices());
+    if (texit) gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+    gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+    gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+
+    if (texit) state.disableTexture(gl, tex);
+  }
+
+  /* ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ */
+  /* Buffer objects */
+  /* ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ */
+
+  /**
+   * Uploads the mesh to the graphics card as buffer objects: the vertex positions, normals and
+   * texture coords interleaved in one buffer, and the triangle vertex indices in another.
+   * 
+   * @param  gl  the OpenGL context.
+   */ 
+
+  public void initialiseBufferObjects(GL2 gl) {
+    bufferObjects = new int[2];
+    gl.glGenBuffers(2, bufferObjects, 0);
+    int nv = mesh.getNumVertices();
+    bufferCompact = (compact != null);
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, bufferObjects[0]);
+    if (bufferCompact)
+      gl.glBufferData(GL2.GL_ARRAY_BUFFER, (long) nv*CompactVertexFormat.GL_STRIDE,
+                      compact.getGLVertexData(0, nv, Buffers.newDirectByteBuffer(nv*CompactVertexFormat.GL_STRIDE)),
+                      GL2.GL_STATIC_DRAW);
+    else
+      gl.glBufferData(GL2.GL_ARRAY_BUFFER, (long) nv*STRIDE,
+                      interleave(0, nv, Buffers.newDirectFloatBuffer(nv*FLOATS_PER_VERTEX)), GL2.GL_STATIC_DRAW);
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+    bufferTriangles = mesh.getNumTriangles();
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, bufferObjects[1]);
+    gl.glBufferData(GL2.GL_ELEMENT_ARRAY_BUFFER, (long) bufferTriangles*3*Buffers.SIZEOF_INT,
+                    Buffers.newDirectIntBuffer(mesh.getTriangleList()), GL2.GL_STATIC_DRAW);
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+  }
+
+  /* Fills data with vertices [from, to) of the mesh, read straight from its arrays if it is packed */
+  private FloatBuffer interleave(int from, int to, FloatBuffer data) {
+    data.clear();
+    PackedMeshData packed = mesh.getPackedData();
+    if (packed != null) {
+      double[] p = packed.getPositions(), n = packed.getNormals(), uv = packed.getTexCoords();
+      for (int v=from; v<to; v++) {
+        data.put((float) p[v*3]).put((float) p[v*3+1]).put((float) p[v*3+2]);
+        data.put((float) n[v*3]).put((float) n[v*3+1]).put((float) n[v*3+2]);
+        data.put((float) uv[v*2]).put((float) uv[v*2+1]);
+      }
+    }
+    else {
+      for (int v=from; v<to; v++) {
+        Vertex vertex = mesh.getVertex(v);
+        double[] p = vertex.getPosition(), n = vertex.getNormal();
+        data.put((float) p[0]).put((float) p[1]).put((float) p[2]);
+        data.put((float) n[0]).put((float) n[1]).put((float) n[2]);
+        data.put((float) vertex.getTextureCoordU()).put((float) vertex.getTextureCoordV());
+      }
+    }
+    data.flip();
+    return data;
+  }
+
+  private void bindBufferObjects(GL2 gl) {
+    if (bufferObjects != null && bufferCompact != (compact != null)) {  // the format has been changed
+      gl.glDeleteBuffers(2, bufferObjects, 0);
+      bufferObjects = null;
+    }
+    if (bufferObjects == null) initialiseBufferObjects(gl);
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, bufferObjects[0]);
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, bufferObjects[1]);
+    gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+    gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+    gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+    if (bufferCompact) {
+      int stride = CompactVertexFormat.GL_STRIDE;
+      gl.glVertexPointer(3, GL2.GL_FLOAT, stride, CompactVertexFormat.POSITION_OFFSET);
+      gl.glNormalPointer(GL2.GL_SHORT, stride, CompactVertexFormat.GL_NORMAL_OFFSET);
+      gl.glTexCoordPointer(2, GL2.GL_HALF_FLOAT, stride, CompactVertexFormat.GL_TEXCOORD_OFFSET);
+    }
+    else {
+      gl.glVertexPointer(3, GL2.GL_FLOAT, STRIDE, 0);
+      gl.glNormalPointer(GL2.GL_FLOAT, STRIDE, 3*Buffers.SIZEOF_FLOAT);
+      gl.glTexCoordPointer(2, GL2.GL_FLOAT, STRIDE, 6*Buffers.SIZEOF_FLOAT);
+    }
+  }
+
+  private void unbindBufferObjects(GL2 gl) {
+    gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+    gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+    gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+  }
+
+  /**
+   * Render a mesh using buffer objects, which are created the first time.
+   * 
+   * @param  gl  the OpenGL context.
+   */ 
+
+  public void renderBufferObject(GL2 gl, boolean texit) {
+    if (texit) useTexture(gl);
+    setMaterial(gl);
+    bindBufferObjects(gl);
+    gl.glDrawElements(GL2.GL_TRIANGLES, bufferTriangles*3, GL2.GL_UNSIGNED_INT, 0);
+    unbindBufferObjects(gl);
+    if (texit) state.disableTexture(gl, tex);
+  }
+
+  /**
+   * Draws some of the triangles, without setting the material or texture, e.g. for when several
+   * parts of one mesh need different textures. Uses buffer objects in BUFFER_OBJECT mode and
+   * immediate mode otherwise (so that the triangles can be compiled into a display list).
+   * 
+   * @param  gl     the OpenGL context.
+   * @param  first  the first triangle
+   * @param  count  the number of triangles
+   */ 
+
+  public void drawTriangles(GL2 gl, int first, int count) {
+    if (mode == BUFFER_OBJECT) {
+      bindBufferObjects(gl);
+      gl.glDrawElements(GL2.GL_TRIANGLES, count*3, GL2.GL_UNSIGNED_INT, (long) first*3*Buffers.SIZEOF_INT);
+      unbindBufferObjects(gl);
+      return;
+    }
+    if (triangles == null && compact == null) copyArrays();
+    gl.glBegin(GL2.GL_TRIANGLES);
+      if (compact != null) {
+        sendCompactData(gl, true, first, count);
+      }
+      else {
+        for (int t=first; t<first+count; t++) {
+          for (int i=0; i<3; i++) {
+            int tindex = triangles[t*3+i]*2;
+            gl.glTexCoord2d(textureCoords[tindex], textureCoords[tindex+1]);
+            sendNVData(gl, t,i);
+          }
+        }
+      }
+    gl.glEnd();
+  }
+
+  /**
+   * Draws the whole mesh several times with one glDrawElementsInstanced call, from buffer objects
+   * (whatever the mode), without setting the material or texture. Anything that differs between
+   * the copies must come from per-instance vertex attributes (see glVertexAttribDivisor) and a
+   * shader, set up by the caller, e.g. InstancedRender. Needs OpenGL 3.1 or ARB_draw_instanced.
+   * 
+   * @param  gl         the OpenGL context.
+   * @param  instances  the number of copies
+   */ 
+
+  public void drawInstanced(GL2 gl, int instances) {
+    bindBufferObjects(gl);
+    gl.glDrawElementsInstanced(GL2.GL_TRIANGLES, bufferTriangles*3, GL2.GL_UNSIGNED_INT, 0, instances);
+    unbindBufferObjects(gl);
+  }
+
+  /**
+   * Draws the whole mesh, with texture coords, in the current mode, but without setting the
+   * material or texture. This is for meshes that are shared by objects with different materials,
+   * e.g. primitives from a PrimitiveCache: each object sets its own material first.
+   * In DISPLAY_LIST mode, a separate display list is used that does not change any state.
+   * 
+   * @param  gl  the OpenGL context.
+   */ 
+
+  public void draw(GL2 gl) {
+    if (mode != DISPLAY_LIST) {
+      drawTriangles(gl, 0, mesh.getNumTriangles());
+      return;
+    }
+    if (drawList == 0) {
+      drawList = gl.glGenLists(1);
+      gl.glNewList(drawList, GL2.GL_COMPILE);
+        drawTriangles(gl, 0, mesh.getNumTriangles());
+      gl.glEndList();
+    }
+    gl.glCallList(drawList);
+  }
+
+  /**
+   * Copies a range of vertices from the Mesh again, after they have been changed (e.g. moved).
+   * Only that part of the buffer objects is uploaded again, using glBufferSubData.
+   * A display list cannot be changed, so it is recompiled the next time render(...) is called.
+   * The Mesh must still have the same number of vertices and triangles.
+   * 
+   * @param  gl    the OpenGL context.
+   * @param  from  index of the first vertex that changed
+   * @param  to    index after the last vertex that changed
+   */ 
+
+  public void updateRange(GL2 gl, int from, int to) {
+    from = Math.max(from, 0);
+    to = Math.min(to, mesh.getNumVertices());
+    if (from >= to) return;
+    if (vertices != null) {
+      PackedMeshData packed = mesh.getPackedData();
+      if (packed != null) {
+        System.arraycopy(packed.getPositions(), from*3, vertices, from*3, (to-from)*3);
+        System.arraycopy(packed.getNormals(), from*3, normals, from*3, (to-from)*3);
+        System.arraycopy(packed.getTexCoords(), from*2, textureCoords, from*2, (to-from)*2);
+      }
+      else {
+        for (int v=from; v<to; v++) {
+          Vertex vertex = mesh.getVertex(v);
+          double[] p = vertex.getPosition(), n = vertex.getNormal();
+          for (int j=0; j<3; j++) {
+            vertices[v*3+j] = p[j];
+            normals[v*3+j] = n[j];
+          }
+          textureCoords[v*2] = vertex.getTextureCoordU();
+          textureCoords[v*2+1] = vertex.getTextureCoordV();
+        }
+      }
+    }
+    if (compact != null) compact.update(mesh, from, to);
+    if (buffers != null && !mesh.getUseDirectBuffers()) buffers.updateVertices(mesh, from, to);  // otherwise the Mesh updates them
+    // if the format has been changed, the buffer is made again when it is next bound, so is not updated here
+    boolean upload = bufferObjects != null && bufferCompact == (compact != null);
+    if (upload && bufferCompact) {
+      int size = (to-from)*CompactVertexFormat.GL_STRIDE;
+      if (compactUpdateData == null || compactUpdateData.capacity() < size) compactUpdateData = Buffers.newDirectByteBuffer(size);
+      gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, bufferObjects[0]);
+      gl.glBufferSubData(GL2.GL_ARRAY_BUFFER, (long) from*CompactVertexFormat.GL_STRIDE, size,
+                         compact.getGLVertexData(from, to, compactUpdateData));
+      gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+    }
+    else if (upload) {
+      int size = (to-from)*FLOATS_PER_VERTEX;
+      if (updateData == null || updateData.capacity() < size) updateData = Buffers.newDirectFloatBuffer(size);
+      gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, bufferObjects[0]);
+      gl.glBufferSubData(GL2.GL_ARRAY_BUFFER, (long) from*STRIDE, (long) (to-from)*STRIDE, interleave(from, to, updateData));
+      gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+    }
+    if (dlist != 0) {
+      gl.glDeleteLists(dlist, 1);
+      dlist = 0;
+    }
+    if (drawList != 0) {
+      gl.glDeleteLists(drawList, 1);
+      drawList = 0;
+    }
+  }
+
+  /**
+   * Frees the display list and buffer objects, if they have been created.
+   * 
+   * @param  gl  the OpenGL context.
+   */ 
+
+  public void dispose(GL2 gl) {
+    if (dlist != 0) gl.glDeleteLists(dlist, 1);
+    if (drawList != 0) gl.glDeleteLists(drawList, 1);
+    if (bufferObjects != null) gl.glDeleteBuffers(2, bufferObjects, 0);
+    dlist = drawList = 0;
+    bufferObjects = null;
   }
 
   /* ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ */
@@ -122,6 +563,9 @@ public class Render {
   
    /**
    * Render a mesh using a display list.
+   * If the Mesh uses direct buffers, the list is compiled from vertex arrays.
+   * The list sets the material and texture itself, so the state it leaves is recorded when it is
+   * compiled, and the state cache is updated with that after it is called.
    * 
    * @param  gl  the OpenGL context.
    */ 
@@ -129,12 +573,16 @@ public class Render {
   public void initialiseDisplayList(GL2 gl, boolean texit) {
     dlist = gl.glGenLists(1);
     gl.glNewList(dlist, GL2.GL_COMPILE);
-      renderImmediateMode(gl, texit);
+      state.beginList();
+      if (buffers != null) renderVertexArrays(gl, texit);
+      else renderImmediateMode(gl, texit);
+      dlistState = state.endList();
     gl.glEndList(); 
   }
   
   public void renderDisplayList(GL2 gl) {
     gl.glCallList(dlist);
+    state.listCalled(dlistState);
   }
   
   /**
@@ -144,14 +592,15 @@ public class Render {
    */ 
  
   public void wireframeImmediateMode(GL2 gl, boolean lightingOn) {
+    if (triangles == null && compact == null) copyArrays();
     setMaterial(gl);
-    if (!lightingOn) gl.glDisable(GL2.GL_LIGHTING);
-    gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_LINE);
+    if (!lightingOn) state.disable(gl, GL2.GL_LIGHTING);
+    state.polygonMode(gl, GL2.GL_FRONT_AND_BACK, GL2.GL_LINE);
     gl.glBegin(GL2.GL_TRIANGLES);
       sendAllNVData(gl);
     gl.glEnd();
-    if (!lightingOn) gl.glEnable(GL2.GL_LIGHTING);
-    gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_FILL);
+    if (!lightingOn) state.enable(gl, GL2.GL_LIGHTING);
+    state.polygonMode(gl, GL2.GL_FRONT_AND_BACK, GL2.GL_FILL);
   }
 
 }
@@ -0,0 +1,219 @@
+/**
+ * Collects the things to be drawn in a frame and then draws them in an order that keeps
+ * state changes down, instead of in the order in which they were submitted.
+ * Each submission is a Command, which draws something, and a 64-bit sort key:
+ *   bits 60-63  pass, e.g. OPAQUE before TRANSPARENT
+ *   bits 44-59  texture id (0 for none)
+ *   bits 28-43  material id
+ *   bits  0-27  depth, the distance from the eye
+ * so that everything with the same texture is drawn together, and within that everything with
+ * the same material. Opaque things are then drawn front to back, so that hidden pixels fail the
+ * depth test early, and transparent things back to front, so that they blend correctly.
+ * Ids for textures and materials come from getId(...), which gives each distinct object a small number.
+ * The keys are sorted with an LSD radix sort, a byte at a time, which takes time proportional to
+ * the number of submissions. Bytes that are the same in every key are skipped.
+ * A Command is drawn with the modelview matrix set as it was when execute(...) was called
+ * (i.e. the camera transformation), so it must set and restore any transformations of its own.
+ * Typical use, every frame:
+ *   queue.clear();
+ *   queue.setEye(camera.getEyeX(), camera.getEyeY(), camera.getEyeZ());
+ *   queue.submit(RenderQueue.OPAQUE, queue.getId(tex), queue.getId(material), x,y,z, command);  ...
+ *   queue.execute(gl);
+ */
+
+import java.util.*;
+import com.jogamp.opengl.*;
+
+public class RenderQueue {
+
+  public static final int OPAQUE = 0;
+  public static final int TRANSPARENT = 1;
+
+  private static final int PASS_SHIFT = 60;
+  private static final int TEXTURE_SHIFT = 44;
+  private static final int MATERIAL_SHIFT = 28;
+  private static final long ID_MASK = 0xffff;
+  private static final long DEPTH_MASK = (1L << MATERIAL_SHIFT)-1;
+  private static final int DEPTH_LEVELS = 1 << MATERIAL_SHIFT;
+  private static final double DEFAULT_MAX_DEPTH = 1000;
+
+  /**
+   * Something to draw.
+   */
+  public interface Command {
+    void draw(GL2 gl);
+  }
+
+  private long[] keys = new long[16];
+  private Command[] commands = new Command[16];
+  private int size;
+  private long[] sortedKeys = new long[16];
+  private int[] order = new int[16], spare = new int[16];
+  private int[] count = new int[256];   // for sort(), one per value of a byte
+  private Map<Object,Integer> ids = new HashMap<Object,Integer>();
+  private double eyeX, eyeY, eyeZ;
+  private double maxDepth = DEFAULT_MAX_DEPTH;
+  private int stateChanges, unsortedStateChanges;
+
+  /**
+   * Removes all the submissions, ready for the next frame. Ids are kept.
+   */
+  public void clear() {
+    Arrays.fill(commands, 0, size, null);
+    size = 0;
+  }
+
+  /**
+   * Sets the position of the eye, from which depths are measured.
+   */
+  public void setEye(double x, double y, double z) {
+    eyeX = x;
+    eyeY = y;
+    eyeZ = z;
+  }
+
+  /**
+   * Sets the largest depth that is told apart from others; anything further away is treated as
+   * being at this depth. The default is 1000.
+   *
+   * @param  d  the largest depth, e.g. the distance to the far clipping plane
+   */
+  public void setMaxDepth(double d) {
+    maxDepth = d;
+  }
+
+  /**
+   * Gets a small id for an object, e.g. a Texture or a Material, for use in a sort key.
+   * Objects that are equal get the same id. Ids start at 1, so that 0 can mean none.
+   *
+   * @param  o  the object; null for none
+   * @return  the id, or 0 if o is null
+   */
+  public int getId(Object o) {
+    if (o == null) return 0;
+    Integer id = ids.get(o);
+    if (id == null) {
+      id = ids.size()+1;
+      if (id > ID_MASK) throw new IllegalStateException("Too many ids for a sort key");
+      ids.put(o, id);
+    }
+    return id;
+  }
+
+  /**
+   * Makes a sort key.
+   *
+   * @param  pass      OPAQUE or TRANSPARENT
+   * @param  texture   texture id, from getId(...); 0 for none
+   * @param  material  material id, from getId(...)
+   * @param  depth     distance from the eye
+   * @return  the key
+   */
+  public long makeKey(int pass, int texture, int material, double depth) {
+    long d = (long) (Math.max(0, Math.min(depth/maxDepth, 1))*(DEPTH_LEVELS-1));
+    if (pass == TRANSPARENT) d = DEPTH_MASK-d;  // back to front
+    return ((long) pass << PASS_SHIFT) | ((texture & ID_MASK) << TEXTURE_SHIFT)
+           | ((material & ID_MASK) << MATERIAL_SHIFT) | d;
+  }
+
+  /**
+   * Submits something to be drawn.
+   *
+   * @param  key      the sort key, from makeKey(...)
+   * @param  command  draws it
+   */
+  public void submit(long key, Command command) {
+    if (size == keys.length) {
+      int n = size*2;
+      keys = Arrays.copyOf(keys, n);
+      commands = Arrays.copyOf(commands, n);
+      sortedKeys = new long[n];
+      order = new int[n];
+      spare = new int[n];
+    }
+    keys[size] = key;
+    commands[size] = command;
+    size++;
+  }
+
+  /**
+   * Submits something to be drawn, with its depth measured from the eye to the point (x,y,z).
+   *
+   * @param  pass      OPAQUE or TRANSPARENT
+   * @param  texture   texture id, from getId(...); 0 for none
+   * @param  material  material id, from getId(...)
+   * @param  x,y,z     a point in world coordinates, e.g. the centre of the object
+   * @param  command   draws it
+   */
+  public void submit(int pass, int texture, int material, double x, double y, double z, Command command) {
+    double dx = x-eyeX, dy = y-eyeY, dz = z-eyeZ;
+    submit(makeKey(pass, texture, material, Math.sqrt(dx*dx+dy*dy+dz*dz)), command);
+  }
+
+  public int getSize() { return size; }
+
+  /**
+   * Sorts the submissions by key and draws them. The submissions are kept, so the same
+   * frame can be drawn again.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void execute(GL2 gl) {
+    sort();
+    unsortedStateChanges = countStateChanges(keys);
+    stateChanges = countStateChanges(sortedKeys);
+    for (int i=0; i<size; i++)
+      commands[order[i]].draw(gl);
+  }
+
+  /**
+   * The number of times the texture or material changed between one submission and the next
+   * in the last call of execute(...).
+   *
+   * @return  the number of state changes
+   */
+  public int getNumStateChanges() { return stateChanges; }
+
+  /**
+   * The number of state changes there would have been in the last call of execute(...)
+   * if the submissions had been drawn in the order they were submitted.
+   *
+   * @return  the number of state changes
+   */
+  public int getNumUnsortedStateChanges() { return unsortedStateChanges; }
+
+  private int countStateChanges(long[] k) {
+    int count = 0;
+    for (int i=1; i<size; i++)
+      if ((k[i] >>> MATERIAL_SHIFT) != (k[i-1] >>> MATERIAL_SHIFT)) count++;
+    return count;
+  }
+
+  /* LSD radix sort of the indices by key, one byte at a time. Stable, so equal keys stay in submission order */
+  private void sort() {
+    for (int i=0; i<size; i++)
+      order[i] = i;
+    for (int shift=0; shift<64; shift+=8) {
+      Arrays.fill(count, 0);
+      for (int i=0; i<size; i++)
+        count[(int) (keys[i] >>> shift) & 0xff]++;
+      if (size == 0 || count[(int) (keys[0] >>> shift) & 0xff] == size) continue;  // all the same
+      int sum = 0;
+      for (int b=0; b<256; b++) {
+        int c = count[b];
+        count[b] = sum;
+        sum += c;
+      }
+      for (int i=0; i<size; i++) {
+        int j = order[i];
+        spare[count[(int) (keys[j] >>> shift) & 0xff]++] = j;
+      }
+      int[] t = order;
+      order = spare;
+      spare = t;
+    }
+    for (int i=0; i<size; i++)
+      sortedKeys[i] = keys[order[i]];
+  }
+
+}
@@ -17,27 +17,80 @@ import com.jogamp.opengl.util.gl2.GLUT;
 
 public class Robot{
   private GLU glu = new GLU();
-  private GLUT glut = new GLUT();
   private AnimationScene animationScene;
+  private GLStateCache state;
+  private PrimitiveCache primitives;
+
+  // only the colour differs from one part to the next, so no arrays are made per part
+  private static final float[] MAT_SPECULAR={0.5f,0.5f,0.5f,1.0f};
+  private static final float[] MAT_SHININESS={64f};
+  private static final float[] MAT_EMISSION={0.0f,0.0f,0.0f,1.0f};
+  private float[] matAmbientDiffuse={0,0,0,1.0f};  // reused; the state cache copies the values
   private final double r=1;
   private final double Left=1;
   private final double Right=-1;
 
+  // bounding spheres for frustum culling: the whole robot, about its centre, and each arm, about its elbow
+  private static final double ROBOT_RADIUS=4.2;
+  private static final double ARM_RADIUS=2.0;
+  private double[] point=new double[3];
+  private Matrix4 arm=new Matrix4();  // scratch for isArmVisible, so that no matrix is made per frame
 
-  public Robot(AnimationScene animationScene1)
+  // the first material the robot sets, e.g. to key it in a RenderQueue
+  public static final float[] HEAD_COLOUR={240f,65f,85f};
+
+  private LodSelector lod;       // null to always use the full number of slices
+  private double distance=-1;    // from the eye to the robot, for the level of detail; -1 if unknown
+
+
+  public Robot(AnimationScene animationScene1, GLStateCache state, PrimitiveCache primitives)
   {
     animationScene=animationScene1;
+    this.state=state;
+    this.primitives=primitives;
+  }
+
+  // the spheres, cones and cylinders get fewer slices when the robot is small on the screen
+  public void setLodSelector(LodSelector lod)
+  {
+    this.lod=lod;
   }
 
   public void moveRobotArm(GL2 gl,double direction)
   {
-    double robotMove3 =animationScene.getParam(animationScene.ROBOT_PARAM3);
+    double robotMove3 =animationScene.getParam(AnimationScene.ROBOT_PARAM3);
     gl.glRotated(robotMove3,0,direction,0);
   }
 
   
   public void displayRobot(GL2 gl)
   {
+    distance=-1;
+    displayRobot(gl,null,null);
+  }
+
+  /**
+   * As displayRobot(gl), but the robot is skipped if it is outside the view frustum, and so is
+   * either arm (with its forearm, hand and fingers). The level of detail of each part is chosen
+   * from its distance to the eye (see setLodSelector(...)).
+   *
+   * @param  toWorld  the transformation from the robot to the world, i.e. the current modelview
+   *                  matrix without the camera transformation; null if not known, in which case
+   *                  nothing is culled and the full level of detail is used
+   * @param  frustum  the view frustum; null to draw everything
+   */
+  public void displayRobot(GL2 gl, Matrix4 toWorld, Frustum frustum)
+  {
+    distance=-1;
+    if (toWorld==null) frustum=null;  // where the robot is is not known, so it cannot be culled
+    else {
+      toWorld.transformPoint(0,0,0,point);
+      if (lod!=null) distance=lod.getDistance(point[0],point[1],point[2]);
+    }
+    if (frustum!=null) {
+      if (!frustum.isSphereVisible(point[0],point[1],point[2],ROBOT_RADIUS*toWorld.getMaxScale()))
+        return;
+    }
 
     gl.glPushMatrix();
       displayHead(gl);
@@ -54,48 +107,65 @@ public class Robot{
           displayHatTop(gl);
         gl.glPopMatrix();
       //Leftarm
-      gl.glPushMatrix();
-        displayPostArm(gl,Left);
-        //leftForearm
+      if (isArmVisible(toWorld,frustum,Left)) {
         gl.glPushMatrix();
-          gl.glTranslated(0,0,r*1.25);
-          displayForeArm(gl,Left);
-          //leftHand
+          displayPostArm(gl,Left);
+          //leftForearm
           gl.glPushMatrix();
             gl.glTranslated(0,0,r*1.25);
-            displayHand(gl,Left);
+            displayForeArm(gl,Left);
+            //leftHand
+            gl.glPushMatrix();
+              gl.glTranslated(0,0,r*1.25);
+              displayHand(gl,Left);
+            gl.glPopMatrix();
+
           gl.glPopMatrix();
 
         gl.glPopMatrix();
-
-      gl.glPopMatrix();
+      }
       //RightArm
-      gl.glPushMatrix();
-        displayPostArm(gl,Right);
-        //RightForeArm
+      if (isArmVisible(toWorld,frustum,Right)) {
         gl.glPushMatrix();
-          gl.glTranslated(0,0,r*1.25);
-          displayForeArm(gl,Right);
-          //rightHand
+          displayPostArm(gl,Right);
+          //RightForeArm
           gl.glPushMatrix();
             gl.glTranslated(0,0,r*1.25);
-            displayHand(gl,Right);
+            displayForeArm(gl,Right);
+            //rightHand
+            gl.glPushMatrix();
+              gl.glTranslated(0,0,r*1.25);
+              displayHand(gl,Right);
+            gl.glPopMatrix();
           gl.glPopMatrix();
         gl.glPopMatrix();
-      gl.glPopMatrix();
+      }
     gl.glPopMatrix(); 
   }
 
+  // follows the transformations of displayPostArm to the elbow
+  private boolean isArmVisible(Matrix4 toWorld, Frustum frustum, double direction)
+  {
+    if (frustum==null || toWorld==null) return true;
+    arm.set(toWorld);
+    arm.rotate(90*direction,0,1,0);
+    arm.translate(0,0,r*0.95);
+    arm.rotate(animationScene.getParam(AnimationScene.ROBOT_PARAM3),0,direction,0);
+    arm.transformPoint(0,0,r*1.25,point);
+    return frustum.isSphereVisible(point[0],point[1],point[2],ARM_RADIUS*arm.getMaxScale());
+  }
+
   public void displayFinger(GL2 gl)
   {
     setMaterial(gl,160f,102f,211f);
 
     double SphereFinger=r*0.2;
+    int n=detail("finger",SphereFinger*1.25,30);
       gl.glPushMatrix();
         gl.glRotated(45,0,-1,1);
         gl.glTranslated(SphereFinger*2,0,0);
         gl.glScaled(1.25,0.3,0.3);
-        glut.glutSolidSphere(SphereFinger,30,30);
+        primitives.getSphere(SphereFinger,n,n).draw(gl);
       gl.glPopMatrix();
 
       gl.glPushMatrix();
@@ -103,7 +173,7 @@ public class Robot{
         gl.glRotated(225,0,1,0);
         gl.glTranslated(SphereFinger*2,0,0);
         gl.glScaled(1.25,0.3,0.3);
-        glut.glutSolidSphere(SphereFinger,30,30);
+        primitives.getSphere(SphereFinger,n,n).draw(gl);
       gl.glPopMatrix();
 
       gl.glPushMatrix();
@@ -111,7 +181,7 @@ public class Robot{
         gl.glRotated(45,0,-1,0);
         gl.glTranslated(SphereFinger*2,0,0);
         gl.glScaled(1.25,0.3,0.3);
-        glut.glutSolidSphere(SphereFinger,30,30);
+        primitives.getSphere(SphereFinger,n,n).draw(gl);
       gl.glPopMatrix();
     
   }
@@ -121,7 +191,8 @@ public class Robot{
     setMaterial(gl,210f,105f,30f);
 
     double SphereHand=r*0.20;
-    glut.glutSolidSphere(SphereHand,30,30);
+    int n=detail("hand",SphereHand,30);
+    primitives.getSphere(SphereHand,n,n).draw(gl);
     displayFinger(gl);
   }
 
@@ -131,10 +202,12 @@ public class Robot{
 
     double SphereShoulder=r*0.23;
     double CylinderR=r*0.15;
-    glut.glutSolidSphere(SphereShoulder,30,30);
+    int n=detail("shoulder",SphereShoulder,30);
+    primitives.getSphere(SphereShoulder,n,n).draw(gl);
     gl.glRotated(90*direction,0,-1,0);
     gl.glTranslated(0,0,SphereShoulder*0.8);
-    glut.glutSolidCylinder(CylinderR,r*1.3,30,30);
+    n=detail("forearm",CylinderR,30);
+    primitives.getCylinder(CylinderR,r*1.3,n,n).draw(gl);
   }
 
   public void displayPostArm(GL2 gl,double direction)
@@ -145,7 +218,8 @@ public class Robot{
     gl.glRotated(90*direction,0,1,0);
     gl.glTranslated(0,0,r*0.95);
     moveRobotArm(gl,direction);
-    glut.glutSolidCylinder(CylinderR,r*1.3,30,30);
+    int n=detail("arm",CylinderR,30);
+    primitives.getCylinder(CylinderR,r*1.3,n,n).draw(gl);
   }
 
   public void displayHatTop(GL2 gl)
@@ -154,7 +228,8 @@ public class Robot{
 
     gl.glTranslated(0,2*r,0);
     gl.glScaled(0.15,0.15,0.15);
-    glut.glutSolidSphere(r,30,30);
+    int n=detail("hat top",r*0.15,30);
+    primitives.getSphere(r,n,n).draw(gl);
   }
 
   public void displayHat(GL2 gl)
@@ -165,7 +240,8 @@ public class Robot{
 
     gl.glTranslated(0,d,0);
     gl.glRotated(90,-1,0,0);
-    glut.glutSolidCone(0.2,r,30,30);
+    int n=detail("hat",0.2,30);
+    primitives.getCone(0.2,r,n,n).draw(gl);
 
   }
 
@@ -176,23 +252,31 @@ public class Robot{
     double eyeZ=1;
 
     gl.glTranslated(0,0,eyeZ);
-    glut.glutSolidSphere(0.2*r,30,30);
+    int n=detail("eye",0.2*r,30);
+    primitives.getSphere(0.2*r,n,n).draw(gl);
 
   }
   public void displayHead(GL2 gl) {
-    setMaterial(gl,240f,65f,85f);
-    glut.glutSolidSphere(r,50,50);
+    setMaterial(gl,HEAD_COLOUR[0],HEAD_COLOUR[1],HEAD_COLOUR[2]);
+    int n=detail("head",r,50);
+    primitives.getSphere(r,n,n).draw(gl);
 
   }
+  // the number of slices and stacks for a part with the given radius
+  private int detail(String part, double radius, int max)
+  {
+    if (lod==null || distance<0) return max;
+    return lod.select(part,radius,distance,max);
+  }
+
   public void setMaterial(GL2 gl, float r, float g, float b) {
-    float[] matAmbientDiffuse = {r/255f, g/255f, b/255f, 1.0f};
-    float[] matSpecular = {0.5f,0.5f,0.5f, 1.0f};
-    float[] matShininess = {64f};
-    float[] matEmission = {0.0f, 0.0f, 0.0f, 1.0f};
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, matAmbientDiffuse, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SPECULAR, matSpecular, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SHININESS, matShininess, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_EMISSION, matEmission, 0);
+    matAmbientDiffuse[0] = r/255f;
+    matAmbientDiffuse[1] = g/255f;
+    matAmbientDiffuse[2] = b/255f;
+    state.material(gl, GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, matAmbientDiffuse);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_SPECULAR, MAT_SPECULAR);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_SHININESS, MAT_SHININESS);
+    state.material(gl, GL2.GL_FRONT, GL2.GL_EMISSION, MAT_EMISSION);
   }
 
 }
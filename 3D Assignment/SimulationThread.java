@@ -0,0 +1,195 @@
+/**
+ * Runs the animation on its own thread, so that working out the animation and drawing a frame can
+ * happen at the same time, and a slow tick does not hold up drawing.
+ * The thread has its own AnimationScene, which it moves on by a fixed tick, as FramePacer does.
+ * After each tick it publishes a Snapshot of the parameter values before and after the tick. A
+ * Snapshot is never changed once published, and is handed over through an AtomicReference, so the
+ * drawing thread always gets a consistent set of values without either thread waiting for a lock.
+ * The animation is only ever touched by its own thread: startAnimation(), pauseAnimation() and
+ * reset() post commands, which the thread runs before its next tick. While the animation is paused
+ * the thread waits for the next command, so it uses no processor time.
+ * Typical use:
+ *   simulation = new SimulationThread(FramePacer.TICK_RATE);
+ *   simulation.start();
+ *   simulation.startAnimation();
+ *   ...each frame, on the drawing thread:
+ *   simulation.apply(scene.getAnimationScene());   // instead of scene.update()
+ *   scene.render(gl);
+ */
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+public class SimulationThread implements Runnable {
+
+  /**
+   * The parameter values before and after one tick.
+   */
+  public static class Snapshot {
+    private final double[] previous, current;
+    private final boolean moving;  // false if the values are not changing, e.g. while paused
+    private final long time;       // System.nanoTime() when the tick was done
+    private final long tick;       // the number of the tick
+
+    private Snapshot(double[] previous, double[] current, boolean moving, long time, long tick) {
+      this.previous = previous;
+      this.current = current;
+      this.moving = moving;
+      this.time = time;
+      this.tick = tick;
+    }
+
+    public double getValue(int i) { return current[i]; }
+
+    public double getPreviousValue(int i) { return previous[i]; }
+
+    public boolean isMoving() { return moving; }
+
+    public long getTime() { return time; }
+
+    public long getTick() { return tick; }
+  }
+
+  private static final int START = 0;
+  private static final int PAUSE = 1;
+  private static final int RESET = 2;
+  private static final int STOP = 3;
+
+  private AnimationScene animation;    // only used on the simulation thread
+  private long tickNanos;
+  private boolean running = false;     // whether the animation is moving on
+  private BlockingQueue<Integer> commands = new LinkedBlockingQueue<Integer>();
+  private AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
+  private Thread thread;
+  private volatile long ticks, lateTicks;
+
+  /**
+   * Constructor.
+   *
+   * @param  tickRate  the number of ticks per second
+   */
+  public SimulationThread(double tickRate) {
+    tickNanos = Math.round(1e9/tickRate);
+    animation = new AnimationScene();
+    animation.setFixedClock(true);
+    animation.update();
+    publish(System.nanoTime(), false);
+  }
+
+  /**
+   * Starts the thread. The animation is paused until startAnimation() is called.
+   */
+  public void start() {
+    thread = new Thread(this, "Simulation");
+    thread.setDaemon(true);  // so that it does not keep the program running
+    thread.start();
+  }
+
+  /**
+   * Stops the thread, and waits for it to finish.
+   */
+  public void stop() {
+    if (thread == null) return;
+    commands.add(STOP);
+    try {
+      thread.join();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    thread = null;
+  }
+
+  public void startAnimation() { commands.add(START); }
+
+  public void pauseAnimation() { commands.add(PAUSE); }
+
+  public void reset() { commands.add(RESET); }
+
+  /**
+   * The values after the latest tick. May be called from any thread.
+   *
+   * @return  the latest snapshot
+   */
+  public Snapshot getSnapshot() {
+    return snapshot.get();
+  }
+
+  /**
+   * Makes an animation show the latest snapshot, blended between the values before and after its
+   * tick by how long ago the tick was done, as FramePacer does. Call on the drawing thread.
+   *
+   * @param  target  the animation the scene is drawn from
+   */
+  public void apply(AnimationScene target) {
+    Snapshot s = snapshot.get();
+    target.setValues(s.previous, s.current);
+    target.setBlend(s.moving ? (double) (System.nanoTime()-s.time)/tickNanos : 1);
+  }
+
+  public void run() {
+    long next = System.nanoTime();
+    while (true) {
+      Integer command = running ? commands.poll() : take();
+      while (command != null) {
+        if (command == STOP) return;
+        if (command == START && !running) {
+          animation.startAnimation();
+          running = true;
+          next = System.nanoTime();
+        }
+        else if (command == PAUSE && running) {
+          animation.pauseAnimation();
+          running = false;
+        }
+        else if (command == RESET) {
+          animation.reset();
+          animation.update();
+        }
+        publish(System.nanoTime(), false);  // nothing to blend from until the next tick
+        command = commands.poll();
+      }
+      if (running) {
+        long wait;
+        while ((wait = next-System.nanoTime()) > 0)
+          LockSupport.parkNanos(wait);
+        animation.advanceClock(tickNanos/1e9);
+        animation.update();
+        ticks++;
+        publish(System.nanoTime(), true);
+        next += tickNanos;
+        if (System.nanoTime()-next > tickNanos) {  // too far behind to catch up; carry on from now
+          next = System.nanoTime();
+          lateTicks++;
+        }
+      }
+    }
+  }
+
+  private Integer take() {
+    try {
+      return commands.take();
+    }
+    catch (InterruptedException e) {
+      return STOP;
+    }
+  }
+
+  /* on the simulation thread */
+  private void publish(long time, boolean moving) {
+    double[] current = new double[AnimationScene.MAX_PARAMS];
+    animation.getValues(current);
+    double[] previous = current;
+    if (moving) {
+      previous = new double[AnimationScene.MAX_PARAMS];
+      animation.getPreviousValues(previous);
+    }
+    snapshot.set(new Snapshot(previous, current, moving, time, ticks));
+  }
+
+  public String toString() {
+    return "Simulation thread: "+ticks+" ticks, "+lateTicks+" too late to catch up";
+  }
+
+}
@@ -0,0 +1,742 @@
+/**
+ * Renders Meshes on the CPU, without OpenGL, into a BufferedImage, e.g. for regression tests and
+ * batch rendering on machines with no GPU. It does what the fixed-function pipeline does for the scene:
+ * per-vertex (Gouraud) lighting from a Material and Lights, back-face culling, a depth buffer, and
+ * textures modulated with the lit colour (as GL_MODULATE), interpolated with perspective correction.
+ * Drawing is in two stages. draw(...) transforms and lights the vertices of a Mesh straight away,
+ * clips its triangles against the near plane and keeps them. render() then sorts the triangles into
+ * square tiles of the screen (binning) and rasterises the tiles in parallel. Each tile owns its part
+ * of the colour and depth buffers, so no locking is needed, and the tiles are shared out between
+ * the threads by a fork/join pool. No allocation is done per vertex or per pixel, so the threads
+ * do not contend for the allocator; main() measures the speed-up on the machine it is run on.
+ * Clipping and binning are parallel too: the triangles are split into runs, each clipped or binned
+ * into buffers of its own, and the runs are then taken in order. Within a tile, triangles are drawn
+ * in the order they were given, so the image does not depend on the number of threads.
+ * The colour buffer is the image's own pixel array, so nothing is copied when render() finishes.
+ * Unlike OpenGL, lights and transformations are given in world coordinates, not relative to
+ * whatever the modelview matrix was when they were set.
+ * Typical use, every frame:
+ *   renderer.clear();
+ *   renderer.setView(camera.getViewMatrix());
+ *   renderer.addLight(light, null);  ...
+ *   renderer.draw(mesh, transform, material, textureImage);  ...
+ *   BufferedImage image = renderer.render();
+ */
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.awt.image.*;
+import javax.imageio.*;
+
+public class SoftwareRenderer {
+
+  public static final int DEFAULT_TILE_SIZE = 32;
+
+  private static final int STRIDE = 10;  // floats per vertex: x,y,z,w (clip space), r,g,b,a, u,v
+  private static final double NEAR_EPSILON = 1e-6;
+  private static final int CLIP_RUN = 2048;  // triangles per run when clipping
+  private static final int BIN_RUN = 1024;   // the fewest triangles per run when binning
+
+  private int width, height;
+  private int tileSize = DEFAULT_TILE_SIZE;
+  private int tilesX, tilesY;
+  private int[] colour;   // the image's pixels
+  private float[] depth;
+  private BufferedImage image;
+  private int clearColour = 0xff000000;
+  private boolean cullFace = true;
+  private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+  private Matrix4 projection = new Matrix4();
+  private Matrix4 view = new Matrix4();
+  private Matrix4 clip = new Matrix4();     // projection*view
+  private double[] eye = new double[3];     // in world coordinates, for specular highlights
+  private float[] globalAmbient = {0.2f, 0.2f, 0.2f, 1.0f};  // as the OpenGL default
+  private List<LightData> lights = new ArrayList<LightData>();
+
+  // the vertices and triangles given to draw(...) since the last clear()
+  private float[] vertices = new float[1024*STRIDE];
+  private int numVertices;
+  private int[] triangles = new int[1024*3];
+  private Tex[] triangleTextures = new Tex[1024];
+  private int numTriangles;
+  private Map<BufferedImage,Tex> textures = new IdentityHashMap<BufferedImage,Tex>();
+  private Clipped[] clipped = new Clipped[0];
+
+  // set up by render(): x,y (pixels), z (0 to 1), 1/w, then r,g,b,a,u,v divided by w
+  private float[] screen = new float[0];
+  private int[][][] bins = new int[0][][];   // [run][tile]: the triangles of each run of binTriangles() that cover each tile
+  private int[][] binSizes = new int[0][];
+  private int numBinRuns;
+
+  /* A light, in world coordinates */
+  private static class LightData {
+    float[] position = new float[4];
+    float[] ambient, diffuse, specular;
+    float[] direction;  // null if not a spotlight
+    double cosCutoff;
+  }
+
+  /* The triangles of one run of a draw(...), after clipping, and the vertices clipping made */
+  private static class Clipped {
+    int[] triangles = new int[3*64];  // vertex indices; -1-k for the k'th vertex in vertices
+    int numTriangles;
+    float[] vertices = new float[16*STRIDE];
+    int numVertices;
+  }
+
+  /* A texture as an array of pixels; row 0 is at the top, i.e. at v = 1 */
+  private static class Tex {
+    int width, height;
+    int[] pixels;
+  }
+
+  /**
+   * Constructor. The projection is the identity until setProjection(...) is called.
+   *
+   * @param  width   the width of the image in pixels
+   * @param  height  the height of the image in pixels
+   */
+  public SoftwareRenderer(int width, int height) {
+    setSize(width, height);
+  }
+
+  /**
+   * Changes the size of the image. The contents are lost.
+   */
+  public void setSize(int width, int height) {
+    this.width = width;
+    this.height = height;
+    depth = new float[width*height];
+    image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    colour = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    setTileSize(tileSize);
+    clear();
+  }
+
+  public int getWidth() { return width; }
+
+  public int getHeight() { return height; }
+
+  /**
+   * Sets the width and height of the square tiles that are rasterised in parallel.
+   *
+   * @param  size  the size in pixels; the default is DEFAULT_TILE_SIZE
+   */
+  public void setTileSize(int size) {
+    tileSize = Math.max(1, size);
+    tilesX = (width+tileSize-1)/tileSize;
+    tilesY = (height+tileSize-1)/tileSize;
+    bins = new int[0][][];  // made again by binTriangles() for the new number of tiles
+    binSizes = new int[0][];
+  }
+
+  /**
+   * Sets the number of threads used.
+   *
+   * @param  threads  the number of threads; 0 to use the common fork/join pool
+   */
+  public void setThreads(int threads) {
+    if (pool != ForkJoinPool.commonPool()) pool.shutdown();
+    pool = (threads > 0) ? new ForkJoinPool(threads) : ForkJoinPool.commonPool();
+  }
+
+  public void setClearColour(float r, float g, float b) {
+    clearColour = 0xff000000 | (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+  }
+
+  /**
+   * Sets whether triangles facing away from the camera (i.e. clockwise on the screen) are skipped,
+   * as with glEnable(GL_CULL_FACE) and glCullFace(GL_BACK). On by default.
+   */
+  public void setCullFace(boolean b) {
+    cullFace = b;
+  }
+
+  /**
+   * Sets the projection, e.g. made with Matrix4.frustum(...) using the values passed to glFrustum.
+   */
+  public void setProjection(Matrix4 projection) {
+    this.projection = (Matrix4) projection.clone();
+    updateClip();
+  }
+
+  /**
+   * Sets the viewing transformation, e.g. from Camera.getViewMatrix().
+   */
+  public void setView(Matrix4 view) {
+    this.view = (Matrix4) view.clone();
+    double[] m = view.getValues();
+    // the eye is at -R^T t, where R is the rotation and t the translation of the view
+    for (int c=0; c<3; c++)
+      eye[c] = -(m[c*4]*m[12] + m[c*4+1]*m[13] + m[c*4+2]*m[14]);
+    updateClip();
+  }
+
+  private void updateClip() {
+    clip = (Matrix4) projection.clone();
+    clip.multiply(view);
+  }
+
+  /**
+   * As glLightModelfv(GL_LIGHT_MODEL_AMBIENT, ...). The default is 0.2.
+   */
+  public void setGlobalAmbient(float[] rgba) {
+    globalAmbient = rgba.clone();
+  }
+
+  /**
+   * Removes the triangles drawn and the lights added, and clears the colour and depth buffers.
+   */
+  public void clear() {
+    numVertices = numTriangles = 0;
+    Arrays.fill(triangleTextures, null);
+    lights.clear();
+    Arrays.fill(colour, clearColour);
+    Arrays.fill(depth, 1f);
+  }
+
+  /**
+   * Adds a light that is used by the draw(...) calls that follow. Lights that are switched off are ignored.
+   *
+   * @param  light      the light
+   * @param  transform  places the light in the world, as the modelview matrix would (without the
+   *                    camera transformation) when the light is used; null for none
+   */
+  public void addLight(Light light, Matrix4 transform) {
+    if (!light.getSwitchedOn()) return;
+    if (transform == null) transform = new Matrix4();
+    LightData l = new LightData();
+    float[] p = light.getPosition();
+    double[] t = new double[3];
+    if (p[3] == 0) transform.transformNormal(p[0], p[1], p[2], t);
+    else transform.transformPoint(p[0], p[1], p[2], t);
+    for (int i=0; i<3; i++)
+      l.position[i] = (float) t[i];
+    l.position[3] = p[3];
+    l.ambient = light.getAmbient();
+    l.diffuse = light.getDiffuse();
+    l.specular = light.getSpecular();
+    if (light.getSpotlight()) {
+      float[] d = light.getDirection();
+      transform.transformNormal(d[0], d[1], d[2], t);  // also normalises it
+      l.direction = new float[]{(float) t[0], (float) t[1], (float) t[2]};
+      l.cosCutoff = Math.cos(Math.toRadians(light.getAngle()));
+    }
+    lights.add(l);
+  }
+
+/* Drawing ******************************************************************
+*/
+
+  /**
+   * Draws a Render's Mesh. See draw(Mesh, ...).
+   */
+  public void draw(Render r, Matrix4 transform, Material material, BufferedImage texture) {
+    draw(r.getMesh(), transform, material, texture);
+  }
+
+  /**
+   * Transforms, lights and clips the triangles of a Mesh, ready for render().
+   *
+   * @param  m          the Mesh
+   * @param  transform  places the Mesh in the world; null for none
+   * @param  material   the Material; null for the Mesh's own
+   * @param  texture    the texture, as read from the file (i.e. not flipped); null for none
+   */
+  public void draw(Mesh m, Matrix4 transform, Material material, BufferedImage texture) {
+    final Matrix4 toWorld = (transform != null) ? transform : new Matrix4();
+    Material mat = (material != null) ? material : m.getMaterial();
+    // read once here rather than per vertex, as the getters return clones
+    final float[] ma = mat.getAmbient(), md = mat.getDiffuse(), ms = mat.getSpecular(), me = mat.getEmission();
+    final double shininess = mat.getShininess();
+    final double[] pos = m.getVertexList();
+    final double[] norm = m.getNormalList();
+    final double[] uv = m.getTextureCoordsList();
+    final int nv = m.getNumVertices(), nt = m.getNumTriangles();
+    final int first = numVertices;
+    ensureVertices(numVertices+nv);
+    numVertices += nv;
+    final Matrix4 clipTransform = (Matrix4) clip.clone();
+    clipTransform.multiply(toWorld);
+    runParallel(nv, 1024, new Range() {
+      public void run(int from, int to) {
+        double[] p = new double[3], n = new double[3];
+        float[] lit = new float[4];
+        double[] cm = clipTransform.getValues();
+        for (int v=from; v<to; v++) {
+          double x = pos[v*3], y = pos[v*3+1], z = pos[v*3+2];
+          int o = (first+v)*STRIDE;
+          vertices[o] = (float) (cm[0]*x + cm[4]*y + cm[8]*z + cm[12]);
+          vertices[o+1] = (float) (cm[1]*x + cm[5]*y + cm[9]*z + cm[13]);
+          vertices[o+2] = (float) (cm[2]*x + cm[6]*y + cm[10]*z + cm[14]);
+          vertices[o+3] = (float) (cm[3]*x + cm[7]*y + cm[11]*z + cm[15]);
+          toWorld.transformPoint(x, y, z, p);
+          toWorld.transformNormal(norm[v*3], norm[v*3+1], norm[v*3+2], n);
+          shade(p, n, ma, md, ms, me, shininess, lit);
+          System.arraycopy(lit, 0, vertices, o+4, 4);
+          vertices[o+8] = (float) uv[v*2];
+          vertices[o+9] = (float) uv[v*2+1];
+        }
+      }
+    });
+    final int[] tri = m.getTriangleList();
+    final int runs = (nt+CLIP_RUN-1)/CLIP_RUN;
+    if (clipped.length < runs) {
+      int n = clipped.length;
+      clipped = Arrays.copyOf(clipped, runs);
+      for (int i=n; i<runs; i++)
+        clipped[i] = new Clipped();
+    }
+    runParallel(runs, 1, new Range() {
+      public void run(int from, int to) {
+        for (int r=from; r<to; r++) {
+          Clipped out = clipped[r];
+          out.numTriangles = out.numVertices = 0;
+          for (int t=r*CLIP_RUN; t<Math.min(nt, (r+1)*CLIP_RUN); t++)
+            addTriangle(first+tri[t*3], first+tri[t*3+1], first+tri[t*3+2], out);
+        }
+      }
+    });
+    Tex tex = getTex(texture);
+    for (int r=0; r<runs; r++)
+      keepClipped(clipped[r], tex);
+  }
+
+  /* Gouraud lighting of one vertex, as the fixed-function pipeline (without attenuation, which the scene does not use) */
+  private void shade(double[] p, double[] n, float[] ma, float[] md, float[] ms, float[] me, double shininess, float[] out) {
+    double r = me[0] + globalAmbient[0]*ma[0], g = me[1] + globalAmbient[1]*ma[1], b = me[2] + globalAmbient[2]*ma[2];
+    double vx = eye[0]-p[0], vy = eye[1]-p[1], vz = eye[2]-p[2];
+    double vm = Math.sqrt(vx*vx+vy*vy+vz*vz);
+    if (vm > 0) {
+      vx /= vm;
+      vy /= vm;
+      vz /= vm;
+    }
+    for (LightData l : lights) {
+      double lx = l.position[0], ly = l.position[1], lz = l.position[2];
+      if (l.position[3] != 0) {
+        lx -= p[0];
+        ly -= p[1];
+        lz -= p[2];
+      }
+      double lm = Math.sqrt(lx*lx+ly*ly+lz*lz);
+      if (lm == 0) continue;
+      lx /= lm;
+      ly /= lm;
+      lz /= lm;
+      if (l.direction != null) {
+        float[] d = l.direction;
+        if (-(lx*d[0]+ly*d[1]+lz*d[2]) < l.cosCutoff) continue;  // outside the cone
+      }
+      double diffuse = Math.max(0, n[0]*lx+n[1]*ly+n[2]*lz);
+      double specular = 0;
+      if (diffuse > 0) {
+        double hx = lx+vx, hy = ly+vy, hz = lz+vz;
+        double hm = Math.sqrt(hx*hx+hy*hy+hz*hz);
+        if (hm > 0) specular = Math.pow(Math.max(0, (n[0]*hx+n[1]*hy+n[2]*hz)/hm), shininess);
+      }
+      r += l.ambient[0]*ma[0] + diffuse*l.diffuse[0]*md[0] + specular*l.specular[0]*ms[0];
+      g += l.ambient[1]*ma[1] + diffuse*l.diffuse[1]*md[1] + specular*l.specular[1]*ms[1];
+      b += l.ambient[2]*ma[2] + diffuse*l.diffuse[2]*md[2] + specular*l.specular[2]*ms[2];
+    }
+    out[0] = (float) Math.min(1, r);
+    out[1] = (float) Math.min(1, g);
+    out[2] = (float) Math.min(1, b);
+    out[3] = md[3];
+  }
+
+  /* Keeps a triangle in out, clipped against the near plane (z >= -w) if need be. Only reads the vertices */
+  private void addTriangle(int a, int b, int c, Clipped out) {
+    float[] v = vertices;
+    int oa = a*STRIDE, ob = b*STRIDE, oc = c*STRIDE;
+    // skip triangles that are all outside one of the other planes
+    for (int k=0; k<3; k++) {
+      if (v[oa+k] > v[oa+3] && v[ob+k] > v[ob+3] && v[oc+k] > v[oc+3]) return;
+      if (v[oa+k] < -v[oa+3] && v[ob+k] < -v[ob+3] && v[oc+k] < -v[oc+3]) return;
+    }
+    boolean inA = nearDistance(oa) >= 0, inB = nearDistance(ob) >= 0, inC = nearDistance(oc) >= 0;
+    if (inA && inB && inC) {
+      keepTriangle(out, a, b, c);
+      return;
+    }
+    if (!inA && !inB && !inC) return;
+    int[] in = {a, b, c};
+    int[] poly = new int[4];
+    int n = 0;
+    for (int i=0; i<3; i++) {
+      int p = in[i], q = in[(i+1)%3];
+      double dp = nearDistance(p*STRIDE), dq = nearDistance(q*STRIDE);
+      if (dp >= 0) poly[n++] = p;
+      if ((dp >= 0) != (dq >= 0)) poly[n++] = addIntersection(p, q, dp/(dp-dq), out);
+    }
+    for (int i=1; i<n-1; i++)
+      keepTriangle(out, poly[0], poly[i], poly[i+1]);
+  }
+
+  private double nearDistance(int o) {
+    return vertices[o+2] + vertices[o+3] - NEAR_EPSILON;
+  }
+
+  /* Adds the vertex a fraction t of the way from p to q to out, and returns its index there as -1-k */
+  private int addIntersection(int p, int q, double t, Clipped out) {
+    if ((out.numVertices+1)*STRIDE > out.vertices.length) out.vertices = Arrays.copyOf(out.vertices, out.vertices.length*2);
+    int op = p*STRIDE, oq = q*STRIDE, o = out.numVertices*STRIDE;
+    for (int k=0; k<STRIDE; k++)
+      out.vertices[o+k] = (float) (vertices[op+k] + t*(vertices[oq+k]-vertices[op+k]));
+    return -1-out.numVertices++;
+  }
+
+  private static void keepTriangle(Clipped out, int a, int b, int c) {
+    if ((out.numTriangles+1)*3 > out.triangles.length) out.triangles = Arrays.copyOf(out.triangles, out.triangles.length*2);
+    int o = out.numTriangles*3;
+    out.triangles[o] = a;
+    out.triangles[o+1] = b;
+    out.triangles[o+2] = c;
+    out.numTriangles++;
+  }
+
+  /* Adds the vertices and triangles of a run, in order, numbering the vertices clipping made after those already kept */
+  private void keepClipped(Clipped c, Tex tex) {
+    int base = numVertices;
+    ensureVertices(numVertices+c.numVertices);
+    System.arraycopy(c.vertices, 0, vertices, base*STRIDE, c.numVertices*STRIDE);
+    numVertices += c.numVertices;
+    for (int i=0; i<c.numTriangles*3; i+=3)
+      keepTriangle(vertex(c.triangles[i], base), vertex(c.triangles[i+1], base), vertex(c.triangles[i+2], base), tex);
+  }
+
+  private static int vertex(int i, int base) {
+    return (i >= 0) ? i : base-1-i;
+  }
+
+  private void keepTriangle(int a, int b, int c, Tex tex) {
+    if (numTriangles == triangleTextures.length) {
+      triangles = Arrays.copyOf(triangles, numTriangles*6);
+      triangleTextures = Arrays.copyOf(triangleTextures, numTriangles*2);
+    }
+    triangles[numTriangles*3] = a;
+    triangles[numTriangles*3+1] = b;
+    triangles[numTriangles*3+2] = c;
+    triangleTextures[numTriangles] = tex;
+    numTriangles++;
+  }
+
+  private void ensureVertices(int n) {
+    if (n*STRIDE > vertices.length)
+      vertices = Arrays.copyOf(vertices, Math.max(n*STRIDE, vertices.length*2));
+  }
+
+  private Tex getTex(BufferedImage img) {
+    if (img == null) return null;
+    Tex t = textures.get(img);
+    if (t == null) {
+      t = new Tex();
+      t.width = img.getWidth();
+      t.height = img.getHeight();
+      t.pixels = img.getRGB(0, 0, t.width, t.height, null, 0, t.width);
+      textures.put(img, t);
+    }
+    return t;
+  }
+
+  public int getNumTriangles() { return numTriangles; }
+
+/* Rasterisation ******************************************************************
+*/
+
+  /**
+   * Rasterises the triangles drawn since the last clear() into the image.
+   *
+   * @return  the image, which is reused by the next call
+   */
+  public BufferedImage render() {
+    setUpVertices();
+    binTriangles();
+    runParallel(tilesX*tilesY, 1, new Range() {
+      public void run(int from, int to) {
+        for (int t=from; t<to; t++)
+          rasteriseTile(t);
+      }
+    });
+    return image;  // the tiles were rasterised straight into its pixels
+  }
+
+  public BufferedImage getImage() {
+    return image;
+  }
+
+  /* From clip space to the screen, with the attributes divided by w for perspective correction */
+  private void setUpVertices() {
+    if (screen.length < numVertices*STRIDE) screen = new float[vertices.length];
+    runParallel(numVertices, 4096, new Range() {
+      public void run(int from, int to) {
+        for (int v=from; v<to; v++) {
+          int o = v*STRIDE;
+          float iw = 1/vertices[o+3];
+          screen[o] = (vertices[o]*iw+1)*0.5f*width;
+          screen[o+1] = (1-vertices[o+1]*iw)*0.5f*height;  // rows go down the image
+          screen[o+2] = (vertices[o+2]*iw+1)*0.5f;
+          screen[o+3] = iw;
+          for (int k=4; k<STRIDE; k++)
+            screen[o+k] = vertices[o+k]*iw;
+        }
+      }
+    });
+  }
+
+  /* Adds each triangle to the tiles its bounding box covers, and culls back faces. The triangles are
+     split into runs, one per thread, each binned into bins of its own, so no locking is needed */
+  private void binTriangles() {
+    numBinRuns = Math.max(1, Math.min(pool.getParallelism(), numTriangles/BIN_RUN));
+    if (bins.length < numBinRuns) {
+      int n = bins.length;
+      bins = Arrays.copyOf(bins, numBinRuns);
+      binSizes = Arrays.copyOf(binSizes, numBinRuns);
+      for (int r=n; r<numBinRuns; r++) {
+        bins[r] = new int[tilesX*tilesY][16];
+        binSizes[r] = new int[tilesX*tilesY];
+      }
+    }
+    runParallel(numBinRuns, 1, new Range() {
+      public void run(int from, int to) {
+        for (int r=from; r<to; r++)
+          binTriangles(r, (int) ((long) r*numTriangles/numBinRuns), (int) ((long) (r+1)*numTriangles/numBinRuns));
+      }
+    });
+  }
+
+  private void binTriangles(int run, int from, int to) {
+    int[][] bins = this.bins[run];
+    int[] binSizes = this.binSizes[run];
+    Arrays.fill(binSizes, 0);
+    for (int t=from; t<to; t++) {
+      int oa = triangles[t*3]*STRIDE, ob = triangles[t*3+1]*STRIDE, oc = triangles[t*3+2]*STRIDE;
+      float ax = screen[oa], ay = screen[oa+1], bx = screen[ob], by = screen[ob+1], cx = screen[oc], cy = screen[oc+1];
+      double area = (double) (bx-ax)*(cy-ay) - (double) (by-ay)*(cx-ax);
+      if (area == 0 || (cullFace && area > 0)) continue;  // anticlockwise in OpenGL is clockwise with rows going down
+      int minX = Math.max(0, (int) Math.floor(Math.min(ax, Math.min(bx, cx))));
+      int maxX = Math.min(width-1, (int) Math.ceil(Math.max(ax, Math.max(bx, cx))));
+      int minY = Math.max(0, (int) Math.floor(Math.min(ay, Math.min(by, cy))));
+      int maxY = Math.min(height-1, (int) Math.ceil(Math.max(ay, Math.max(by, cy))));
+      if (minX > maxX || minY > maxY) continue;
+      for (int ty=minY/tileSize; ty<=maxY/tileSize; ty++)
+        for (int tx=minX/tileSize; tx<=maxX/tileSize; tx++) {
+          int tile = ty*tilesX+tx;
+          if (binSizes[tile] == bins[tile].length) bins[tile] = Arrays.copyOf(bins[tile], binSizes[tile]*2);
+          bins[tile][binSizes[tile]++] = t;
+        }
+    }
+  }
+
+  /* The runs of binTriangles() are taken in order, so the triangles are drawn in the order they were given */
+  private void rasteriseTile(int tile) {
+    int x0 = (tile%tilesX)*tileSize, y0 = (tile/tilesX)*tileSize;
+    int x1 = Math.min(x0+tileSize, width), y1 = Math.min(y0+tileSize, height);
+    for (int r=0; r<numBinRuns; r++) {
+      int[] bin = bins[r][tile];
+      for (int k=0; k<binSizes[r][tile]; k++)
+        rasteriseTriangle(bin[k], x0, y0, x1, y1);
+    }
+  }
+
+  /* Fills the pixels of the triangle whose centres are inside it, within the tile [x0,x1) x [y0,y1) */
+  private void rasteriseTriangle(int t, int x0, int y0, int x1, int y1) {
+    int a = triangles[t*3]*STRIDE, b = triangles[t*3+1]*STRIDE, c = triangles[t*3+2]*STRIDE;
+    float[] s = screen;
+    double area = (double) (s[b]-s[a])*(s[c+1]-s[a+1]) - (double) (s[b+1]-s[a+1])*(s[c]-s[a]);
+    if (area < 0) {  // make the edge functions positive inside
+      int swap = b;
+      b = c;
+      c = swap;
+      area = -area;
+    }
+    double ax = s[a], ay = s[a+1], bx = s[b], by = s[b+1], cx = s[c], cy = s[c+1];
+    int minX = Math.max(x0, (int) Math.ceil(Math.min(ax, Math.min(bx, cx))-0.5));
+    int maxX = Math.min(x1-1, (int) Math.floor(Math.max(ax, Math.max(bx, cx))-0.5));
+    int minY = Math.max(y0, (int) Math.ceil(Math.min(ay, Math.min(by, cy))-0.5));
+    int maxY = Math.min(y1-1, (int) Math.floor(Math.max(ay, Math.max(by, cy))-0.5));
+    if (minX > maxX || minY > maxY) return;
+    double invArea = 1/area;
+    // edge functions at the centre of the first pixel, and how they change from one pixel to the next
+    double px = minX+0.5, py = minY+0.5;
+    double e0 = (cx-bx)*(py-by) - (cy-by)*(px-bx), e0dx = -(cy-by), e0dy = cx-bx;   // weight of a
+    double e1 = (ax-cx)*(py-cy) - (ay-cy)*(px-cx), e1dx = -(ay-cy), e1dy = ax-cx;   // weight of b
+    double e2 = (bx-ax)*(py-ay) - (by-ay)*(px-ax), e2dx = -(by-ay), e2dy = bx-ax;   // weight of c
+    Tex tex = triangleTextures[t];
+    for (int y=minY; y<=maxY; y++) {
+      double w0 = e0, w1 = e1, w2 = e2;
+      int i = y*width+minX;
+      for (int x=minX; x<=maxX; x++, i++, w0+=e0dx, w1+=e1dx, w2+=e2dx) {
+        if (w0 < 0 || w1 < 0 || w2 < 0) continue;
+        double l0 = w0*invArea, l1 = w1*invArea, l2 = w2*invArea;
+        float z = (float) (l0*s[a+2] + l1*s[b+2] + l2*s[c+2]);
+        if (z >= depth[i]) continue;
+        depth[i] = z;
+        double w = 1/(l0*s[a+3] + l1*s[b+3] + l2*s[c+3]);
+        double r = (l0*s[a+4] + l1*s[b+4] + l2*s[c+4])*w;
+        double g = (l0*s[a+5] + l1*s[b+5] + l2*s[c+5])*w;
+        double bl = (l0*s[a+6] + l1*s[b+6] + l2*s[c+6])*w;
+        if (tex != null) {
+          double u = (l0*s[a+8] + l1*s[b+8] + l2*s[c+8])*w;
+          double v = (l0*s[a+9] + l1*s[b+9] + l2*s[c+9])*w;
+          int texel = sample(tex, u, v);
+          r *= ((texel >> 16) & 0xff)/255.0;
+          g *= ((texel >> 8) & 0xff)/255.0;
+          bl *= (texel & 0xff)/255.0;
+        }
+        colour[i] = 0xff000000 | (toByte(r) << 16) | (toByte(g) << 8) | toByte(bl);
+      }
+      e0 += e0dy;
+      e1 += e1dy;
+      e2 += e2dy;
+    }
+  }
+
+  /* Bilinear filtering, with the texture repeated (GL_REPEAT) */
+  private static int sample(Tex tex, double u, double v) {
+    double tx = u*tex.width-0.5, ty = (1-v)*tex.height-0.5;
+    int ix = (int) Math.floor(tx), iy = (int) Math.floor(ty);
+    double fx = tx-ix, fy = ty-iy;
+    int x0 = Math.floorMod(ix, tex.width), x1 = Math.floorMod(ix+1, tex.width);
+    int y0 = Math.floorMod(iy, tex.height), y1 = Math.floorMod(iy+1, tex.height);
+    int[] p = tex.pixels;
+    int p00 = p[y0*tex.width+x0], p10 = p[y0*tex.width+x1], p01 = p[y1*tex.width+x0], p11 = p[y1*tex.width+x1];
+    int result = 0;
+    for (int shift=0; shift<24; shift+=8) {
+      double top = ((p00 >> shift) & 0xff)*(1-fx) + ((p10 >> shift) & 0xff)*fx;
+      double bottom = ((p01 >> shift) & 0xff)*(1-fx) + ((p11 >> shift) & 0xff)*fx;
+      result |= ((int) (top*(1-fy) + bottom*fy + 0.5)) << shift;
+    }
+    return result;
+  }
+
+  private static int toByte(double c) {
+    return (int) (Math.max(0, Math.min(1, c))*255+0.5);
+  }
+
+/* Threads ******************************************************************
+*/
+
+  private interface Range {
+    void run(int from, int to);
+  }
+
+  private void runParallel(int n, int threshold, final Range range) {
+    ParallelRange task = new ParallelRange(0, n, threshold) {
+      protected void run(int from, int to) {
+        range.run(from, to);
+      }
+    };
+    if (n <= threshold) range.run(0, n);
+    else pool.invoke(task);
+  }
+
+  /**
+   * Frees the threads, if setThreads(...) made a pool of its own.
+   */
+  public void dispose() {
+    setThreads(0);
+  }
+
+  /**
+   * Test harness. Renders a room with objects in it, as in the assignment scene, with 1, 2, 4, ...
+   * threads up to the number of cores, prints the time per frame for each, and writes the image
+   * to software.png.
+   * Arguments: [width height [frames]]
+   */
+  public static void main(String[] args) throws Exception {
+    int w = (args.length >= 2) ? Integer.parseInt(args[0]) : 1280;
+    int h = (args.length >= 2) ? Integer.parseInt(args[1]) : 720;
+    int frames = (args.length >= 3) ? Integer.parseInt(args[2]) : 10;
+
+    SoftwareRenderer sr = new SoftwareRenderer(w, h);
+    double near = 0.1, far = 100;
+    double top = Math.tan(Math.toRadians(30))*near, aspect = (double) w/h;
+    Matrix4 projection = new Matrix4();
+    projection.frustum(-aspect*top, aspect*top, -top, top, near, far);
+    sr.setProjection(projection);
+    Camera camera = new Camera(Math.toRadians(-45), Math.toRadians(30), 10.0);
+
+    Mesh floor = ProceduralMeshFactory.createPlane(20,20,10,10,1,1);
+    Mesh wall = ProceduralMeshFactory.createPlane(20,12,10,10,1,1);
+    Mesh sphere = ProceduralMeshFactory.createSphere(1, 50, 50);
+    Mesh torus = ProceduralMeshFactory.createTorus(0.5, 2.5, 30, 30);
+    Mesh cylinder = ProceduralMeshFactory.createFrustumCylinder(1, 1, 12, 30, 30, true);
+    Material red = new Material(), green = new Material(), purple = new Material(), plain = new Material();
+    red.setAmbient(240/255f, 65/255f, 85/255f, 1);
+    red.setDiffuse(240/255f, 65/255f, 85/255f, 1);
+    green.setAmbient(34/255f, 139/255f, 34/255f, 1);
+    green.setDiffuse(34/255f, 139/255f, 34/255f, 1);
+    purple.setAmbient(138/255f, 43/255f, 226/255f, 1);
+    purple.setDiffuse(138/255f, 43/255f, 226/255f, 1);
+    BufferedImage floorTex = readImage("wood.jpg");
+    BufferedImage[] wallTex = {readImage("wall1.jpg"), readImage("wall2.jpg"), readImage("wall3.jpg"), readImage("wall4.jpg")};
+    Light light = new Light(0);
+    Light spot = new Light(1, new float[]{0,0,0,1});
+    spot.makeSpotlight(new float[]{0,-1,0}, 30f);
+    Matrix4 spotTransform = new Matrix4();
+    spotTransform.translate(0,11.5,0);
+
+    // as House and Obstacles
+    Matrix4[] walls = new Matrix4[4];
+    double[][] wallPlacement = {{10,0,0, 90,0,-1,0}, {-10,0,0, 90,0,1,0}, {0,0,-10, 0,0,1,0}, {0,0,10, 180,0,1,0}};
+    for (int i=0; i<4; i++) {
+      double[] p = wallPlacement[i];
+      walls[i] = new Matrix4();
+      walls[i].translate(p[0],p[1],p[2]);
+      walls[i].rotate(p[3],p[4],p[5],p[6]);
+      walls[i].rotate(90,1,0,0);
+      walls[i].translate(0,0,-6);
+    }
+    Matrix4 head = new Matrix4();
+    head.translate(-4,4,-4);
+    Matrix4 ring = new Matrix4();
+    ring.translate(6.1,6,5);
+    Matrix4 column = new Matrix4();
+    column.translate(-1,0,2);
+    column.rotate(90,-1,0,0);
+
+    int cores = Runtime.getRuntime().availableProcessors();
+    double single = 0;
+    for (int threads=1; ; threads=Math.min(threads*2, cores)) {
+      sr.setThreads(threads);
+      long time = 0;
+      for (int f=-2; f<frames; f++) {  // the first two frames warm up
+        long start = System.nanoTime();
+        sr.clear();
+        sr.setView(camera.getViewMatrix());
+        sr.addLight(light, null);
+        sr.addLight(spot, spotTransform);
+        sr.draw(floor, null, plain, floorTex);
+        for (int i=0; i<4; i++)
+          sr.draw(wall, walls[i], plain, wallTex[i]);
+        sr.draw(sphere, head, red, null);
+        sr.draw(torus, ring, green, null);
+        sr.draw(cylinder, column, purple, null);
+        sr.render();
+        if (f >= 0) time += System.nanoTime()-start;
+      }
+      double ms = time/1e6/frames;
+      if (threads == 1) single = ms;
+      System.out.printf("%d thread(s): %.2f ms per frame, speed-up %.2f, %d triangles%n",
+                        threads, ms, single/ms, sr.getNumTriangles());
+      if (threads == cores) break;
+    }
+    sr.dispose();
+    ImageIO.write(sr.getImage(), "png", new File("software.png"));
+    System.out.println("Written software.png");
+  }
+
+  private static BufferedImage readImage(String filename) {
+    try {
+      return ImageIO.read(new File(filename));
+    }
+    catch (Exception e) {
+      System.out.println("Error loading texture "+filename);
+      return null;
+    }
+  }
+
+}
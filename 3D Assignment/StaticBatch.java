@@ -0,0 +1,276 @@
+/**
+ * Batches together the meshes of objects that never move, e.g. the walls of a room, so that they
+ * can be drawn with as few OpenGL calls as possible.
+ * Each Mesh is added with the transformation that places it in the world. Its vertices and normals
+ * are transformed once, when the batch is built, so no matrix calls are needed when drawing.
+ * All the meshes are merged into a single Mesh, with the triangles grouped by texture and material.
+ * It is drawn using a Render object, by default from buffer objects, in which case each group is drawn
+ * with one glDrawElements call. In display list mode, the whole batch is compiled into one display list.
+ * Groups are drawn in the order in which their first Mesh was added, which matters for surfaces that
+ * lie on top of each other (e.g. a window on a wall, where the window must be added first).
+ * Texture and material changes go through a GLStateCache (see setStateCache(...)).
+ * The world-space bounds of each group are kept, so that groups outside the view frustum can be
+ * skipped (see render(gl, frustum)). In display list mode only the whole batch can be skipped.
+ * Instead of being drawn at once, the groups can be submitted to a RenderQueue (see submit(...)),
+ * each keyed by its own texture and material, so that the queue can sort them among everything else.
+ * Typical use:
+ *   StaticBatch batch = new StaticBatch();
+ *   Matrix4 m = new Matrix4(); m.translate(10,0,0); ...
+ *   batch.add(mesh, texture, m);  ...
+ *   batch.build();
+ *   ...
+ *   batch.render(gl);   // every frame
+ */
+
+import java.util.*;
+import com.jogamp.opengl.*;
+import com.jogamp.opengl.util.texture.*;
+
+public class StaticBatch {
+
+  private List<Group> groups = new ArrayList<Group>();
+  private Render render;
+  private int mode = Render.BUFFER_OBJECT;
+  private boolean compact = false;
+  private int dlist;
+  private GLStateCache dlistState;  // the state the list leaves set
+  private int numTriangles;
+  private double[] min = new double[3], max = new double[3];
+  private GLStateCache state = new GLStateCache(false);
+
+  private static class Group {
+    Texture tex;
+    Material material;
+    List<Mesh> meshes = new ArrayList<Mesh>();
+    List<Matrix4> transforms = new ArrayList<Matrix4>();
+    int firstTriangle, numTriangles;   // the group's range in the merged Mesh
+    double[] min = new double[3], max = new double[3];  // world-space bounds
+    RenderQueue.Command command;       // draws the group on its own, for submit(...)
+  }
+
+  /**
+   * Adds a Mesh to the batch. The Mesh's material is used.
+   * The Mesh and transformation should not be changed until after build() is called.
+   *
+   * @param  m          the Mesh
+   * @param  tex        the texture; may be null
+   * @param  transform  places the Mesh in the world; null for none
+   */
+  public void add(Mesh m, Texture tex, Matrix4 transform) {
+    Group g = null;
+    for (Group h : groups)
+      if (h.tex == tex && sameMaterial(h.material, m.getMaterial())) g = h;
+    if (g == null) {
+      g = new Group();
+      g.tex = tex;
+      for (Group h : groups)  // groups with the same material share the object, so that it has one id in a RenderQueue
+        if (sameMaterial(h.material, m.getMaterial())) g.material = h.material;
+      if (g.material == null) g.material = m.getMaterialClone();
+      groups.add(g);
+    }
+    g.meshes.add(m);
+    g.transforms.add((transform != null) ? transform : new Matrix4());
+    render = null;
+  }
+
+  private static boolean sameMaterial(Material a, Material b) {
+    return Arrays.equals(a.getAmbient(), b.getAmbient()) && Arrays.equals(a.getDiffuse(), b.getDiffuse())
+        && Arrays.equals(a.getSpecular(), b.getSpecular()) && Arrays.equals(a.getEmission(), b.getEmission())
+        && a.getShininess() == b.getShininess();
+  }
+
+  /**
+   * Transforms all the meshes into world space and merges them into one set of buffers.
+   * Called automatically by render(...) if meshes have been added since the last build.
+   */
+  public void build() {
+    MeshBuilder builder = new MeshBuilder();
+    double[] p = new double[3], n = new double[3];
+    resetBounds(min, max);
+    for (final Group g : groups) {
+      g.command = new RenderQueue.Command() {
+        public void draw(GL2 gl) { drawGroup(gl, g); }
+      };
+      g.firstTriangle = builder.getNumTriangles();
+      resetBounds(g.min, g.max);
+      for (int k=0; k<g.meshes.size(); k++) {
+        Mesh m = g.meshes.get(k);
+        Matrix4 transform = g.transforms.get(k);
+        double[] pos = m.getVertexList();
+        double[] norm = m.getNormalList();
+        double[] uv = m.getTextureCoordsList();
+        int first = builder.getNumVertices();
+        for (int v=0; v<m.getNumVertices(); v++) {
+          transform.transformPoint(pos[v*3], pos[v*3+1], pos[v*3+2], p);
+          transform.transformNormal(norm[v*3], norm[v*3+1], norm[v*3+2], n);
+          addToBounds(p, g.min, g.max);
+          builder.addVertex(p[0], p[1], p[2], n[0], n[1], n[2], uv[v*2], uv[v*2+1]);
+        }
+        builder.addTriangles(m.getTriangleList(), m.getNumTriangles(), first);
+      }
+      g.numTriangles = builder.getNumTriangles()-g.firstTriangle;
+      addToBounds(g.min, min, max);
+      addToBounds(g.max, min, max);
+    }
+    numTriangles = builder.getNumTriangles();
+    render = new Render(builder.build());
+    render.setMode(mode);
+    if (compact) render.setUseCompactFormat(true);
+    render.setStateCache(state);
+    dlist = 0;
+  }
+
+  private static void resetBounds(double[] min, double[] max) {
+    Arrays.fill(min, Double.POSITIVE_INFINITY);
+    Arrays.fill(max, Double.NEGATIVE_INFINITY);
+  }
+
+  private static void addToBounds(double[] p, double[] min, double[] max) {
+    for (int i=0; i<3; i++) {
+      min[i] = Math.min(min[i], p[i]);
+      max[i] = Math.max(max[i], p[i]);
+    }
+  }
+
+  /**
+   * Sets the rendering mode: Render.IMMEDIATE, Render.DISPLAY_LIST or Render.BUFFER_OBJECT.
+   *
+   * @param  mode  the rendering mode
+   */
+  public void setMode(int mode) {
+    this.mode = mode;
+    if (render != null) render.setMode(mode);
+  }
+
+  public int getMode() { return mode; }
+
+  /**
+   * Sets whether the batch keeps its vertex data in the compact format (see Render.setUseCompactFormat(...)).
+   *
+   * @param  b  true to use the compact format
+   */
+  public void setUseCompactFormat(boolean b) {
+    compact = b;
+    if (render != null) render.setUseCompactFormat(b);
+  }
+
+  public boolean getUseCompactFormat() { return compact; }
+
+  /**
+   * Sets the cache through which texture and material changes are made.
+   *
+   * @param  state  the cache, usually shared by everything drawn in the scene
+   */
+  public void setStateCache(GLStateCache state) {
+    this.state = state;
+    if (render != null) render.setStateCache(state);
+  }
+
+  public int getNumGroups() { return groups.size(); }
+
+  public int getNumTriangles() { return numTriangles; }
+
+  /**
+   * Draws the batch, with one draw call per group (or one display list for the whole batch).
+   * The current modelview matrix should be the world (i.e. camera) transformation.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void render(GL2 gl) {
+    render(gl, null);
+  }
+
+  /**
+   * Draws the groups that are at least partly inside the view frustum.
+   *
+   * @param  gl       the OpenGL context.
+   * @param  frustum  the view frustum; null to draw everything
+   */
+  public void render(GL2 gl, Frustum frustum) {
+    if (render == null) build();
+    if (mode == Render.DISPLAY_LIST) {
+      if (frustum != null && !frustum.isBoxVisible(min, max)) return;
+      if (dlist == 0) {
+        dlist = gl.glGenLists(1);
+        gl.glNewList(dlist, GL2.GL_COMPILE);
+          state.beginList();
+          drawGroups(gl, null);
+          dlistState = state.endList();
+        gl.glEndList();
+      }
+      gl.glCallList(dlist);
+      state.listCalled(dlistState);   // the list changes the texture and material
+    }
+    else {
+      drawGroups(gl, frustum);
+    }
+  }
+
+  /**
+   * Submits the groups that are at least partly inside the view frustum to a RenderQueue, one
+   * submission per group, keyed by its texture and material and with its depth measured to the
+   * centre of its bounds. In display list mode the whole batch is one submission, keyed by the
+   * first group. The ids are taken in the order the groups were added, so groups whose order
+   * matters (e.g. a window on a wall) keep it when the queue sorts them by texture, as long as
+   * their textures are not given ids elsewhere first.
+   *
+   * @param  queue    the queue
+   * @param  pass     RenderQueue.OPAQUE or RenderQueue.TRANSPARENT
+   * @param  frustum  the view frustum; null to submit everything
+   */
+  public void submit(RenderQueue queue, int pass, Frustum frustum) {
+    if (render == null) build();
+    if (groups.isEmpty()) return;
+    if (mode == Render.DISPLAY_LIST) {
+      Group first = groups.get(0);
+      queue.submit(pass, queue.getId(first.tex), queue.getId(first.material),
+                   (min[0]+max[0])/2, (min[1]+max[1])/2, (min[2]+max[2])/2, drawAll);
+      return;
+    }
+    for (Group g : groups) {
+      int texture = queue.getId(g.tex), material = queue.getId(g.material);  // before skipping any, to keep the order
+      if (g.numTriangles == 0) continue;
+      if (frustum != null && !frustum.isBoxVisible(g.min, g.max)) continue;
+      queue.submit(pass, texture, material, (g.min[0]+g.max[0])/2, (g.min[1]+g.max[1])/2, (g.min[2]+g.max[2])/2, g.command);
+    }
+  }
+
+  private RenderQueue.Command drawAll = new RenderQueue.Command() {
+    public void draw(GL2 gl) { render(gl, null); }
+  };
+
+  /* As drawGroups, for one group. Texturing is turned off again afterwards, as other commands expect */
+  private void drawGroup(GL2 gl, Group g) {
+    if (g.tex != null) {
+      state.enableTexture(gl, g.tex);
+      state.bindTexture(gl, g.tex);
+      state.textureEnvMode(gl, GL2.GL_MODULATE);
+    }
+    state.material(gl, GL2.GL_FRONT_AND_BACK, g.material);
+    render.drawTriangles(gl, g.firstTriangle, g.numTriangles);
+    if (g.tex != null) state.disableTexture(gl, g.tex);
+  }
+
+  /* Texturing is left enabled from one group to the next, and only turned off at the end */
+  private void drawGroups(GL2 gl, Frustum frustum) {
+    Texture enabled = null;
+    for (Group g : groups) {
+      if (g.numTriangles == 0) continue;
+      if (frustum != null && !frustum.isBoxVisible(g.min, g.max)) continue;
+      if (g.tex != null) {
+        state.enableTexture(gl, g.tex);
+        state.bindTexture(gl, g.tex);
+        state.textureEnvMode(gl, GL2.GL_MODULATE);
+        enabled = g.tex;
+      }
+      else if (enabled != null) {
+        state.disableTexture(gl, enabled);
+        enabled = null;
+      }
+      state.material(gl, GL2.GL_FRONT_AND_BACK, g.material);
+      render.drawTriangles(gl, g.firstTriangle, g.numTriangles);
+    }
+    if (enabled != null) state.disableTexture(gl, enabled);
+  }
+
+}
@@ -8,15 +8,16 @@
 
 public class Triangle implements Cloneable {
 
-  private int[] vertexIndices = new int[3]; // Indexes of the 3 vertices that make up this triangle.
-                                            // Each index refers to the Mesh data structure for vertices.
-  private double[] normal = new double[3];  // The triangle normal
+  private int[] vertexIndices; // Indexes of the 3 vertices that make up this triangle.
+                               // Each index refers to the Mesh data structure for vertices.
+  private double[] normal;     // The triangle normal
 
  
   /**
    * Constructor. Initialises all values to 0.
    */  
   public Triangle() {
+    this(true);
     vertexIndices[0] = vertexIndices[1] = vertexIndices[2] = 0;
     normal[0] = normal[1] = normal[2] = 0;
   }
@@ -29,6 +30,7 @@ public class Triangle implements Cloneable {
    * @param i3 index into main vertex data structure
    */    
   public Triangle(int i1, int i2, int i3) {
+    this(true);
     vertexIndices[0] = i1;
     vertexIndices[1] = i2;
     vertexIndices[2] = i3;
@@ -50,6 +52,20 @@ public class Triangle implements Cloneable {
 	  }
   }
   
+  /**
+   * Constructor for subclasses that keep their data elsewhere, e.g. the views onto a
+   * packed Mesh. If allocate is false, no arrays are created and the subclass
+   * must override every accessor.
+   * 
+   * @param allocate true to allocate the vertex index and normal arrays
+   */
+  protected Triangle(boolean allocate) {
+    if (allocate) {
+      vertexIndices = new int[3];
+      normal = new double[3];
+    }
+  }
+
   /**
    * Set the vertices that make up this triangle. 
    * 
@@ -7,14 +7,15 @@
 
 public class Vertex implements Cloneable {
 
-  private double[] xyz      = new double[3];  // xyz position of a vertex
-  private double[] normal   = new double[3];  // vertex normal
-  private double[] texCoord = new double[2];  // texture coordinates
+  private double[] xyz;       // xyz position of a vertex
+  private double[] normal;    // vertex normal
+  private double[] texCoord;  // texture coordinates
   
   /**
    * Constructor. Initialises all values to 0.
    */
   public Vertex() {
+    this(true);
     xyz[0] = xyz[1] = xyz[2] = 0;
     normal[0] = normal[1] = normal[2] = 0;
     texCoord[0] = texCoord[1] = 0;
@@ -71,6 +72,7 @@ public class Vertex implements Cloneable {
    * @param t array containing (u,v) texture coordinates of the new vertex; otherwise, null
    */   
   public Vertex(double[] p, double[] n, double[] t) {
+    this(true);
     xyz[0] = p[0];
     xyz[1] = p[1];
     xyz[2] = p[2];    
@@ -87,6 +89,21 @@ public class Vertex implements Cloneable {
 	  }
   }
 
+  /**
+   * Constructor for subclasses that keep their data elsewhere, e.g. the views onto a
+   * packed Mesh. If allocate is false, no per-vertex arrays are created and the subclass
+   * must override every accessor.
+   * 
+   * @param allocate true to allocate the position, normal and texture coordinate arrays
+   */
+  protected Vertex(boolean allocate) {
+    if (allocate) {
+      xyz = new double[3];
+      normal = new double[3];
+      texCoord = new double[2];
+    }
+  }
+
   /**
    * Sets the xyz position of a vertex
    * 